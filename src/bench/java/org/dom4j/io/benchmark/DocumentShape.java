@@ -0,0 +1,131 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io.benchmark;
+
+import java.util.Random;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+
+/**
+ * Synthetic document shapes that each stress a different part of
+ * JSONWriter. All shapes have roughly the same number of elements, so
+ * results are comparable across shapes.
+ */
+public enum DocumentShape {
+
+    /** A single chain of nested elements */
+    DEEP {
+        protected void populate(Element root, Random random, int size) {
+            Element parent = root;
+            for (int i = 0; i < size; i++) {
+                parent = parent.addElement("node");
+                parent.addAttribute("level", Integer.toString(i));
+            }
+            parent.setText("bottom");
+        }
+    },
+
+    /** One element with many differently named children */
+    WIDE {
+        protected void populate(Element root, Random random, int size) {
+            for (int i = 0; i < size; i++) {
+                root.addElement("field" + i).setText("value" + i);
+            }
+        }
+    },
+
+    /** Elements with many attributes and little text */
+    ATTRIBUTE_HEAVY {
+        protected void populate(Element root, Random random, int size) {
+            for (int i = 0; i < size / 10; i++) {
+                Element item = root.addElement("item");
+                for (int j = 0; j < 10; j++) {
+                    item.addAttribute("attr" + j, randomWord(random));
+                }
+                item.setText(Integer.toString(i));
+            }
+        }
+    },
+
+    /** Elements with long text values that need some escaping */
+    TEXT_HEAVY {
+        protected void populate(Element root, Random random, int size) {
+            for (int i = 0; i < size / 10; i++) {
+                root.addElement("paragraph").setText(randomText(random, 500));
+            }
+        }
+    },
+
+    /** Text interleaved with inline elements */
+    MIXED_CONTENT {
+        protected void populate(Element root, Random random, int size) {
+            for (int i = 0; i < size / 10; i++) {
+                Element paragraph = root.addElement("p");
+                for (int j = 0; j < 5; j++) {
+                    paragraph.addText(randomText(random, 40));
+                    paragraph.addElement((j % 2 == 0) ? "b" : "i").setText(randomWord(random));
+                }
+            }
+        }
+    },
+
+    /** Records made of repeated same-named siblings (arrays) */
+    REPEATED_SIBLING {
+        protected void populate(Element root, Random random, int size) {
+            for (int i = 0; i < size / 10; i++) {
+                Element order = root.addElement("order");
+                order.addElement("customer").setText(randomWord(random));
+                for (int j = 0; j < 8; j++) {
+                    order.addElement("line").setText(randomWord(random));
+                }
+            }
+        }
+    };
+
+    private static final String[] WORDS = {
+        "alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta",
+        "\"quoted\"", "path/to", "back\\slash", "café", "ༀ"
+    };
+
+    protected abstract void populate(Element root, Random random, int size);
+
+    /**
+     * @param size
+     *            approximate number of elements in the document
+     * @return a new document of this shape
+     */
+    public Document createDocument(int size) {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        populate(doc.addElement("root"), new Random(size), size);
+        return doc;
+    }
+
+    private static String randomWord(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder result = new StringBuilder(length + 16);
+        while (result.length() < length) {
+            result.append(randomWord(random)).append(' ');
+        }
+
+        return result.toString();
+    }
+}
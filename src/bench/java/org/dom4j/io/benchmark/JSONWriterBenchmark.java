@@ -0,0 +1,147 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Document;
+import org.dom4j.io.JSONBinaryFormat;
+import org.dom4j.io.JSONBinaryWriter;
+import org.dom4j.io.JSONFormat;
+import org.dom4j.io.JSONWriter;
+import org.dom4j.io.JSONWriterConfig;
+import org.dom4j.io.XMLWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of JSONWriter for each format and document
+ * shape, with dom4j's XMLWriter as the baseline. Run with the gc profiler
+ * to also get allocation rates:
+ *
+ * <pre>
+ * % mvn -Pbenchmark verify -Djmh.args="-prof gc"
+ * </pre>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JSONWriterBenchmark {
+
+    @Param({ "DEEP", "WIDE", "ATTRIBUTE_HEAVY", "TEXT_HEAVY", "MIXED_CONTENT", "REPEATED_SIBLING" })
+    public DocumentShape shape;
+
+    @Param({ "BASIC_OUTPUT", "RABBIT_FISH", "BADGER_FISH" })
+    public JSONFormat format;
+
+    @Param({ "1000" })
+    public int size;
+
+    private Document document;
+
+    private JSONWriter charWriter;
+
+    private JSONWriter byteWriter;
+
+    private JSONBinaryWriter cborWriter;
+
+    private JSONBinaryWriter messagePackWriter;
+
+    private XMLWriter xmlWriter;
+
+    @Setup
+    public void setup() throws IOException {
+        document = shape.createDocument(size);
+        charWriter = new JSONWriter(new NullWriter(), format);
+        byteWriter = new JSONWriter(new NullOutputStream(), format);
+        JSONWriterConfig config = new JSONWriterConfig(format);
+        cborWriter = config.createBinaryWriter(new NullOutputStream(), JSONBinaryFormat.CBOR);
+        messagePackWriter = config.createBinaryWriter(new NullOutputStream(), JSONBinaryFormat.MESSAGE_PACK);
+        xmlWriter = new XMLWriter(new NullOutputStream());
+    }
+
+    /** JSON to a Writer, i.e., serialization only */
+    @Benchmark
+    public void jsonToWriter() throws IOException {
+        charWriter.write(document);
+    }
+
+    /** JSON to an OutputStream, i.e., serialization plus UTF-8 encoding */
+    @Benchmark
+    public void jsonToStream() throws IOException {
+        byteWriter.write(document);
+    }
+
+    /** CBOR to an OutputStream, for comparison with jsonToStream */
+    @Benchmark
+    public void cborToStream() throws IOException {
+        cborWriter.write(document);
+    }
+
+    /** MessagePack to an OutputStream, for comparison with jsonToStream */
+    @Benchmark
+    public void messagePackToStream() throws IOException {
+        messagePackWriter.write(document);
+    }
+
+    /** XML to an OutputStream, as the baseline */
+    @Benchmark
+    public void xmlToStream() throws IOException {
+        xmlWriter.write(document);
+        xmlWriter.flush();
+    }
+
+    static class NullWriter extends Writer {
+        public void write(int c) {
+        }
+
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void write(String str, int off, int len) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+
+    static class NullOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Document;
+import org.dom4j.io.JSONFormat;
+import org.dom4j.io.JSONWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times writing a single element with N differently named children, for
+ * increasing N. With hashed property grouping the time per child should
+ * stay roughly flat as N grows (i.e., the time per operation scales
+ * linearly with the width).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WideElementBenchmark {
+
+    @Param({ "1000", "4000", "16000", "64000" })
+    public int width;
+
+    private Document document;
+
+    private JSONWriter writer;
+
+    @Setup
+    public void setup() {
+        document = DocumentShape.WIDE.createDocument(width);
+        writer = new JSONWriter(new JSONWriterBenchmark.NullWriter(), JSONFormat.RABBIT_FISH);
+    }
+
+    @Benchmark
+    public void writeWideElement() throws IOException {
+        writer.write(document);
+    }
+}
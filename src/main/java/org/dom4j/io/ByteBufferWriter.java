@@ -0,0 +1,132 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A {@link UTF8Writer} that encodes straight into a caller's
+ * <code>ByteBuffer</code>. Used by
+ * {@link JSONWriter#write(org.dom4j.Node, ByteBuffer)}, which stops walking
+ * the document once the target is full. Text written after that isn't
+ * encoded or copied: the strings themselves are queued, and encoded into
+ * the next target by {@link #drain()}. At most one char's bytes are ever
+ * held over.
+ */
+final class ByteBufferWriter extends DirectUTF8Writer {
+
+  /** Text that's waiting for the next target */
+  private static final class Pending {
+    final CharSequence text;
+
+    int off;
+
+    final int end;
+
+    Pending(CharSequence text, int off, int end) {
+      this.text = text;
+      this.off = off;
+      this.end = end;
+    }
+  }
+
+  private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+
+  /** The caller's buffer, which is only the target while nothing is queued */
+  private ByteBuffer output;
+
+  ByteBufferWriter(boolean escapeNonAscii) {
+    super(escapeNonAscii);
+  }
+
+  void setTarget(ByteBuffer output) {
+    this.output = output;
+    target = hasOverflow() ? null : output;
+  }
+
+  /**
+   * Discards the target, and anything held or queued.
+   */
+  void reset() {
+    resetEncoder();
+    pending.clear();
+    output = null;
+  }
+
+  /**
+   * Encodes as much of the held bytes and queued text as fits into the
+   * target.
+   *
+   * @return true if there's nothing left over.
+   */
+  boolean drain() {
+    target = output;
+    if (!putHeld()) {
+      target = null;
+      return false;
+    }
+
+    while (!pending.isEmpty()) {
+      Pending next = pending.peek();
+      next.off = encode(next.text, next.off, next.end);
+      if (next.off == next.end) {
+        pending.poll();
+      }
+      if ((next.off < next.end) || hasHeld()) {
+        target = null;
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @return true if the target is full, or output is being queued for the
+   * next one.
+   */
+  boolean isFull() {
+    return (target == null) || !target.hasRemaining();
+  }
+
+  boolean hasOverflow() {
+    return hasHeld() || !pending.isEmpty();
+  }
+
+  /**
+   * Queues the rest of <code>text</code>, and stops encoding into the
+   * target so that nothing gets ahead of it. Only text from a char array
+   * is copied, since the caller may reuse the array.
+   */
+  protected void overflow(CharSequence text, int off, int end) {
+    target = null;
+    if (off < end) {
+      if (!(text instanceof String)) {
+        text = text.subSequence(off, end).toString();
+        end -= off;
+        off = 0;
+      }
+      pending.add(new Pending(text, off, end));
+    }
+  }
+
+  protected boolean isOpen() {
+    return false;
+  }
+}
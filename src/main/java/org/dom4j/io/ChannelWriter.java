@@ -0,0 +1,300 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A {@link UTF8Writer} that writes to a <code>WritableByteChannel</code> or
+ * an <code>AsynchronousFileChannel</code> in the background, so that I/O
+ * overlaps serialization. It has two buffers: when the one being encoded
+ * into is full, it's handed off to be written, and encoding carries on in
+ * the other. The serializing thread only waits if it fills a buffer before
+ * the previous one has been written.
+ * </p>
+ *
+ * <p>
+ * Buffers are handed off (the flush policy) when:
+ * </p>
+ * <ul>
+ * <li>they're full, so the buffer size is the byte threshold;</li>
+ * <li>they've held data for longer than the max delay, if one is set with
+ * {@link #setMaxDelay(long, TimeUnit)}, timed from the first byte written
+ * to the buffer. This is checked on every write, so call {@link #flush()}
+ * if serialization stalls;</li>
+ * <li>{@link #flush()} is called, which also waits until everything has
+ * been written to the channel.</li>
+ * </ul>
+ *
+ * <p>
+ * An error from a background write is thrown by the next call that hands
+ * off a buffer, flushes or closes. Use it as the <code>Writer</code> of a
+ * <code>JSONWriter</code>, e.g.
+ * <code>new JSONWriter(new ChannelWriter(channel), config)</code>.
+ * </p>
+ */
+public class ChannelWriter extends UTF8Writer {
+
+  public static final int DEFAULT_CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "ChannelWriter");
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  /** Set when writing to a WritableByteChannel */
+  private final WritableByteChannel channel;
+
+  /** Runs background writes to channel */
+  private final ExecutorService executor;
+
+  /** True if we created executor, and so shut it down */
+  private final boolean ownExecutor;
+
+  /** Set when writing to an AsynchronousFileChannel */
+  private final AsynchronousFileChannel fileChannel;
+
+  /** File position for the next buffer handed off */
+  private long position;
+
+  /** The buffer not being encoded into, which may be being written */
+  private byte[] spare;
+
+  /** Write of spare, or null if there isn't one in progress */
+  private Future<?> pending;
+
+  private ByteBuffer pendingBuffer;
+
+  private long pendingPosition;
+
+  private boolean open = true;
+
+  private long maxDelayNanos = 0;
+
+  /** True once the current buffer's first byte has been timed */
+  private boolean bufferTimed = false;
+
+  /** When the first byte was written to the current buffer */
+  private long bufferStartNanos;
+
+  public ChannelWriter(WritableByteChannel channel) {
+    this(channel, null, false, DEFAULT_CHANNEL_BUFFER_SIZE);
+  }
+
+  /**
+   * @param channel
+   *            channel to write to
+   * @param executor
+   *            runs the background writes, or null to use a thread of our
+   *            own (which is stopped on close)
+   * @param escapeNonAscii
+   *            see {@link UTF8Writer}
+   * @param bufferSize
+   *            size of each of the two buffers
+   */
+  public ChannelWriter(WritableByteChannel channel, ExecutorService executor,
+                       boolean escapeNonAscii, int bufferSize) {
+    super(null, escapeNonAscii, bufferSize);
+    this.channel = channel;
+    this.ownExecutor = (executor == null);
+    this.executor = ownExecutor ? Executors.newSingleThreadExecutor(DAEMON_THREADS) : executor;
+    this.fileChannel = null;
+    this.spare = new byte[bufferSize];
+  }
+
+  public ChannelWriter(AsynchronousFileChannel fileChannel, long position) {
+    this(fileChannel, position, false, DEFAULT_CHANNEL_BUFFER_SIZE);
+  }
+
+  /**
+   * @param fileChannel
+   *            file to write to, using its own asynchronous writes
+   * @param position
+   *            file position to start writing at
+   * @param escapeNonAscii
+   *            see {@link UTF8Writer}
+   * @param bufferSize
+   *            size of each of the two buffers
+   */
+  public ChannelWriter(AsynchronousFileChannel fileChannel, long position,
+                       boolean escapeNonAscii, int bufferSize) {
+    super(null, escapeNonAscii, bufferSize);
+    this.channel = null;
+    this.executor = null;
+    this.ownExecutor = false;
+    this.fileChannel = fileChannel;
+    this.position = position;
+    this.spare = new byte[bufferSize];
+  }
+
+  /**
+   * Set the longest time output is held in a buffer before it's handed off
+   * to be written, or 0 (the default) for no limit.
+   */
+  public void setMaxDelay(long delay, TimeUnit unit) {
+    this.maxDelayNanos = unit.toNanos(delay);
+  }
+
+  public long getMaxDelay(TimeUnit unit) {
+    return unit.convert(maxDelayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void write(int c) throws IOException {
+    super.write(c);
+    if (maxDelayNanos > 0) {
+      checkDelay();
+    }
+  }
+
+  public void write(String str, int off, int len) throws IOException {
+    super.write(str, off, len);
+    if (maxDelayNanos > 0) {
+      checkDelay();
+    }
+  }
+
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    super.write(cbuf, off, len);
+    if (maxDelayNanos > 0) {
+      checkDelay();
+    }
+  }
+
+  /**
+   * Starts timing the current buffer when output first reaches it, and
+   * hands it off once it's held output for the max delay.
+   */
+  private void checkDelay() throws IOException {
+    if (count == 0) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    if (!bufferTimed) {
+      bufferStartNanos = now;
+      bufferTimed = true;
+    } else if (now - bufferStartNanos >= maxDelayNanos) {
+      flushBuffer();
+    }
+  }
+
+  /**
+   * Starts writing <code>bytes</code> in the background, once the previous
+   * write is done, and switches to encoding into the spare buffer.
+   */
+  protected void writeBuffer(byte[] bytes, int length) throws IOException {
+    awaitPending();
+
+    final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, 0, length);
+    if (fileChannel != null) {
+      pendingPosition = position;
+      pending = fileChannel.write(byteBuffer, position);
+      position += length;
+    } else {
+      pending = executor.submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+          }
+          return null;
+        }
+      });
+    }
+    pendingBuffer = byteBuffer;
+
+    buffer = spare;
+    spare = bytes;
+    bufferTimed = false;
+  }
+
+  /**
+   * Waits for the background write (if any) to finish.
+   */
+  private void awaitPending() throws IOException {
+    if (pending == null) {
+      return;
+    }
+
+    try {
+      pending.get();
+
+      // Asynchronous file writes can be partial
+      while (pendingBuffer.hasRemaining()) {
+        fileChannel.write(pendingBuffer, pendingPosition + pendingBuffer.position()).get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a write");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw new IOException("Error writing to channel", cause);
+    } finally {
+      pending = null;
+      pendingBuffer = null;
+    }
+  }
+
+  /**
+   * Hands off anything buffered, and waits until it's all been written to
+   * the channel.
+   */
+  public void flush() throws IOException {
+    flushBuffer();
+    awaitPending();
+  }
+
+  protected boolean isOpen() {
+    return open;
+  }
+
+  protected void closeOutput() throws IOException {
+    open = false;
+    try {
+      awaitPending();
+    } finally {
+      try {
+        if (fileChannel != null) {
+          fileChannel.close();
+        } else {
+          channel.close();
+        }
+      } finally {
+        if (ownExecutor) {
+          executor.shutdown();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A <code>Writer</code> that counts the characters passing through it.
+ */
+final class CountingWriter extends FilterWriter {
+
+  private long count = 0;
+
+  CountingWriter(Writer out) {
+    super(out);
+  }
+
+  public void write(int c) throws IOException {
+    out.write(c);
+    count++;
+  }
+
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    out.write(cbuf, off, len);
+    count += len;
+  }
+
+  public void write(String str, int off, int len) throws IOException {
+    out.write(str, off, len);
+    count += len;
+  }
+
+  public long getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * A {@link UTF8Writer} that encodes straight into a <code>ByteBuffer</code>,
+ * rather than into its own buffer that then has to be copied. The inherited
+ * buffer only holds the bytes of a single char that didn't fit in the
+ * target. When the target is full (or there isn't one), the rest of the
+ * text is handed to {@link #overflow(CharSequence, int, int)}, which
+ * subclasses implement by switching targets or keeping the text for later.
+ */
+abstract class DirectUTF8Writer extends UTF8Writer {
+
+  /** Enough for the bytes of two chars, which is all that's ever held */
+  private static final int HELD_SIZE = 12;
+
+  /** Buffer being encoded into, or null if there's nowhere to write */
+  protected ByteBuffer target;
+
+  /** Start of the held bytes in buffer, which end at count */
+  private int heldStart = 0;
+
+  /** Number of bytes put into targets */
+  private long byteCount = 0;
+
+  DirectUTF8Writer(boolean escapeNonAscii) {
+    super(null, escapeNonAscii, HELD_SIZE);
+  }
+
+  /**
+   * Called when <code>text</code> from <code>off</code> to
+   * <code>end</code> (which may be empty) couldn't be encoded, or bytes
+   * are still held, because the target is full or missing.
+   */
+  protected abstract void overflow(CharSequence text, int off, int end) throws IOException;
+
+  /**
+   * Discards the target, anything held, and any pending high surrogate.
+   */
+  void resetEncoder() {
+    setOutputStream(null);
+    target = null;
+    heldStart = 0;
+    byteCount = 0;
+  }
+
+  public long getByteCount() {
+    return byteCount + (count - heldStart);
+  }
+
+  /**
+   * @return true if bytes of an encoded char are waiting for room in the
+   * target
+   */
+  boolean hasHeld() {
+    return count > heldStart;
+  }
+
+  public void write(int c) throws IOException {
+    ByteBuffer target = this.target;
+    if ((c < 0x80) && (target != null) && target.hasRemaining() && (count == 0)
+        && !hasHighSurrogate()) {
+      target.put((byte)c);
+      byteCount++;
+    } else {
+      writeText(String.valueOf((char)c), 0, 1);
+    }
+  }
+
+  public void write(String str, int off, int len) throws IOException {
+    writeText(str, off, off + len);
+  }
+
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    writeText(CharBuffer.wrap(cbuf), off, off + len);
+  }
+
+  private void writeText(CharSequence text, int off, int end) throws IOException {
+    off = encode(text, off, end);
+    if ((off < end) || hasHeld()) {
+      overflow(text, off, end);
+    }
+  }
+
+  /**
+   * Encodes as much of <code>text</code> as fits into the target, after
+   * any held bytes.
+   *
+   * @return index of the first char that wasn't encoded
+   */
+  int encode(CharSequence text, int off, int end) {
+    ByteBuffer target = this.target;
+    if ((target == null) || !putHeld()) {
+      return off;
+    }
+
+    while (off < end) {
+      if (!hasHighSurrogate()) {
+        off = encodeAscii(target, text, off, end);
+      }
+
+      if ((off == end) || !target.hasRemaining()) {
+        break;
+      }
+
+      writeNonAscii(text.charAt(off++));
+      if (!putHeld()) {
+        break;
+      }
+    }
+
+    return off;
+  }
+
+  /**
+   * ASCII fast path: one byte per char, as many as fit.
+   *
+   * @return index of the first char that wasn't encoded
+   */
+  private int encodeAscii(ByteBuffer target, CharSequence text, int off, int end) {
+    int limit = Math.min(end, off + target.remaining());
+    int start = off;
+    if (target.hasArray()) {
+      byte[] bytes = target.array();
+      int pos = target.arrayOffset() + target.position();
+      while (off < limit) {
+        char c = text.charAt(off);
+        if (c >= 0x80) {
+          break;
+        }
+        bytes[pos++] = (byte)c;
+        off++;
+      }
+      target.position(target.position() + (off - start));
+    } else {
+      while (off < limit) {
+        char c = text.charAt(off);
+        if (c >= 0x80) {
+          break;
+        }
+        target.put((byte)c);
+        off++;
+      }
+    }
+
+    byteCount += off - start;
+    return off;
+  }
+
+  /**
+   * Moves as many held bytes as fit into the target.
+   *
+   * @return true if there are none left
+   */
+  boolean putHeld() {
+    int length = count - heldStart;
+    if (length > 0) {
+      int chunk = Math.min(length, target.remaining());
+      target.put(buffer, heldStart, chunk);
+      heldStart += chunk;
+      byteCount += chunk;
+      if (heldStart < count) {
+        return false;
+      }
+    }
+
+    heldStart = 0;
+    count = 0;
+    return true;
+  }
+
+  /**
+   * Moves held bytes into the target, or hands them to
+   * {@link #overflow(CharSequence, int, int)}. A pending high surrogate
+   * stays pending.
+   */
+  protected void flushBuffer() throws IOException {
+    if (hasHeld() && ((target == null) || !putHeld())) {
+      overflow("", 0, 0);
+    }
+  }
+
+  protected void writeBuffer(byte[] bytes, int length) throws IOException {
+    throw new IllegalStateException("Output is encoded straight into the target");
+  }
+
+  public void flush() throws IOException {
+    flushBuffer();
+  }
+}
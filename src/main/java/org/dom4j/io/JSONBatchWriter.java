@@ -0,0 +1,228 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+/**
+ * <p>
+ * Writes many Documents (or Elements) as newline-delimited JSON: one
+ * record per line, each the same <code>{ "name": ... }</code> object that
+ * {@link JSONWriter} writes for a document with that root element.
+ * </p>
+ *
+ * <p>
+ * One <code>JSONWriter</code> (with its scratch stack and output buffer)
+ * is reused for every record, and the output is only flushed once the
+ * bytes or records written since the last flush reach a threshold, rather
+ * than once per record. Human formatting is always off, so each record
+ * stays on one line.
+ * </p>
+ *
+ * <p>
+ * With {@link JSONWriterConfig#withMetrics(JSONWriterMetrics) metrics},
+ * each record is recorded as a document.
+ * </p>
+ *
+ * <p>
+ * Like <code>JSONWriter</code>, a batch writer must only be used by one
+ * thread at a time.
+ * </p>
+ */
+public class JSONBatchWriter implements Closeable, Flushable {
+
+  public static final long DEFAULT_FLUSH_BYTES = 64 * 1024;
+
+  private static final String RECORD_SEPARATOR = "\n";
+
+  private final JSONWriter jsonWriter;
+
+  /** Set when writing to a stream via a UTF8Writer, which counts bytes */
+  private final UTF8Writer utf8Writer;
+
+  /** Set otherwise, to count characters instead */
+  private final CountingWriter countingWriter;
+
+  private final Writer writer;
+
+  private long flushBytes = DEFAULT_FLUSH_BYTES;
+
+  private long flushRecords = Long.MAX_VALUE;
+
+  private long recordCount = 0;
+
+  private long lastFlushCount = 0;
+
+  private long lastFlushRecords = 0;
+
+  public JSONBatchWriter(OutputStream out) throws UnsupportedEncodingException {
+    this(out, JSONWriterConfig.DEFAULT);
+  }
+
+  public JSONBatchWriter(OutputStream out, JSONWriterConfig config)
+  throws UnsupportedEncodingException {
+    this.jsonWriter = new JSONWriter((Writer) null, toRecordConfig(config));
+
+    Writer streamWriter = jsonWriter.createWriter(out, config.getFormat().getEncoding());
+    if (streamWriter instanceof UTF8Writer) {
+      this.utf8Writer = (UTF8Writer)streamWriter;
+      this.countingWriter = null;
+      this.writer = utf8Writer;
+    } else {
+      this.utf8Writer = null;
+      this.countingWriter = new CountingWriter(streamWriter);
+      this.writer = countingWriter;
+    }
+    jsonWriter.reset(writer);
+  }
+
+  /**
+   * Writes records to <code>writer</code>. The flush threshold then counts
+   * characters, rather than bytes.
+   */
+  public JSONBatchWriter(Writer writer, JSONWriterConfig config) {
+    this.jsonWriter = new JSONWriter((Writer) null, toRecordConfig(config));
+    this.utf8Writer = null;
+    this.countingWriter = new CountingWriter(writer);
+    this.writer = countingWriter;
+    jsonWriter.reset(this.writer);
+  }
+
+  private static JSONWriterConfig toRecordConfig(JSONWriterConfig config) {
+    return config.withHumanFormat(false).withIndentLevel(0);
+  }
+
+  /**
+   * Set the number of bytes (characters, when writing to a
+   * <code>Writer</code>) written between flushes. Default:
+   * {@link #DEFAULT_FLUSH_BYTES}
+   *
+   * @param flushBytes
+   *            flush once at least this many have been written
+   */
+  public void setFlushBytes(long flushBytes) {
+    this.flushBytes = flushBytes;
+  }
+
+  public long getFlushBytes() {
+    return flushBytes;
+  }
+
+  /**
+   * Set the number of records written between flushes. Default: no limit,
+   * so only the byte threshold applies.
+   *
+   * @param flushRecords
+   *            flush once at least this many records have been written
+   */
+  public void setFlushRecords(long flushRecords) {
+    this.flushRecords = flushRecords;
+  }
+
+  public long getFlushRecords() {
+    return flushRecords;
+  }
+
+  /**
+   * @return the number of records written so far
+   */
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Writes one record, which must be a <code>Document</code> (written as
+   * its root element) or an <code>Element</code>.
+   *
+   * @param record
+   *            <code>Document</code> or <code>Element</code> to output.
+   *
+   * @throws IOException
+   *             if there's any problem writing, or the record is some other
+   *             kind of node.
+   */
+  public void write(Node record) throws IOException {
+    Element element;
+    if (record instanceof Element) {
+      element = (Element)record;
+    } else if (record instanceof Document) {
+      element = ((Document)record).getRootElement();
+    } else {
+      throw new IOException("Invalid record: " + record);
+    }
+
+    jsonWriter.writeRecord(element);
+    writer.write(RECORD_SEPARATOR);
+    recordCount++;
+
+    if  (   (getOutputCount() - lastFlushCount >= flushBytes)
+        ||  (recordCount - lastFlushRecords >= flushRecords)) {
+      flush();
+    }
+  }
+
+  public void writeAll(Iterable<? extends Node> records) throws IOException {
+    writeAll(records.iterator());
+  }
+
+  public void writeAll(Iterator<? extends Node> records) throws IOException {
+    while (records.hasNext()) {
+      write(records.next());
+    }
+  }
+
+  public void writeAll(Stream<? extends Node> records) throws IOException {
+    writeAll(records.iterator());
+  }
+
+  /**
+   * Flushes the underlying stream or Writer
+   *
+   * @throws IOException
+   *             DOCUMENT ME!
+   */
+  public void flush() throws IOException {
+    writer.flush();
+    lastFlushCount = getOutputCount();
+    lastFlushRecords = recordCount;
+  }
+
+  /**
+   * Flushes and closes the underlying stream or Writer
+   *
+   * @throws IOException
+   *             DOCUMENT ME!
+   */
+  public void close() throws IOException {
+    writer.close();
+  }
+
+  private long getOutputCount() {
+    return (utf8Writer != null) ? utf8Writer.getByteCount() : countingWriter.getCount();
+  }
+}
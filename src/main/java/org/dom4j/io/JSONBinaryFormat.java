@@ -0,0 +1,32 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+/**
+ * Binary encodings of the JSON written by a {@link JSONBinaryWriter}. Both
+ * encode the same objects, arrays and strings as the text output, with
+ * length-prefixed strings and containers, so they're smaller and faster to
+ * parse, and need no escaping.
+ */
+public enum JSONBinaryFormat {
+
+  /** Concise Binary Object Representation (RFC 7049) */
+  CBOR,
+
+  /** MessagePack */
+  MESSAGE_PACK;
+}
@@ -0,0 +1,713 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+/**
+ * <p>
+ * Writes the same objects, arrays and strings as {@link JSONWriter}, in a
+ * binary encoding (see {@link JSONBinaryFormat}) instead of as text. The
+ * document is walked the same way, by the same {@link JSONTreeWalker}, and
+ * only the tokens differ: brackets become headers with the number of
+ * properties or array elements, strings are length-prefixed UTF-8 with
+ * nothing to escape, and separators aren't written at all.
+ * </p>
+ * 
+ * <p>
+ * Every write is a single value. A <code>Document</code> is a map of its
+ * top element, as in the text output, and an <code>Element</code> is
+ * written as a map of one property, where the text output would write a
+ * bare property. The config's format, name cache, projection and metrics
+ * are used. Human format doesn't apply, and neither do the shape cache,
+ * fragment cache and parallel writing, which rely on the text already
+ * written, so they're ignored.
+ * </p>
+ * 
+ * <p>
+ * With CBOR, strings can be written once and then referred to by index
+ * (see {@link #setStringReferences(boolean)}), which pays off for
+ * documents that repeat names and values.
+ * </p>
+ * 
+ * <p>
+ * Like <code>JSONWriter</code>, a binary writer must only be used by one
+ * thread at a time.
+ * </p>
+ */
+public class JSONBinaryWriter implements Closeable, Flushable {
+  public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+  /** Longest header: a type byte and a 4-byte length */
+  private static final int MAX_HEADER_BYTES = 5;
+
+  // CBOR major types
+  private static final int CBOR_UNSIGNED = 0;
+  private static final int CBOR_TEXT = 3;
+  private static final int CBOR_ARRAY = 4;
+  private static final int CBOR_MAP = 5;
+  private static final int CBOR_TAG = 6;
+
+  private static final int CBOR_NULL = 0xf6;
+
+  /** Tags for a string reference namespace, and a reference within it */
+  private static final int CBOR_STRINGREF_NAMESPACE = 256;
+  private static final int CBOR_STRINGREF = 25;
+
+  private static final int MESSAGE_PACK_NIL = 0xc0;
+
+  private final JSONBinaryFormat binaryFormat;
+
+  private final boolean cbor;
+
+  /** The configuration of this writer */
+  private JSONWriterConfig config;
+
+  /** The format used by this writer (from config) */
+  private JSONFormat format;
+
+  /** Rules for the format (from config) */
+  private JSONEmitter emitter;
+
+  /** Cache of translated element names (from config) */
+  private JSONNameCache nameCache;
+
+  /** Metrics to add to, or null (from config) */
+  private JSONWriterMetrics metrics;
+
+  private OutputStream out;
+
+  private final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+
+  private int position = 0;
+
+  /** Bytes written to out */
+  private long byteCount = 0;
+
+  private boolean stringReferences = false;
+
+  /** Index of each string that can be referred to, for this value */
+  private final HashMap<String, Integer> stringTable = new HashMap<String, Integer>();
+
+  /** Attribute names with the format's prefix, by qualified name */
+  private final HashMap<String, String> attributeNames = new HashMap<String, String>();
+
+  /** Walks element content, sending its tokens to be encoded */
+  private final JSONTreeWalker walker = new JSONTreeWalker(new BinarySink(), null);
+
+  private long recordingStartNanos;
+
+  private long recordingStartBytes;
+
+  /** Counts for metrics, since the last write */
+  private int nameLookups = 0;
+
+  private int nameMisses = 0;
+
+  public JSONBinaryWriter(OutputStream out, JSONBinaryFormat binaryFormat) {
+    this(out, binaryFormat, JSONWriterConfig.DEFAULT);
+  }
+
+  public JSONBinaryWriter(OutputStream out, JSONBinaryFormat binaryFormat, JSONWriterConfig config) {
+    this.out = out;
+    this.binaryFormat = binaryFormat;
+    this.cbor = (binaryFormat == JSONBinaryFormat.CBOR);
+    setConfig(config);
+  }
+
+  public JSONBinaryFormat getBinaryFormat() {
+    return binaryFormat;
+  }
+
+  /**
+   * Replaces this writer's configuration.
+   * 
+   * @param config
+   *            the new configuration
+   */
+  public void setConfig(JSONWriterConfig config) {
+    this.config = config;
+    this.format = config.getFormat();
+    this.emitter = JSONEmitter.forFormat(format);
+    this.nameCache = config.getNameCache();
+    this.metrics = config.getMetrics();
+    attributeNames.clear();
+  }
+
+  public JSONWriterConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * Selects what's written of each node (see {@link JSONProjection}),
+   * keeping the rest of this writer's configuration.
+   * 
+   * @param projection
+   *            projection to apply, or null to write everything
+   */
+  public void setProjection(JSONProjection projection) {
+    setConfig(config.withProjection(projection));
+  }
+
+  public JSONProjection getProjection() {
+    return config.getProjection();
+  }
+
+  /**
+   * Turns CBOR string references (tags 256 and 25) on or off. When on,
+   * each value starts a new table of strings, and a string that's already
+   * in the table is written as its index. Only strings long enough for the
+   * index to be shorter are added, so this never makes the output bigger
+   * than the table tag, but readers have to support the tags.
+   * 
+   * @throws IllegalArgumentException
+   *             if this writer's format isn't CBOR
+   */
+  public void setStringReferences(boolean stringReferences) {
+    if (stringReferences && !cbor) {
+      throw new IllegalArgumentException("String references are only supported for CBOR");
+    }
+
+    this.stringReferences = stringReferences;
+  }
+
+  public boolean isStringReferences() {
+    return stringReferences;
+  }
+
+  /**
+   * Switches output to <code>out</code>, after flushing what's buffered for
+   * the current stream.
+   */
+  public void setOutputStream(OutputStream out) throws IOException {
+    flushBuffer();
+    this.out = out;
+  }
+
+  /**
+   * @return number of bytes written so far, including any still buffered
+   */
+  public long getByteCount() {
+    return byteCount + position;
+  }
+
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  public void close() throws IOException {
+    flushBuffer();
+    out.close();
+  }
+
+  /**
+   * Writes <code>doc</code> as a map of its top element, and flushes.
+   * 
+   * @param doc
+   *            <code>Document</code> to output.
+   * 
+   * @throws IOException
+   *             if there's any problem writing.
+   */
+  public void write(Document doc) throws IOException {
+    startRecording();
+    boolean completed = false;
+    try {
+      startValue();
+      int size = 0;
+      for (int i = 0, nodeCount = doc.nodeCount(); i < nodeCount; i++) {
+        if (doc.node(i) instanceof Element) {
+          size++;
+        }
+      }
+
+      // The document type, comments, etc. aren't written
+      writeContainerHeader(true, size);
+      for (int i = 0, nodeCount = doc.nodeCount(); i < nodeCount; i++) {
+        Node node = doc.node(i);
+        if (node instanceof Element) {
+          writeElement((Element) node);
+        }
+      }
+      completed = true;
+    } finally {
+      stopRecording(completed);
+    }
+
+    flush();
+  }
+
+  /**
+   * Writes <code>element</code> as a map with one property, and flushes.
+   * 
+   * @param element
+   *            <code>Element</code> to output.
+   * 
+   * @throws IOException
+   *             if there's any problem writing.
+   */
+  public void write(Element element) throws IOException {
+    startRecording();
+    boolean completed = false;
+    try {
+      startValue();
+      writeContainerHeader(true, 1);
+      writeElement(element);
+      completed = true;
+    } finally {
+      stopRecording(completed);
+    }
+
+    flush();
+  }
+
+  /**
+   * Writes <code>text</code>, trimmed, as a string, and flushes.
+   * 
+   * @throws IOException
+   *             if there's any problem writing.
+   */
+  public void write(String text) throws IOException {
+    startValue();
+    writeString(text);
+    flush();
+  }
+
+  /**
+   * Writes a <code>Document</code> or <code>Element</code>, as
+   * {@link #write(Document)} or {@link #write(Element)}.
+   * 
+   * @throws IOException
+   *             if <code>node</code> is anything else, or there's any
+   *             problem writing.
+   */
+  public void write(Node node) throws IOException {
+    if (node instanceof Document) {
+      write((Document) node);
+    } else if (node instanceof Element) {
+      write((Element) node);
+    } else {
+      throw new IOException("Invalid node type for binary output: " + node);
+    }
+  }
+
+  /**
+   * Writes the given object which should be a String, a Node or a List of
+   * Nodes, each as a value of its own.
+   * 
+   * @param object
+   *            is the object to output.
+   * 
+   * @throws IOException
+   *             if the object is anything else, or there's any problem
+   *             writing.
+   */
+  public void write(Object object) throws IOException {
+    if (object instanceof Node) {
+      write((Node) object);
+    } else if (object instanceof String) {
+      write((String) object);
+    } else if (object instanceof List) {
+      List<?> list = (List<?>) object;
+
+      for (int i = 0, size = list.size(); i < size; i++) {
+        write(list.get(i));
+      }
+    } else if (object != null) {
+      throw new IOException("Invalid object: " + object);
+    }
+  }
+
+  // Implementation methods
+  // -------------------------------------------------------------------------
+
+  /**
+   * Writes the name of <code>element</code> and then its content.
+   */
+  private void writeElement(Element element) throws IOException {
+    writeText(getJsonElementName(element));
+    walker.writeElementContent(element);
+  }
+
+  /**
+   * @return qualified name of <code>element</code>, translated for the
+   * format as by <code>JSONWriter</code>
+   */
+  private String getJsonElementName(Element element) {
+    String qualifiedName = element.getQualifiedName();
+    String name = nameCache.getCachedName(format, qualifiedName);
+    nameLookups++;
+    if (name == null) {
+      nameMisses++;
+      name = nameCache.addName(format, qualifiedName);
+    }
+
+    return name;
+  }
+
+  /**
+   * Starts a top-level value, with a new string reference table if they're
+   * on.
+   */
+  private void startValue() throws IOException {
+    if (stringReferences) {
+      stringTable.clear();
+      writeCBORHeader(CBOR_TAG, CBOR_STRINGREF_NAMESPACE);
+    }
+  }
+
+  private void startRecording() {
+    if (metrics != null) {
+      recordingStartBytes = getByteCount();
+      recordingStartNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Adds a completed write to the metrics (if any). The counts for a failed
+   * one are thrown away.
+   */
+  private void stopRecording(boolean completed) {
+    if ((metrics != null) && completed) {
+      metrics.recordDocument(System.nanoTime() - recordingStartNanos,
+                             getByteCount() - recordingStartBytes);
+      metrics.addCounts(walker.getElementsWritten(), walker.getAttributesWritten(),
+                        walker.getMaxDepth(), 0, nameLookups, nameMisses);
+    }
+
+    walker.clearCounts();
+    nameLookups = 0;
+    nameMisses = 0;
+  }
+
+  private void writeAttribute(Attribute attribute) throws IOException {
+    String name = attribute.getQualifiedName();
+    String prefix = emitter.getAttributePrefix();
+    if (prefix.length() > 0) {
+      String prefixed = attributeNames.get(name);
+      if (prefixed == null) {
+        prefixed = prefix + name;
+        attributeNames.put(name, prefixed);
+      }
+      name = prefixed;
+    }
+
+    writeText(name);
+    writeString(attribute.getText());
+  }
+
+  /**
+   * Writes <code>text</code>, trimmed, as a string, or null if there's no
+   * text.
+   */
+  private void writeString(String text) throws IOException {
+    if (text == null) {
+      ensureCapacity(1);
+      buffer[position++] = (byte) (cbor ? CBOR_NULL : MESSAGE_PACK_NIL);
+      return;
+    }
+
+    int end = JSONEscaper.trimEnd(text);
+    int start = JSONEscaper.trimStart(text, end);
+    writeText(text, start, end);
+  }
+
+  private void writeText(String text) throws IOException {
+    writeText(text, 0, text.length());
+  }
+
+  /**
+   * Writes the characters of <code>text</code> from <code>start</code> to
+   * <code>end</code> as a UTF-8 string, or as a reference to an earlier
+   * copy.
+   */
+  private void writeText(String text, int start, int end) throws IOException {
+    int length = getUTF8Length(text, start, end);
+    if (stringReferences) {
+      String key = ((start == 0) && (end == text.length())) ? text : text.substring(start, end);
+      Integer index = stringTable.get(key);
+      if (index != null) {
+        writeCBORHeader(CBOR_TAG, CBOR_STRINGREF);
+        writeCBORHeader(CBOR_UNSIGNED, index.intValue());
+        return;
+      }
+
+      int size = stringTable.size();
+      if (length >= getMinReferencedLength(size)) {
+        stringTable.put(key, size);
+      }
+    }
+
+    if (cbor) {
+      writeCBORHeader(CBOR_TEXT, length);
+    } else if (length < 32) {
+      ensureCapacity(1);
+      buffer[position++] = (byte) (0xa0 | length);
+    } else if (length < 0x100) {
+      writeMessagePackHeader(0xd9, length, 1);
+    } else if (length < 0x10000) {
+      writeMessagePackHeader(0xda, length, 2);
+    } else {
+      writeMessagePackHeader(0xdb, length, 4);
+    }
+
+    writeUTF8(text, start, end);
+  }
+
+  /**
+   * @return the shortest string that's added to a string reference table
+   * with <code>size</code> entries: the one whose reference wouldn't be
+   * shorter than the string itself
+   */
+  private static int getMinReferencedLength(int size) {
+    if (size < 24) {
+      return 3;
+    } else if (size < 0x100) {
+      return 4;
+    } else if (size < 0x10000) {
+      return 5;
+    } else {
+      return 7;
+    }
+  }
+
+  private void writeContainerHeader(boolean map, int size) throws IOException {
+    if (cbor) {
+      writeCBORHeader(map ? CBOR_MAP : CBOR_ARRAY, size);
+    } else if (size < 16) {
+      ensureCapacity(1);
+      buffer[position++] = (byte) ((map ? 0x80 : 0x90) | size);
+    } else if (size < 0x10000) {
+      writeMessagePackHeader(map ? 0xde : 0xdc, size, 2);
+    } else {
+      writeMessagePackHeader(map ? 0xdf : 0xdd, size, 4);
+    }
+  }
+
+  /**
+   * Writes a CBOR data item header: the major type, and
+   * <code>value</code> in the fewest bytes.
+   */
+  private void writeCBORHeader(int majorType, int value) throws IOException {
+    ensureCapacity(MAX_HEADER_BYTES);
+    int type = majorType << 5;
+    if (value < 24) {
+      buffer[position++] = (byte) (type | value);
+    } else if (value < 0x100) {
+      buffer[position++] = (byte) (type | 24);
+      writeBigEndian(value, 1);
+    } else if (value < 0x10000) {
+      buffer[position++] = (byte) (type | 25);
+      writeBigEndian(value, 2);
+    } else {
+      buffer[position++] = (byte) (type | 26);
+      writeBigEndian(value, 4);
+    }
+  }
+
+  private void writeMessagePackHeader(int code, int value, int byteCount) throws IOException {
+    ensureCapacity(MAX_HEADER_BYTES);
+    buffer[position++] = (byte) code;
+    writeBigEndian(value, byteCount);
+  }
+
+  private void writeBigEndian(int value, int byteCount) {
+    for (int shift = (byteCount - 1) * 8; shift >= 0; shift -= 8) {
+      buffer[position++] = (byte) (value >>> shift);
+    }
+  }
+
+  /**
+   * @return number of bytes {@link #writeUTF8(String, int, int)} writes
+   */
+  private static int getUTF8Length(String text, int start, int end) {
+    int length = end - start;
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        continue;
+      } else if (c < 0x800) {
+        length += 1;
+      } else if (isSurrogatePair(text, i, end)) {
+        length += 2;
+        i++;
+      } else if (!Character.isSurrogate(c)) {
+        length += 2;
+      }
+    }
+
+    return length;
+  }
+
+  /**
+   * Encodes the characters of <code>text</code> from <code>start</code> to
+   * <code>end</code> as UTF-8, straight into the buffer. Unpaired
+   * surrogates are written as '?', the same as {@link UTF8Writer}.
+   */
+  private void writeUTF8(String text, int start, int end) throws IOException {
+    byte[] bytes = buffer;
+    int i = start;
+    while (i < end) {
+      int room = bytes.length - position;
+      if (room < 4) {
+        flushBuffer();
+        room = bytes.length;
+      }
+
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        // Copy as much of a run of ASCII as fits
+        int stop = Math.min(end, i + room);
+        do {
+          bytes[position++] = (byte) c;
+        } while ((++i < stop) && ((c = text.charAt(i)) < 0x80));
+        continue;
+      }
+
+      if (c < 0x800) {
+        bytes[position++] = (byte) (0xc0 | (c >> 6));
+        bytes[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (isSurrogatePair(text, i, end)) {
+        int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        bytes[position++] = (byte) (0xf0 | (codePoint >> 18));
+        bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        bytes[position++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        bytes[position++] = (byte) '?';
+      } else {
+        bytes[position++] = (byte) (0xe0 | (c >> 12));
+        bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        bytes[position++] = (byte) (0x80 | (c & 0x3f));
+      }
+      i++;
+    }
+  }
+
+  private static boolean isSurrogatePair(String text, int index, int end) {
+    return  Character.isHighSurrogate(text.charAt(index))
+        &&  (index + 1 < end)
+        &&  Character.isLowSurrogate(text.charAt(index + 1));
+  }
+
+  private void ensureCapacity(int byteCount) throws IOException {
+    if (position + byteCount > buffer.length) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (position > 0) {
+      out.write(buffer, 0, position);
+      byteCount += position;
+      position = 0;
+    }
+  }
+
+  /**
+   * Encodes the tokens of element content from the {@link JSONTreeWalker}.
+   */
+  private final class BinarySink implements JSONTokenSink {
+    public JSONWriterConfig getConfig() {
+      return config;
+    }
+
+    public JSONEmitter getEmitter() {
+      return emitter;
+    }
+
+    /**
+     * @return true, since maps and arrays start with their size
+     */
+    public boolean isSizeRequired() {
+      return true;
+    }
+
+    /**
+     * Writes the header of a map (for '{') or array (for '[') with
+     * <code>size</code> members.
+     * 
+     * @throws IllegalStateException
+     *             if the size wasn't counted
+     */
+    public void writeOpen(char bracket, int size) throws IOException {
+      if (size < 0) {
+        throw new IllegalStateException("Binary output needs the size of every object and array");
+      }
+
+      writeContainerHeader(bracket == '{', size);
+    }
+
+    public void writeSeparator() {
+    }
+
+    public void writeClose(char bracket) {
+    }
+
+    public void writeElementName(Element element) throws IOException {
+      writeText(getJsonElementName(element));
+    }
+
+    public void writePropertyName(String name) throws IOException {
+      writeText(name);
+    }
+
+    public void writeAttribute(Attribute attribute) throws IOException {
+      JSONBinaryWriter.this.writeAttribute(attribute);
+    }
+
+    /**
+     * Writes the attribute as a map with one property, so that it's a
+     * single array element.
+     */
+    public void writeMixedAttribute(Attribute attribute) throws IOException {
+      writeContainerHeader(true, 1);
+      JSONBinaryWriter.this.writeAttribute(attribute);
+    }
+
+    public void writeNode(Node node) throws IOException {
+      if (node instanceof Attribute) {
+        JSONBinaryWriter.this.writeAttribute((Attribute) node);
+      } else {
+        JSONBinaryWriter.this.writeString(node.getText());
+      }
+    }
+
+    public void writeNodeText(Node node) throws IOException {
+      JSONBinaryWriter.this.writeString(node.getText());
+    }
+
+    public void writeString(String text) throws IOException {
+      JSONBinaryWriter.this.writeString(text);
+    }
+
+    public void addProperty(JSONPropertyGroups properties, Node property) {
+      properties.add(property);
+    }
+  }
+}
@@ -0,0 +1,1093 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * A SAX <code>ContentHandler</code> that writes JSON while the XML is being
+ * parsed, without building a dom4j <code>Document</code>.
+ *
+ * The output is the same as reading the XML with a <code>SAXReader</code>
+ * (with <code>setMergeAdjacentText(true)</code> and
+ * <code>setIgnoreComments(true)</code>) and then writing it with
+ * {@link JSONWriter#write(org.dom4j.Document)}, as long as the document has
+ * no CDATA sections or processing instructions, and no element reaches the
+ * lookahead (see below). Comments, namespace declarations, processing
+ * instructions and skipped entities are ignored, and CDATA sections are
+ * treated as text. A <code>SAXReader</code> keeps comments, CDATA sections
+ * and processing instructions as nodes, and next to text they make an
+ * element mixed content for <code>JSONWriter</code>.
+ *
+ * Whether an element becomes a string, an object or (for mixed content) an
+ * array, and whether a child becomes a single property or part of an array
+ * of same-named siblings, often can't be decided until the element ends,
+ * so each open element holds the JSON of its completed children until it
+ * can be. Text before a child element makes an element mixed content,
+ * which is written as it comes, and so are the members of an array once a
+ * second one starts. Once an element holds more than the lookahead
+ * ({@link #setLookahead(int)}), it's committed to being an object (or
+ * mixed content, if it has text), as are its ancestors, and everything it
+ * holds is written except the group of same-named children it's in the
+ * middle of. Memory is therefore bounded by the lookahead for each open
+ * element, plus the text being read, however big the document is.
+ *
+ * The price is that a committed element can't be reconsidered. A child
+ * named like a group that's already been written would have to be another
+ * property with the same name, and text after the child elements of an
+ * element written as an object would have made it mixed content. Rather
+ * than write JSON that differs from <code>JSONWriter</code>'s, with
+ * duplicate keys, either one ends the conversion with an exception: a
+ * <code>SAXException</code> from the <code>ContentHandler</code> methods,
+ * or an <code>IOException</code> from {@link #transcode(XMLStreamReader)}.
+ * Documents like that need a bigger lookahead.
+ *
+ * With a {@link JSONPathFilter}, elements on its paths are dropped as soon
+ * as they start: nothing is kept for them or their content, and the events
+ * inside them are only counted until they end. The top element is always
+ * written, but if it's on a path, with no content.
+ */
+public class JSONContentHandler implements ContentHandler {
+
+  /** Default characters of JSON held for each open element */
+  public static final int DEFAULT_LOOKAHEAD = 64 * 1024;
+
+  private final Writer writer;
+
+  private final JSONFormat format;
+
+  /** Rules for the format */
+  private final JSONEmitter emitter;
+
+  /** Padded or compact punctuation */
+  private JSONTokens tokens = JSONTokens.PADDED;
+
+  private JSONNameCache nameCache = JSONNameCache.getDefault();
+
+  /** Open elements, with the root at index 0 */
+  private final ArrayList<Frame> stack = new ArrayList<Frame>();
+
+  /** Number of elements in stack that are actually open */
+  private int depth = 0;
+
+  /** Paths of elements to drop, or null */
+  private JSONPathFilter pathFilter;
+
+  /** Steps of pathFilter matched before the top element */
+  private List<JSONPathFilter.Step> rootSteps;
+
+  /** Steps matched by the element being started */
+  private ArrayList<JSONPathFilter.Step> nextSteps = new ArrayList<JSONPathFilter.Step>();
+
+  /** Number of open elements inside (and including) a dropped one */
+  private int droppedDepth = 0;
+
+  private int lookahead = DEFAULT_LOOKAHEAD;
+
+  public JSONContentHandler(Writer writer) {
+    this(writer, JSONWriter.DEFAULT_FORMAT);
+  }
+
+  public JSONContentHandler(Writer writer, JSONFormat format) {
+    this.writer = writer;
+    this.format = format;
+    this.emitter = JSONEmitter.forFormat(format);
+  }
+
+  /**
+   * Uses the format, name cache and compact setting of <code>config</code>.
+   *
+   * @throws IllegalArgumentException
+   *             if <code>config</code> uses human format (indentation),
+   *             which isn't supported for streaming conversion
+   */
+  public JSONContentHandler(Writer writer, JSONWriterConfig config) {
+    this(writer, config.getFormat());
+    if (config.isHumanFormat()) {
+      throw new IllegalArgumentException("Human format isn't supported for streaming conversion");
+    }
+
+    this.nameCache = config.getNameCache();
+    this.tokens = JSONTokens.get(config.isCompact());
+  }
+
+  public void setNameCache(JSONNameCache nameCache) {
+    this.nameCache = nameCache;
+  }
+
+  public JSONFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Drops elements on the paths of <code>pathFilter</code>, and everything
+   * in them. If the top element is on a path, it's still written (so the
+   * output is still a JSON object), but with no attributes or content.
+   *
+   * @param pathFilter
+   *            paths to drop, or null (the default) to convert everything
+   */
+  public void setPathFilter(JSONPathFilter pathFilter) {
+    this.pathFilter = pathFilter;
+    this.rootSteps = (pathFilter == null) ? null : pathFilter.getRootSteps();
+  }
+
+  public JSONPathFilter getPathFilter() {
+    return pathFilter;
+  }
+
+  /**
+   * Sets how much of the JSON of its completed children an element can
+   * hold before it's committed to its structure so far.
+   *
+   * @param lookahead
+   *            characters per open element, or
+   *            <code>Integer.MAX_VALUE</code> to hold everything, so that
+   *            structure is always decided as <code>JSONWriter</code>
+   *            would
+   */
+  public void setLookahead(int lookahead) {
+    if (lookahead < 0) {
+      throw new IllegalArgumentException("Lookahead must be >= 0: " + lookahead);
+    }
+
+    this.lookahead = lookahead;
+  }
+
+  public int getLookahead() {
+    return lookahead;
+  }
+
+  // ContentHandler interface
+  // -------------------------------------------------------------------------
+  public void setDocumentLocator(Locator locator) {
+  }
+
+  public void startDocument() throws SAXException {
+    depth = 0;
+    droppedDepth = 0;
+  }
+
+  public void endDocument() throws SAXException {
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  public void startPrefixMapping(String prefix, String uri) {
+    // namespaces not supported yet
+  }
+
+  public void endPrefixMapping(String prefix) {
+  }
+
+  public void startElement(String namespaceURI, String localName,
+                           String qualifiedName, Attributes attributes)
+  throws SAXException {
+    if (droppedDepth > 0) {
+      droppedDepth++;
+      return;
+    }
+
+    if ((qualifiedName == null) || (qualifiedName.length() == 0)) {
+      qualifiedName = localName;
+    }
+
+    try {
+      startElement(qualifiedName);
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+    if (droppedDepth > 0) {
+      return;
+    }
+
+    for (int i = 0, attributeCount = attributes.getLength(); i < attributeCount; i++) {
+      String attributeName = attributes.getQName(i);
+      if ((attributeName == null) || (attributeName.length() == 0)) {
+        attributeName = attributes.getLocalName(i);
+      }
+      addAttribute(attributeName, attributes.getValue(i));
+    }
+  }
+
+  public void endElement(String namespaceURI, String localName,
+                         String qualifiedName)
+  throws SAXException {
+    try {
+      endElement();
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  public void characters(char[] ch, int start, int length) {
+    if ((depth > 0) && (length > 0) && (droppedDepth == 0)) {
+      Frame frame = stack.get(depth - 1);
+      if (frame.contentDropped) {
+        return;
+      }
+      frame.text.append(ch, start, length);
+      frame.hasText = true;
+    }
+  }
+
+  public void ignorableWhitespace(char[] ch, int start, int length) {
+    // SAXReader ignores these too
+  }
+
+  public void processingInstruction(String target, String data) {
+    // processing instructions ignored
+  }
+
+  public void skippedEntity(String name) {
+    // skip entities, whatever they are
+  }
+
+  /**
+   * Converts XML pulled from a StAX reader. If the reader is positioned at
+   * the start of the document, the whole document is converted. If it's
+   * positioned on a <code>START_ELEMENT</code>, only that element is
+   * converted (as if it were the root), and the reader is left on the
+   * matching <code>END_ELEMENT</code>, so callers can convert selected
+   * subtrees and skip the rest. Elements dropped by the path filter are
+   * skipped without reading their names or text.
+   *
+   * @param reader
+   *            the StAX reader to pull events from
+   *
+   * @throws IOException
+   *             if there's any problem writing.
+   * @throws XMLStreamException
+   *             if there's any problem reading.
+   */
+  public void transcode(XMLStreamReader reader)
+  throws IOException, XMLStreamException {
+    int startDepth = depth;
+    int event = reader.getEventType();
+    while (true) {
+      switch (event) {
+      case XMLStreamConstants.START_ELEMENT:
+        startElement(getQualifiedName(reader.getPrefix(), reader.getLocalName()));
+        if (droppedDepth > 0) {
+          skipElement(reader);
+          droppedDepth = 0;
+          if (depth == startDepth) {
+            return;
+          }
+          break;
+        }
+
+        for (int i = 0, attributeCount = reader.getAttributeCount(); i < attributeCount; i++) {
+          addAttribute(getQualifiedName(reader.getAttributePrefix(i),
+                                        reader.getAttributeLocalName(i)),
+                       reader.getAttributeValue(i));
+        }
+        break;
+
+      case XMLStreamConstants.END_ELEMENT:
+        endElement();
+        if (depth == startDepth) {
+          return;
+        }
+        break;
+
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.CDATA:
+        characters(reader.getTextCharacters(),
+                   reader.getTextStart(),
+                   reader.getTextLength());
+        break;
+
+      case XMLStreamConstants.END_DOCUMENT:
+        return;
+
+      default:
+        // Skip comments, processing instructions, ignorable whitespace, etc.
+      }
+
+      if (!reader.hasNext()) {
+        return;
+      }
+      event = reader.next();
+    }
+  }
+
+  // Implementation methods
+  // -------------------------------------------------------------------------
+
+  /**
+   * Moves <code>reader</code> from a <code>START_ELEMENT</code> to its
+   * <code>END_ELEMENT</code>.
+   */
+  private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+    for (int level = 1; level > 0; ) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        level++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        level--;
+      }
+    }
+  }
+
+  private static String getQualifiedName(String prefix, String localName) {
+    if ((prefix == null) || (prefix.length() == 0)) {
+      return localName;
+    }
+
+    return prefix + ":" + localName;
+  }
+
+  /**
+   * Starts an element, unless the path filter drops it, in which case
+   * everything up to its end is ignored. A dropped top element is still
+   * started, but its content is ignored.
+   */
+  protected void startElement(String qualifiedName) throws IOException {
+    boolean contentDropped = false;
+    if (pathFilter != null) {
+      if ((depth > 0) && stack.get(depth - 1).contentDropped) {
+        droppedDepth = 1;
+        return;
+      }
+
+      List<JSONPathFilter.Step> parentSteps = (depth == 0) ? rootSteps : stack.get(depth - 1).filterSteps;
+      nextSteps.clear();
+      if (JSONPathFilter.advance(parentSteps, qualifiedName, nextSteps)) {
+        if (depth > 0) {
+          droppedDepth = 1;
+          return;
+        }
+        contentDropped = true;
+      }
+    }
+
+    Frame frame;
+    if (depth < stack.size()) {
+      frame = stack.get(depth);
+    } else {
+      frame = new Frame();
+      stack.add(frame);
+    }
+
+    frame.start(qualifiedName, nameCache.getJsonName(format, qualifiedName));
+    frame.contentDropped = contentDropped;
+    if (depth == 0) {
+      writer.write(tokens.objectOpen);
+      writer.write('"');
+      writer.write(frame.jsonName);
+      writer.write(tokens.nameEnd);
+      frame.direct = true;
+    } else {
+      frame.direct = stack.get(depth - 1).startChild(frame);
+    }
+    depth++;
+
+    if (pathFilter != null) {
+      ArrayList<JSONPathFilter.Step> steps = frame.filterSteps;
+      frame.filterSteps = nextSteps;
+      nextSteps = steps;
+    }
+  }
+
+  protected void addAttribute(String qualifiedName, String value) {
+    if (droppedDepth > 0) {
+      return;
+    }
+
+    Frame frame = stack.get(depth - 1);
+    if (frame.contentDropped) {
+      return;
+    }
+    if (frame.attributeCount++ > 0) {
+      frame.attributes.append(tokens.separator);
+    }
+    emitter.appendAttributeName(frame.attributes, qualifiedName, tokens);
+    JSONEscaper.appendString(frame.attributes, value);
+  }
+
+  protected void endElement() throws IOException {
+    if (droppedDepth > 0) {
+      droppedDepth--;
+      return;
+    }
+
+    Frame frame = stack.get(--depth);
+    if (frame.direct) {
+      frame.finishDirect();
+      if (depth == 0) {
+        writer.write(tokens.objectClose);
+      } else {
+        stack.get(depth - 1).endDirectChild();
+      }
+    } else {
+      Frame parent = stack.get(depth - 1);
+      parent.addChild(frame, frame.finish());
+      if (parent.heldLength > lookahead) {
+        release(depth - 1);
+      }
+    }
+  }
+
+  /**
+   * Writes out what can be written of the element at <code>index</code> in
+   * the stack, because it holds more than the lookahead. It and its
+   * ancestors are committed to their structure so far, so that they all
+   * write straight to the writer from now on.
+   */
+  private void release(int index) throws IOException {
+    int first = index;
+    while (!stack.get(first).direct) {
+      first--;
+    }
+
+    for (int i = first + 1; i <= index; i++) {
+      Frame parent = stack.get(i - 1);
+      if (parent.mode == PENDING) {
+        parent.commit();
+      }
+      parent.makeChildDirect(stack.get(i));
+    }
+
+    Frame frame = stack.get(index);
+    if (frame.mode == PENDING) {
+      frame.commit();
+    }
+    if (frame.mode == OBJECT) {
+      frame.writeHeldGroups();
+    }
+  }
+
+  /** Content not decided yet: completed children are held */
+  private static final int PENDING = 0;
+
+  /** Content written as an object, with same-named children grouped */
+  private static final int OBJECT = 1;
+
+  /** Content written as an array, in document order */
+  private static final int MIXED = 2;
+
+  /**
+   * Completed children with the same name, held until the group is written
+   * as a property of an object.
+   */
+  private static final class Group {
+    final String name;
+    final String jsonName;
+    final ArrayList<String> contents = new ArrayList<String>(1);
+
+    Group(String name, String jsonName) {
+      this.name = name;
+      this.jsonName = jsonName;
+    }
+  }
+
+  /**
+   * An open element: its attributes already in JSON form, the text seen
+   * since its last child element, and whatever of its completed children
+   * hasn't been written yet.
+   */
+  private final class Frame {
+    String qualifiedName;
+    String localName;
+    String jsonName;
+
+    StringBuilder attributes = new StringBuilder();
+    int attributeCount;
+
+    StringBuilder text = new StringBuilder();
+    boolean hasText;
+    boolean hasElements;
+
+    /** True if this element's JSON is written straight to the writer */
+    boolean direct;
+
+    /** PENDING, OBJECT or MIXED; only direct elements are committed */
+    int mode;
+
+    /** Length of the children and text held */
+    int heldLength;
+
+    /**
+     * PENDING: completed children in document order. A null name means a
+     * text run.
+     */
+    ArrayList<String> childNames = new ArrayList<String>();
+    ArrayList<String> childJsonNames = new ArrayList<String>();
+    ArrayList<String> childContents = new ArrayList<String>();
+
+    /** OBJECT: held groups, in order of first appearance */
+    ArrayList<Group> groups = new ArrayList<Group>();
+    HashMap<String, Group> groupsByName = new HashMap<String, Group>();
+
+    /** OBJECT: names of the groups already written */
+    HashSet<String> writtenNames = new HashSet<String>();
+
+    /** OBJECT: group of the last child started */
+    Group lastGroup;
+
+    /** OBJECT: properties (attributes count as one) written so far */
+    int propertiesWritten;
+
+    /**
+     * OBJECT: true if the first group has been written up to its last
+     * member, so that its following members are written as they come
+     */
+    boolean frontOpen;
+
+    /** OBJECT: true if the open group was written as an array */
+    boolean frontArray;
+
+    int frontMembers;
+
+    /** MIXED: array elements written, other than attributes */
+    int nodesWritten;
+
+    /** True if the path filter drops the (top) element's content */
+    boolean contentDropped;
+
+    /** Steps of the path filter matched by this element */
+    ArrayList<JSONPathFilter.Step> filterSteps = new ArrayList<JSONPathFilter.Step>();
+
+    void start(String qualifiedName, String jsonName) {
+      this.qualifiedName = qualifiedName;
+      int colon = qualifiedName.indexOf(':');
+      this.localName = (colon < 0) ? qualifiedName : qualifiedName.substring(colon + 1);
+      this.jsonName = jsonName;
+      attributes.setLength(0);
+      attributeCount = 0;
+      text.setLength(0);
+      hasText = false;
+      hasElements = false;
+      direct = false;
+      mode = PENDING;
+      heldLength = 0;
+      childNames.clear();
+      childJsonNames.clear();
+      childContents.clear();
+      groups.clear();
+      groupsByName.clear();
+      writtenNames.clear();
+      lastGroup = null;
+      propertiesWritten = 0;
+      frontOpen = false;
+      nodesWritten = 0;
+    }
+
+    void completeTextRun() {
+      if (text.length() > 0) {
+        childNames.add(null);
+        childJsonNames.add(null);
+        childContents.add(text.toString());
+        heldLength += text.length();
+        text.setLength(0);
+      }
+    }
+
+    /**
+     * Starts a child element.
+     *
+     * @return true if the child can write straight to the writer
+     */
+    boolean startChild(Frame child) throws IOException {
+      hasElements = true;
+      if (mode == PENDING) {
+        completeTextRun();
+
+        // Text before an element means mixed content, for good
+        if (!direct || !hasText) {
+          return false;
+        }
+        commitMixed();
+      }
+
+      if (mode == MIXED) {
+        writeTextRun();
+        startMixedChild(child);
+        return true;
+      }
+
+      checkObjectText();
+      if (frontOpen) {
+        if (groups.get(0).name.equals(child.localName)) {
+          if (!frontArray) {
+            throw repeatedGroup(child);
+          }
+          startFrontMember();
+          return true;
+        }
+        closeFront();
+      }
+
+      if (writtenNames.contains(child.localName)) {
+        throw repeatedGroup(child);
+      }
+      lastGroup = getGroup(child);
+
+      // A second member of the first group makes it an array
+      if ((lastGroup == groups.get(0)) && !lastGroup.contents.isEmpty()) {
+        openFront(true, null);
+        startFrontMember();
+        return true;
+      }
+
+      return false;
+    }
+
+    /**
+     * Adds a completed child that wasn't written straight to the writer.
+     */
+    void addChild(Frame child, String content) {
+      heldLength += content.length();
+      if (mode == OBJECT) {
+        lastGroup.contents.add(content);
+        return;
+      }
+
+      childNames.add(child.localName);
+      childJsonNames.add(child.jsonName);
+      childContents.add(content);
+    }
+
+    void endDirectChild() throws IOException {
+      if (mode == MIXED) {
+        writer.write(tokens.objectClose);
+      }
+    }
+
+    /**
+     * Writes what's held so far, and commits this element to mixed content
+     * if it has text and child elements, or otherwise to an object.
+     */
+    void commit() throws IOException {
+      completeTextRun();
+      if (hasText) {
+        commitMixed();
+        return;
+      }
+
+      writer.write(tokens.objectOpen);
+      if (attributeCount > 0) {
+        writer.write(attributes.toString());
+        propertiesWritten = 1;
+      }
+      mode = OBJECT;
+
+      for (int i = 0, childCount = childNames.size(); i < childCount; i++) {
+        Group group = groupsByName.get(childNames.get(i));
+        if (group == null) {
+          group = new Group(childNames.get(i), childJsonNames.get(i));
+          groups.add(group);
+          groupsByName.put(group.name, group);
+        }
+        group.contents.add(childContents.get(i));
+        lastGroup = group;
+      }
+      clearChildren();
+    }
+
+    private void commitMixed() throws IOException {
+      writer.write(tokens.arrayOpen);
+      writer.write(attributes.toString());
+      mode = MIXED;
+
+      for (int i = 0, childCount = childNames.size(); i < childCount; i++) {
+        String name = childNames.get(i);
+        if (name == null) {
+          writeMixedText(childContents.get(i));
+        } else {
+          writeMixedSeparator();
+          writer.write(tokens.objectOpen);
+          writer.write('"');
+          writer.write(childJsonNames.get(i));
+          writer.write(tokens.nameEnd);
+          writer.write(childContents.get(i));
+          writer.write(tokens.objectClose);
+        }
+      }
+      clearChildren();
+    }
+
+    private void clearChildren() {
+      childNames.clear();
+      childJsonNames.clear();
+      childContents.clear();
+      heldLength = 0;
+    }
+
+    /**
+     * Makes the open <code>child</code> of this committed element write
+     * straight to the writer.
+     */
+    void makeChildDirect(Frame child) throws IOException {
+      child.direct = true;
+      if (mode == MIXED) {
+        startMixedChild(child);
+        return;
+      }
+
+      lastGroup = getGroup(child);
+      writeHeldGroups();
+      if (!frontOpen) {
+        openFront(!lastGroup.contents.isEmpty(), child.jsonName);
+      }
+      startFrontMember();
+    }
+
+    /**
+     * Writes the held groups that come before the last child's group, or
+     * all of them if <code>lastGroup</code> is null. The last child's group
+     * is opened if it's already known to be an array.
+     */
+    void writeHeldGroups() throws IOException {
+      while (!groups.isEmpty() && (groups.get(0) != lastGroup)) {
+        Group group = groups.remove(0);
+        groupsByName.remove(group.name);
+        writeGroup(group);
+      }
+
+      if (!groups.isEmpty() && !frontOpen && (lastGroup.contents.size() > 1)) {
+        openFront(true, null);
+      }
+    }
+
+    private Group getGroup(Frame child) {
+      Group group = groupsByName.get(child.localName);
+      if (group == null) {
+        group = new Group(child.localName, child.jsonName);
+        groups.add(group);
+        groupsByName.put(group.name, group);
+      }
+
+      return group;
+    }
+
+    private void writeGroup(Group group) throws IOException {
+      ArrayList<String> contents = group.contents;
+      writePropertySeparator();
+      writer.write('"');
+      if (contents.size() == 1) {
+        writer.write(group.jsonName);
+        writer.write(tokens.nameEnd);
+        writer.write(contents.get(0));
+      } else {
+        writer.write(group.name);
+        writer.write(tokens.nameEnd);
+        writer.write(tokens.arrayOpen);
+        for (int i = 0, size = contents.size(); i < size; i++) {
+          if (i > 0) {
+            writer.write(tokens.separator);
+          }
+          writer.write(contents.get(i));
+        }
+        writer.write(tokens.arrayClose);
+      }
+      heldLength -= getLength(contents);
+      writtenNames.add(group.name);
+    }
+
+    /**
+     * Writes the first group's property name, and for an array, its held
+     * members, so that further members can be written as they come.
+     *
+     * @param jsonName
+     *            name of the single value, if not an array
+     */
+    private void openFront(boolean array, String jsonName) throws IOException {
+      Group group = groups.get(0);
+      ArrayList<String> contents = group.contents;
+      writePropertySeparator();
+      writer.write('"');
+      if (array) {
+        writer.write(group.name);
+        writer.write(tokens.nameEnd);
+        writer.write(tokens.arrayOpen);
+        for (int i = 0, size = contents.size(); i < size; i++) {
+          if (i > 0) {
+            writer.write(tokens.separator);
+          }
+          writer.write(contents.get(i));
+        }
+      } else {
+        writer.write(jsonName);
+        writer.write(tokens.nameEnd);
+      }
+
+      heldLength -= getLength(contents);
+      frontOpen = true;
+      frontArray = array;
+      frontMembers = contents.size();
+      contents.clear();
+    }
+
+    private void startFrontMember() throws IOException {
+      if (frontArray && (frontMembers > 0)) {
+        writer.write(tokens.separator);
+      }
+      frontMembers++;
+    }
+
+    private void closeFront() throws IOException {
+      if (frontArray) {
+        writer.write(tokens.arrayClose);
+      }
+
+      Group group = groups.remove(0);
+      groupsByName.remove(group.name);
+      writtenNames.add(group.name);
+      frontOpen = false;
+    }
+
+    /**
+     * @return the exception for a child whose group has already been
+     * written, as a single value or a closed array
+     */
+    private IOException repeatedGroup(Frame child) {
+      return new IOException("<" + child.qualifiedName + "> in <" + qualifiedName
+                             + "> comes after its group has been written; the lookahead ("
+                             + lookahead + ") is too small");
+    }
+
+    private void writePropertySeparator() throws IOException {
+      if (propertiesWritten++ > 0) {
+        writer.write(tokens.separator);
+      }
+    }
+
+    /**
+     * Checks that there's no text since the last child of a committed
+     * object, which would have made it mixed content.
+     */
+    private void checkObjectText() throws IOException {
+      if (text.length() > 0) {
+        throw new IOException("Text in <" + qualifiedName + "> comes after child elements that"
+                              + " have been written as an object; the lookahead ("
+                              + lookahead + ") is too small");
+      }
+    }
+
+    private void startMixedChild(Frame child) throws IOException {
+      writeMixedSeparator();
+      writer.write(tokens.objectOpen);
+      writer.write('"');
+      writer.write(child.jsonName);
+      writer.write(tokens.nameEnd);
+    }
+
+    private void writeTextRun() throws IOException {
+      if (text.length() > 0) {
+        writeMixedText(text.toString());
+        text.setLength(0);
+      }
+    }
+
+    private void writeMixedText(String content) throws IOException {
+      // Skip any whitespace-only text
+      if (content.trim().length() == 0) {
+        return;
+      }
+
+      writeMixedSeparator();
+      StringBuilder out = new StringBuilder();
+      emitter.appendMixedText(out, content, tokens);
+      writer.write(out.toString());
+    }
+
+    private void writeMixedSeparator() throws IOException {
+      if ((attributeCount + nodesWritten++) > 0) {
+        writer.write(tokens.separator);
+      }
+    }
+
+    /**
+     * Writes the rest of the content of a direct element.
+     */
+    void finishDirect() throws IOException {
+      if (mode == PENDING) {
+        writer.write(finish());
+      } else if (mode == MIXED) {
+        writeTextRun();
+        writer.write(tokens.arrayClose);
+      } else {
+        checkObjectText();
+        if (frontOpen) {
+          closeFront();
+        }
+        lastGroup = null;
+        writeHeldGroups();
+        writer.write(tokens.objectClose);
+      }
+    }
+
+    /**
+     * @return JSON for the content of an uncommitted element, as
+     * {@link JSONWriter#writeElementContent(org.dom4j.Element)} would
+     * write it.
+     */
+    String finish() {
+      completeTextRun();
+      StringBuilder out = new StringBuilder();
+
+      // Mixed content (element and text nodes) at the same level become
+      // array elements.
+      if (hasText && hasElements) {
+        finishMixedContent(out);
+        return out.toString();
+      }
+
+      // BASIC_OUTPUT & RABBIT_FISH: Text content goes directly in the value
+      // of an object.
+      if  (   (attributeCount == 0)
+          &&  !hasElements
+          &&  emitter.isTextValue()) {
+        JSONEscaper.appendString(out, getText());
+        return out.toString();
+      }
+
+      out.append(tokens.objectOpen);
+      int propertyCount = 0;
+      if (attributeCount > 0) {
+        out.append(attributes);
+        propertyCount++;
+      }
+
+      if (!hasElements) {
+        if (propertyCount++ > 0) {
+          out.append(tokens.separator);
+        }
+        out.append("\"$").append(tokens.nameEnd);
+        JSONEscaper.appendString(out, getText());
+      }
+
+      // Collect all children with the same name into an array which
+      // becomes the value of that property
+      HashMap<String, ArrayList<Integer>> groups = null;
+      ArrayList<ArrayList<Integer>> groupList = null;
+      int childCount = hasElements ? childNames.size() : 0;
+      if (childCount > 1) {
+        groups = new HashMap<String, ArrayList<Integer>>();
+        groupList = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < childCount; i++) {
+          String name = childNames.get(i);
+          ArrayList<Integer> group = groups.get(name);
+          if (group == null) {
+            group = new ArrayList<Integer>(1);
+            groups.put(name, group);
+            groupList.add(group);
+          }
+          group.add(i);
+        }
+      }
+
+      int groupCount = (groupList == null) ? childCount : groupList.size();
+      for (int i = 0; i < groupCount; i++) {
+        if (propertyCount++ > 0) {
+          out.append(tokens.separator);
+        }
+
+        ArrayList<Integer> group = (groupList == null) ? null : groupList.get(i);
+        if ((group == null) || (group.size() == 1)) {
+          int child = (group == null) ? i : group.get(0);
+          out.append('"');
+          out.append(childJsonNames.get(child));
+          out.append(tokens.nameEnd);
+          out.append(childContents.get(child));
+        } else {
+          out.append('"');
+          out.append(childNames.get(group.get(0)));
+          out.append(tokens.nameEnd);
+          out.append(tokens.arrayOpen);
+          for (int j = 0, size = group.size(); j < size; j++) {
+            if (j > 0) {
+              out.append(tokens.separator);
+            }
+            out.append(childContents.get(group.get(j)));
+          }
+          out.append(tokens.arrayClose);
+        }
+      }
+
+      out.append(tokens.objectClose);
+      return out.toString();
+    }
+
+    private void finishMixedContent(StringBuilder out) {
+      out.append(tokens.arrayOpen);
+      out.append(attributes);
+      for (int i = 0, nodesWritten = 0, childCount = childNames.size(); i < childCount; i++) {
+        String name = childNames.get(i);
+        String content = childContents.get(i);
+
+        // Skip any whitespace-only text
+        if ((name == null) && (content.trim().length() == 0)) {
+          continue;
+        }
+
+        if ((attributeCount + nodesWritten) > 0) {
+          out.append(tokens.separator);
+        }
+        if (name != null) {
+          out.append(tokens.objectOpen);
+          out.append('"');
+          out.append(childJsonNames.get(i));
+          out.append(tokens.nameEnd);
+          out.append(content);
+          out.append(tokens.objectClose);
+        } else {
+          emitter.appendMixedText(out, content, tokens);
+        }
+
+        nodesWritten++;
+      }
+      out.append(tokens.arrayClose);
+    }
+
+    /**
+     * @return text of an element with no child elements (which therefore
+     * has at most one text run).
+     */
+    private String getText() {
+      return childContents.isEmpty() ? "" : childContents.get(0);
+    }
+  }
+
+  private static int getLength(ArrayList<String> contents) {
+    int length = 0;
+    for (int i = 0, size = contents.size(); i < size; i++) {
+      length += contents.get(i).length();
+    }
+
+    return length;
+  }
+}
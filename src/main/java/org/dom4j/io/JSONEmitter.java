@@ -0,0 +1,181 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.dom4j.Node;
+
+/**
+ * The rules that differ between JSON formats: how attribute names are
+ * written, whether text-only elements become plain string values, and how
+ * text in mixed content is written. Each {@link JSONFormat} resolves once
+ * to one of the final subclasses below, so writers never compare formats
+ * while walking a document.
+ *
+ * A new format needs a new subclass here, and a case in
+ * {@link #forFormat(JSONFormat)}.
+ */
+abstract class JSONEmitter {
+
+  private static final JSONEmitter BASIC_OUTPUT = new BasicOutput();
+  private static final JSONEmitter RABBIT_FISH = new RabbitFish();
+  private static final JSONEmitter BADGER_FISH = new BadgerFish();
+
+  static JSONEmitter forFormat(JSONFormat format) {
+    switch (format) {
+    case BASIC_OUTPUT:
+      return BASIC_OUTPUT;
+    case RABBIT_FISH:
+      return RABBIT_FISH;
+    case BADGER_FISH:
+      return BADGER_FISH;
+    default:
+      throw new IllegalArgumentException("Unknown JSONFormat: " + format);
+    }
+  }
+
+  /**
+   * Writes the property name for an attribute, i.e.,
+   * <code>"name": </code> with the format's prefix.
+   */
+  abstract void writeAttributeName(Writer out, String qualifiedName, JSONTokens tokens)
+  throws IOException;
+
+  abstract void appendAttributeName(StringBuilder out, String qualifiedName, JSONTokens tokens);
+
+  /**
+   * @return what's written before attribute names, e.g. for binary output,
+   * where names aren't quoted.
+   */
+  abstract String getAttributePrefix();
+
+  /**
+   * @return true if a text-only element without attributes is written as
+   * just its (string) text, rather than as an object with a "$" property.
+   */
+  abstract boolean isTextValue();
+
+  /**
+   * Writes a text node that's part of mixed content, as an array element.
+   */
+  abstract void writeMixedText(JSONTokenSink out, Node text) throws IOException;
+
+  abstract void appendMixedText(StringBuilder out, String text, JSONTokens tokens);
+
+  /**
+   * Plain names for attributes, and text as plain strings.
+   */
+  private static final class BasicOutput extends JSONEmitter {
+    void writeAttributeName(Writer out, String qualifiedName, JSONTokens tokens)
+    throws IOException {
+      out.write('"');
+      out.write(qualifiedName);
+      out.write(tokens.nameEnd);
+    }
+
+    void appendAttributeName(StringBuilder out, String qualifiedName, JSONTokens tokens) {
+      out.append('"').append(qualifiedName).append(tokens.nameEnd);
+    }
+
+    String getAttributePrefix() {
+      return "";
+    }
+
+    boolean isTextValue() {
+      return true;
+    }
+
+    void writeMixedText(JSONTokenSink out, Node text) throws IOException {
+      out.writeNode(text);
+    }
+
+    void appendMixedText(StringBuilder out, String text, JSONTokens tokens) {
+      JSONEscaper.appendString(out, text);
+    }
+  }
+
+  /**
+   * "@" before attribute names, and text as plain strings.
+   */
+  private static final class RabbitFish extends JSONEmitter {
+    void writeAttributeName(Writer out, String qualifiedName, JSONTokens tokens)
+    throws IOException {
+      out.write("\"@");
+      out.write(qualifiedName);
+      out.write(tokens.nameEnd);
+    }
+
+    void appendAttributeName(StringBuilder out, String qualifiedName, JSONTokens tokens) {
+      out.append("\"@").append(qualifiedName).append(tokens.nameEnd);
+    }
+
+    String getAttributePrefix() {
+      return "@";
+    }
+
+    boolean isTextValue() {
+      return true;
+    }
+
+    void writeMixedText(JSONTokenSink out, Node text) throws IOException {
+      out.writeNode(text);
+    }
+
+    void appendMixedText(StringBuilder out, String text, JSONTokens tokens) {
+      JSONEscaper.appendString(out, text);
+    }
+  }
+
+  /**
+   * "@" before attribute names, and text always in a "$" property.
+   */
+  private static final class BadgerFish extends JSONEmitter {
+    void writeAttributeName(Writer out, String qualifiedName, JSONTokens tokens)
+    throws IOException {
+      out.write("\"@");
+      out.write(qualifiedName);
+      out.write(tokens.nameEnd);
+    }
+
+    void appendAttributeName(StringBuilder out, String qualifiedName, JSONTokens tokens) {
+      out.append("\"@").append(qualifiedName).append(tokens.nameEnd);
+    }
+
+    String getAttributePrefix() {
+      return "@";
+    }
+
+    boolean isTextValue() {
+      return false;
+    }
+
+    void writeMixedText(JSONTokenSink out, Node text) throws IOException {
+      out.writeOpen('{', 1);
+      out.writePropertyName("$");
+      out.writeNode(text);
+      out.writeClose('}');
+    }
+
+    void appendMixedText(StringBuilder out, String text, JSONTokens tokens) {
+      out.append(tokens.objectOpen).append("\"$").append(tokens.nameEnd);
+      JSONEscaper.appendString(out, text);
+      out.append(tokens.objectClose);
+    }
+  }
+}
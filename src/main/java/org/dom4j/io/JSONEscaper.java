@@ -0,0 +1,196 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Escapes text for use inside a JSON string. A 128-entry table gives the
+ * escape sequence (if any) for each ASCII character: quote, backslash and
+ * slash, plus all control characters, which JSON doesn't allow unescaped.
+ * Non-ASCII characters are written as-is, except for unpaired surrogates,
+ * which can't be encoded and so are written as "\\uXXXX" escapes.
+ *
+ * Unescaped runs are written straight from the source string, so escaping
+ * doesn't create any intermediate strings.
+ */
+public final class JSONEscaper {
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private static final String[] ESCAPES = new String[128];
+
+  static {
+    for (char c = 0; c < ' '; c++) {
+      ESCAPES[c] = unicodeEscape(c);
+    }
+    ESCAPES['\b'] = "\\b";
+    ESCAPES['\t'] = "\\t";
+    ESCAPES['\n'] = "\\n";
+    ESCAPES['\f'] = "\\f";
+    ESCAPES['\r'] = "\\r";
+    ESCAPES['"'] = "\\\"";
+    ESCAPES['/'] = "\\/";
+    ESCAPES['\\'] = "\\\\";
+  }
+
+  private JSONEscaper() {
+  }
+
+  /**
+   * @param text
+   *            text to escape
+   * @return <code>text</code> escaped for a JSON string (or
+   * <code>text</code> itself, if it needs no escaping).
+   */
+  public static String escape(String text) {
+    int length = text.length();
+    int i = nextEscape(text, 0, length);
+    if (i == length) {
+      return text;
+    }
+
+    StringBuilder result = new StringBuilder(length + 16);
+    append(result, text, 0, length);
+    return result.toString();
+  }
+
+  /**
+   * Writes the escaped form of <code>text</code> from <code>start</code>
+   * (inclusive) to <code>end</code> (exclusive).
+   */
+  public static void write(Writer out, String text, int start, int end)
+  throws IOException {
+    writeEscaped(out, text, start, end);
+  }
+
+  /**
+   * The same as {@link #write(Writer, String, int, int)}.
+   *
+   * @return number of characters that were escaped
+   */
+  static int writeEscaped(Writer out, String text, int start, int end)
+  throws IOException {
+    int escapeCount = 0;
+    int last = start;
+    for (int i = nextEscape(text, start, end); i < end; i = nextEscape(text, last, end)) {
+      if (i > last) {
+        out.write(text, last, i - last);
+      }
+      out.write(getEscape(text.charAt(i)));
+      escapeCount++;
+      last = i + 1;
+    }
+
+    if (end > last) {
+      out.write(text, last, end - last);
+    }
+
+    return escapeCount;
+  }
+
+  /**
+   * Appends <code>text</code>, trimmed and escaped, as a JSON string.
+   */
+  public static void appendString(StringBuilder out, String text) {
+    int end = trimEnd(text);
+    int start = trimStart(text, end);
+
+    out.append('"');
+    append(out, text, start, end);
+    out.append('"');
+  }
+
+  /**
+   * Appends the escaped form of <code>text</code> from <code>start</code>
+   * (inclusive) to <code>end</code> (exclusive).
+   */
+  public static void append(StringBuilder out, String text, int start, int end) {
+    int last = start;
+    for (int i = nextEscape(text, start, end); i < end; i = nextEscape(text, last, end)) {
+      out.append(text, last, i);
+      out.append(getEscape(text.charAt(i)));
+      last = i + 1;
+    }
+
+    out.append(text, last, end);
+  }
+
+  /**
+   * @return index of the first character <code>String.trim()</code> would
+   * keep (i.e., the first character above ' '), or <code>end</code>.
+   */
+  public static int trimStart(String text, int end) {
+    int start = 0;
+    while ((start < end) && (text.charAt(start) <= ' ')) {
+      start++;
+    }
+
+    return start;
+  }
+
+  /**
+   * @return index just past the last character <code>String.trim()</code>
+   * would keep, or 0.
+   */
+  public static int trimEnd(String text) {
+    int end = text.length();
+    while ((end > 0) && (text.charAt(end - 1) <= ' ')) {
+      end--;
+    }
+
+    return end;
+  }
+
+  /**
+   * @return index of the next character in <code>text</code> from
+   * <code>start</code> which has to be escaped, or <code>end</code>.
+   */
+  private static int nextEscape(String text, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c < 128) {
+        if (ESCAPES[c] != null) {
+          return i;
+        }
+      } else if ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE)) {
+        if  (   Character.isHighSurrogate(c)
+            &&  (i + 1 < end)
+            &&  Character.isLowSurrogate(text.charAt(i + 1))) {
+          i++;
+        } else {
+          return i;
+        }
+      }
+    }
+
+    return end;
+  }
+
+  private static String getEscape(char c) {
+    return (c < 128) ? ESCAPES[c] : unicodeEscape(c);
+  }
+
+  private static String unicodeEscape(char c) {
+    return new String(new char[] {
+      '\\', 'u',
+      HEX_DIGITS[(c >> 12) & 0xF], HEX_DIGITS[(c >> 8) & 0xF],
+      HEX_DIGITS[(c >> 4) & 0xF], HEX_DIGITS[c & 0xF]
+    });
+  }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dom4j.Attribute;
+import org.dom4j.CDATA;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.QName;
+import org.dom4j.Text;
+import org.dom4j.tree.DefaultAttribute;
+import org.dom4j.tree.DefaultCDATA;
+import org.dom4j.tree.DefaultElement;
+import org.dom4j.tree.DefaultText;
+
+/**
+ * <p>
+ * Thread-safe cache of the JSON written for the content of elements, so
+ * that re-serializing a mostly unchanged document copies the cached text of
+ * unchanged subtrees, and only walks the ones that changed. Fragments are
+ * kept separately for each output style (format, compact or padded, and
+ * human format settings), and in human format, for the indentation level
+ * they were written at.
+ * </p>
+ *
+ * <p>
+ * A fragment is only valid until its element, or anything inside it,
+ * changes. Either call {@link #invalidate(Element)} after changing an
+ * element, or build documents with {@link #getDocumentFactory()}, whose
+ * elements, attributes and text invalidate themselves when they're changed.
+ * Invalidating an element also invalidates its ancestors, since their
+ * fragments contain it. A fragment that's still being written when its
+ * element is invalidated isn't cached.
+ * </p>
+ *
+ * <p>
+ * Only objects and arrays of at least <code>minLength</code> characters are
+ * cached, and the cache holds at most <code>maxLength</code> characters in
+ * all; once it's full, new fragments aren't added. Cached elements are held
+ * weakly, so the fragments of a discarded document are dropped once it's
+ * been garbage collected.
+ * </p>
+ */
+public class JSONFragmentCache {
+  public static final int DEFAULT_MIN_LENGTH = 256;
+
+  public static final long DEFAULT_MAX_LENGTH = 64L * 1024 * 1024;
+
+  /** Number of element versions kept, each shared by many elements */
+  private static final int VERSION_STRIPES = 1024;
+
+  private final int minLength;
+
+  private final long maxLength;
+
+  /** Fragments by output style, then element */
+  private final ConcurrentHashMap<String, Fragments> styles = new ConcurrentHashMap<String, Fragments>();
+
+  /**
+   * Counts of invalidations, by a hash of the element, so that a fragment
+   * written while its element was invalidated can be told apart
+   */
+  private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+  private final AtomicLong length = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final TrackingDocumentFactory documentFactory = new TrackingDocumentFactory(this);
+
+  public JSONFragmentCache() {
+    this(DEFAULT_MIN_LENGTH, DEFAULT_MAX_LENGTH);
+  }
+
+  public JSONFragmentCache(int minLength, long maxLength) {
+    if ((minLength < 0) || (maxLength < 0)) {
+      throw new IllegalArgumentException("Lengths must be >= 0");
+    }
+
+    this.minLength = minLength;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * @return a factory for documents whose changes invalidate this cache,
+   * e.g. to pass to <code>new SAXReader(factory)</code>.
+   */
+  public DocumentFactory getDocumentFactory() {
+    return documentFactory;
+  }
+
+  /**
+   * @return the cached JSON for the content of <code>element</code> in
+   * <code>style</code>, written at indentation <code>level</code>, or null.
+   */
+  String getFragment(Element element, String style, int level) {
+    Fragments fragments = styles.get(style);
+    Fragment fragment = (fragments == null) ? null : fragments.get(element);
+    if ((fragment != null) && (fragment.level == level)) {
+      hits.increment();
+      return fragment.json;
+    }
+
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * @return the version of <code>element</code> to pass to
+   * {@link #putFragment(Element, String, int, String, long)}, taken before
+   * its content is written
+   */
+  long getVersion(Element element) {
+    return versions.get(getStripe(element));
+  }
+
+  /**
+   * Caches <code>json</code> for <code>element</code>, unless the element
+   * has been invalidated since <code>version</code> was taken.
+   */
+  void putFragment(Element element, String style, int level, String json, long version) {
+    int fragmentLength = json.length();
+    int stripe = getStripe(element);
+    if  (   (fragmentLength < minLength)
+        ||  (length.get() + fragmentLength > maxLength)
+        ||  (versions.get(stripe) != version)) {
+      return;
+    }
+
+    Fragments fragments = styles.get(style);
+    if (fragments == null) {
+      fragments = new Fragments();
+      Fragments existing = styles.putIfAbsent(style, fragments);
+      if (existing != null) {
+        fragments = existing;
+      }
+    }
+
+    Fragment fragment = new Fragment(level, json);
+    fragments.put(element, fragment);
+
+    // An invalidation that started after the check above may have missed it
+    if (versions.get(stripe) != version) {
+      fragments.remove(element, fragment);
+    }
+  }
+
+  /**
+   * Drops the fragments for <code>element</code> and all of its ancestors,
+   * in every style. Call this after changing an element that wasn't built
+   * by {@link #getDocumentFactory()}.
+   */
+  public void invalidate(Element element) {
+    // Versions go first, so that fragments being written now aren't put
+    // after they've been removed.
+    for (Element e = element; e != null; e = e.getParent()) {
+      versions.incrementAndGet(getStripe(e));
+    }
+
+    for (Fragments fragments : styles.values()) {
+      fragments.expunge();
+      for (Element e = element; e != null; e = e.getParent()) {
+        fragments.remove(e, null);
+      }
+    }
+  }
+
+  public void clear() {
+    for (Fragments fragments : styles.values()) {
+      fragments.clear();
+    }
+  }
+
+  /**
+   * @return number of fragments cached, over all styles
+   */
+  public int size() {
+    int result = 0;
+    for (Fragments fragments : styles.values()) {
+      fragments.expunge();
+      result += fragments.map.size();
+    }
+
+    return result;
+  }
+
+  /**
+   * @return total length of the cached fragments, in characters
+   */
+  public long getLength() {
+    return length.get();
+  }
+
+  public int getMinLength() {
+    return minLength;
+  }
+
+  public long getMaxLength() {
+    return maxLength;
+  }
+
+  /**
+   * @return number of elements written from a cached fragment
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return number of elements that had no cached fragment
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  private static int getStripe(Element element) {
+    return System.identityHashCode(element) & (VERSION_STRIPES - 1);
+  }
+
+  private static final class Fragment {
+    final int level;
+    final String json;
+
+    Fragment(int level, String json) {
+      this.level = level;
+      this.json = json;
+    }
+  }
+
+  /**
+   * The fragments of one style, by element. Elements are held weakly, and
+   * the fragments of collected ones are dropped on the next change.
+   */
+  private final class Fragments {
+    final ConcurrentHashMap<Object, Fragment> map = new ConcurrentHashMap<Object, Fragment>();
+
+    private final ReferenceQueue<Element> queue = new ReferenceQueue<Element>();
+
+    Fragment get(Element element) {
+      return map.get(new Lookup(element));
+    }
+
+    void put(Element element, Fragment fragment) {
+      expunge();
+      Fragment old = map.put(new ElementKey(element, queue), fragment);
+      length.addAndGet(fragment.json.length() - ((old == null) ? 0 : old.json.length()));
+    }
+
+    /**
+     * Removes the fragment for <code>element</code>, if it's
+     * <code>fragment</code> or <code>fragment</code> is null.
+     */
+    void remove(Element element, Fragment fragment) {
+      Lookup key = new Lookup(element);
+      if (fragment == null) {
+        fragment = map.remove(key);
+      } else if (!map.remove(key, fragment)) {
+        fragment = null;
+      }
+
+      if (fragment != null) {
+        length.addAndGet(-fragment.json.length());
+      }
+    }
+
+    /**
+     * Drops the fragments of elements that have been garbage collected.
+     */
+    void expunge() {
+      Reference<? extends Element> key;
+      while ((key = queue.poll()) != null) {
+        Fragment old = map.remove(key);
+        if (old != null) {
+          length.addAndGet(-old.json.length());
+        }
+      }
+    }
+
+    void clear() {
+      expunge();
+      for (Object key : map.keySet()) {
+        Fragment old = map.remove(key);
+        if (old != null) {
+          length.addAndGet(-old.json.length());
+        }
+      }
+    }
+  }
+
+  /**
+   * A weak map key, equal to another key (or {@link Lookup}) for the same
+   * element, and only to itself once the element's been collected.
+   */
+  private static final class ElementKey extends WeakReference<Element> {
+    private final int hash;
+
+    ElementKey(Element element, ReferenceQueue<Element> queue) {
+      super(element, queue);
+      this.hash = System.identityHashCode(element);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+
+      Element element = get();
+      if (element == null) {
+        return false;
+      } else if (o instanceof Lookup) {
+        return ((Lookup) o).element == element;
+      } else {
+        return (o instanceof ElementKey) && (((ElementKey) o).get() == element);
+      }
+    }
+  }
+
+  /**
+   * Finds the {@link ElementKey} for an element, without making another
+   * weak reference.
+   */
+  private static final class Lookup {
+    final Element element;
+
+    Lookup(Element element) {
+      this.element = element;
+    }
+
+    public int hashCode() {
+      return System.identityHashCode(element);
+    }
+
+    public boolean equals(Object o) {
+      return (o instanceof ElementKey) && (((ElementKey) o).get() == element);
+    }
+  }
+
+  /**
+   * Creates elements, attributes and text that invalidate a cache when
+   * they're changed.
+   */
+  private static final class TrackingDocumentFactory extends DocumentFactory {
+    private static final long serialVersionUID = 1L;
+
+    private final transient JSONFragmentCache cache;
+
+    TrackingDocumentFactory(JSONFragmentCache cache) {
+      this.cache = cache;
+    }
+
+    public Element createElement(QName qname) {
+      return new TrackedElement(qname, cache);
+    }
+
+    public Attribute createAttribute(Element owner, QName qname, String value) {
+      return new TrackedAttribute(qname, value, cache);
+    }
+
+    public Text createText(String text) {
+      return new TrackedText(text, cache);
+    }
+
+    public CDATA createCDATA(String text) {
+      return new TrackedCDATA(text, cache);
+    }
+  }
+
+  private static final class TrackedElement extends DefaultElement {
+    private static final long serialVersionUID = 1L;
+
+    private final transient JSONFragmentCache cache;
+
+    TrackedElement(QName qname, JSONFragmentCache cache) {
+      super(qname);
+      this.cache = cache;
+    }
+
+    protected void childAdded(Node node) {
+      super.childAdded(node);
+      cache.invalidate(this);
+    }
+
+    protected void childRemoved(Node node) {
+      super.childRemoved(node);
+      cache.invalidate(this);
+    }
+
+    public void setQName(QName qname) {
+      super.setQName(qname);
+      cache.invalidate(this);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void setContent(List content) {
+      super.setContent(content);
+      cache.invalidate(this);
+    }
+
+    public void clearContent() {
+      super.clearContent();
+      cache.invalidate(this);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void setAttributes(List attributes) {
+      super.setAttributes(attributes);
+      cache.invalidate(this);
+    }
+  }
+
+  private static final class TrackedAttribute extends DefaultAttribute {
+    private static final long serialVersionUID = 1L;
+
+    private final transient JSONFragmentCache cache;
+
+    TrackedAttribute(QName qname, String value, JSONFragmentCache cache) {
+      super(qname, value);
+      this.cache = cache;
+    }
+
+    public void setValue(String value) {
+      super.setValue(value);
+      if (getParent() != null) {
+        cache.invalidate(getParent());
+      }
+    }
+  }
+
+  private static final class TrackedText extends DefaultText {
+    private static final long serialVersionUID = 1L;
+
+    private final transient JSONFragmentCache cache;
+
+    TrackedText(String text, JSONFragmentCache cache) {
+      super(text);
+      this.cache = cache;
+    }
+
+    public void setText(String text) {
+      super.setText(text);
+      if (getParent() != null) {
+        cache.invalidate(getParent());
+      }
+    }
+  }
+
+  private static final class TrackedCDATA extends DefaultCDATA {
+    private static final long serialVersionUID = 1L;
+
+    private final transient JSONFragmentCache cache;
+
+    TrackedCDATA(String text, JSONFragmentCache cache) {
+      super(text);
+      this.cache = cache;
+    }
+
+    public void setText(String text) {
+      super.setText(text);
+      if (getParent() != null) {
+        cache.invalidate(getParent());
+      }
+    }
+  }
+}
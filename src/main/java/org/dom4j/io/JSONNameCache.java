@@ -0,0 +1,251 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe cache of XML qualified names translated into JSON property
+ * names (see {@link #translate(String)} for the rules).
+ *
+ * Entries are keyed by format and qualified name. We key on the qualified
+ * name string rather than on the <code>QName</code> itself, since
+ * <code>QName.equals()</code> ignores the prefix, which is part of the
+ * translated name. The cache is bounded: once it holds <code>maxSize</code>
+ * names for a format, further misses are translated but not stored, so
+ * documents with unbounded name sets can't grow it without limit.
+ */
+public class JSONNameCache {
+  public static final int DEFAULT_MAX_SIZE = 4096;
+
+  private static final JSONNameCache DEFAULT_CACHE = new JSONNameCache();
+
+  /* We prefix any element names in the following list with "_" to avoid
+   * JavaScript reserved words and client-side objects, methods,
+   * or properties in Netscape Navigator or Internet Explorer.
+   *
+   * (from http://www.javascripter.net/faq/reserved.htm)
+   */
+  private static final Set<String> JAVASCRIPT_RESERVED_WORDS
+    = new HashSet<String>(Arrays.asList(new String[] {
+      "abstract", "alert", "all", "anchor", "anchors", "area", "array",
+      "assign", "blur", "boolean", "break", "button", "byte", "case", "catch",
+      "char", "checkbox", "class", "clearTimeout", "clientInformation",
+      "close", "closed", "confirm", "const", "continue", "crypto", "date",
+      "debugger", "default", "defaultStatus", "delete", "do", "document",
+      "double", "element", "elements", "else", "embed", "embeds", "enum",
+      "escape", "eval", "event", "export", "extends", "false", "fileUpload",
+      "final", "finally", "float", "focus", "for", "form", "forms", "frame",
+      "frameRate", "frames", "function", "function", "getClass", "goto",
+      "hidden", "history", "if", "image", "images", "implements", "import",
+      "in", "innerHeight", "innerWidth", "instanceof", "int", "interface",
+      "isNaN", "java", "JavaArray", "JavaClass", "JavaObject", "JavaPackage",
+      "layer", "layers", "length", "link", "location", "long", "Math",
+      "mimeTypes", "name", "native", "navigate", "navigator", "netscape",
+      "new", "null", "Number", "Object", "offscreenBuffering", "onblur",
+      "onerror", "onfocus", "onload", "onunload", "open", "opener", "option",
+      "outerHeight", "outerWidth", "package", "packages", "pageXOffset",
+      "pageYOffset", "parent", "parseFloat", "parseInt", "password", "pkcs11",
+      "plugin", "private", "prompt", "protected", "prototype", "public",
+      "radio", "reset", "return", "screenX", "screenY", "scroll", "secure",
+      "select", "self", "setTimeout", "short", "static", "status", "String",
+      "submit", "sun", "super", "switch", "synchronized", "taint", "text",
+      "textarea", "this", "throw", "throws", "top", "toString", "transient",
+      "true", "try", "typeof", "unescape", "untaint", "valueOf", "var", "void",
+      "volatile", "while", "window", "with"
+    }));
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private final int maxSize;
+
+  private final Map<JSONFormat, ConcurrentHashMap<String, String>> names
+    = new EnumMap<JSONFormat, ConcurrentHashMap<String, String>>(JSONFormat.class);
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  public JSONNameCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  public JSONNameCache(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize must be >= 0: " + maxSize);
+    }
+
+    this.maxSize = maxSize;
+    for (JSONFormat format : JSONFormat.values()) {
+      names.put(format, new ConcurrentHashMap<String, String>());
+    }
+  }
+
+  /**
+   * @return the cache shared by all writers that weren't given their own
+   */
+  public static JSONNameCache getDefault() {
+    return DEFAULT_CACHE;
+  }
+
+  /**
+   * @param format of the output being written
+   * @param qualifiedName of the element
+   * @return JSON property name for <code>qualifiedName</code>, from the
+   * cache when possible.
+   */
+  public String getJsonName(JSONFormat format, String qualifiedName) {
+    String result = getCachedName(format, qualifiedName);
+    return (result != null) ? result : addName(format, qualifiedName);
+  }
+
+  /**
+   * @return the cached JSON property name for <code>qualifiedName</code>,
+   * or null (which counts as a miss).
+   */
+  String getCachedName(JSONFormat format, String qualifiedName) {
+    String result = names.get(format).get(qualifiedName);
+    if (result != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+
+    return result;
+  }
+
+  /**
+   * Translates <code>qualifiedName</code>, and caches the result if
+   * there's room.
+   */
+  String addName(JSONFormat format, String qualifiedName) {
+    ConcurrentHashMap<String, String> formatNames = names.get(format);
+    String result = translate(qualifiedName);
+    if (formatNames.size() < maxSize) {
+      formatNames.put(qualifiedName, result);
+    }
+
+    return result;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return number of names currently cached, over all formats
+   */
+  public int size() {
+    int result = 0;
+    for (ConcurrentHashMap<String, String> formatNames : names.values()) {
+      result += formatNames.size();
+    }
+
+    return result;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Empties the cache and resets the hit/miss counters.
+   */
+  public void clear() {
+    for (ConcurrentHashMap<String, String> formatNames : names.values()) {
+      formatNames.clear();
+    }
+
+    hits.reset();
+    misses.reset();
+  }
+
+  /**
+   * @param qualifiedName of element in document
+   * @return qualified name of element massaged into a valid JavaScript
+   * identifier name to make JSON output valid. We replace hyphens ("-")
+   * with underscores ("_"). All other invalid characters (e.g., "+")
+   * are replaced with Unicode code point sequence of the form "_uXXXX_"
+   * (e.g., "_u002B_"). JavaScript reserved words (e.g., "protected")
+   * are prefixed with underscores (e.g., "_protected").
+   */
+  public static String translate(String qualifiedName) {
+    String name = qualifiedName.replace('-', '_');
+
+    if (isJavaScriptReservedWord(name)) {
+      name = "_" + name;
+    }
+
+    StringBuilder buffer = null;
+    int i;
+    int last = 0;
+    int size = name.length();
+    for (i = 0; i < size; i++) {
+      char c = name.charAt(i);
+
+      if  (   (   (i == 0)
+              &&  (!Character.isJavaIdentifierStart(c)))
+          ||  (!Character.isJavaIdentifierPart(c))) {
+        int codePoint = Character.codePointAt(name, i);
+        if (buffer == null) {
+          buffer = new StringBuilder(size + 16);
+        }
+
+        buffer.append(name, last, i);
+        appendCodePoint(buffer, codePoint);
+        last = i + 1;
+      }
+    }
+
+    if (buffer == null) {
+      return name;
+    }
+
+    if (last < size) {
+      buffer.append(name, last, size);
+    }
+
+    return buffer.toString();
+  }
+
+  public static boolean isJavaScriptReservedWord(String name) {
+    return JAVASCRIPT_RESERVED_WORDS.contains(name);
+  }
+
+  /**
+   * Appends <code>codePoint</code> as "_uXXXX_", the same as
+   * <code>String.format("_u%04X_", codePoint)</code> would.
+   */
+  private static void appendCodePoint(StringBuilder buffer, int codePoint) {
+    buffer.append("_u");
+    int digits = Math.max(4, (32 - Integer.numberOfLeadingZeros(codePoint) + 3) / 4);
+    for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+      buffer.append(HEX_DIGITS[(codePoint >> shift) & 0xF]);
+    }
+    buffer.append('_');
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import org.dom4j.Node;
+
+/**
+ * Statistics about a node and its JSON output, filled in by
+ * {@link JSONWriterConfig#measure(Node, JSONOutputStats)}, for choosing
+ * buffer sizes and how to serialize before writing anything. They're
+ * counted as the output is encoded, so they only cover what's written.
+ */
+public class JSONOutputStats {
+
+  private long byteLength;
+
+  private int elementCount;
+
+  private int attributeCount;
+
+  private int maxDepth;
+
+  private int largestText;
+
+  /**
+   * @return exact length of the encoded JSON output, in bytes
+   */
+  public long getByteLength() {
+    return byteLength;
+  }
+
+  public int getElementCount() {
+    return elementCount;
+  }
+
+  public int getAttributeCount() {
+    return attributeCount;
+  }
+
+  /**
+   * @return depth of the most deeply nested element, where a root element
+   * is at depth 1
+   */
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * @return length in characters of the longest text or attribute value
+   * written (before trimming or escaping). That's the largest single value
+   * that will be written.
+   */
+  public int getLargestText() {
+    return largestText;
+  }
+
+  public void clear() {
+    byteLength = 0;
+    elementCount = 0;
+    attributeCount = 0;
+    maxDepth = 0;
+    largestText = 0;
+  }
+
+  void setByteLength(long byteLength) {
+    this.byteLength = byteLength;
+  }
+
+  /**
+   * Adds the counts for a write, as kept by the {@link JSONTreeWalker}
+   * that wrote it.
+   */
+  void addCounts(int elements, int attributes, int depth) {
+    elementCount += elements;
+    attributeCount += attributes;
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  void addText(int length) {
+    largestText = Math.max(largestText, length);
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+/**
+ * Writes the properties of one large JSON object using a
+ * <code>ForkJoinPool</code>. The object's child elements are split into
+ * chunks at property (sibling group) boundaries, and long arrays are split
+ * further into runs of consecutive elements. Each chunk is serialized by a
+ * pool thread into its own buffer, and the buffers are written in document
+ * order. Only a bounded number of chunks are in flight at once, so memory
+ * use doesn't grow with the size of the object.
+ */
+final class JSONParallelWriter {
+
+  /** Most elements in one chunk */
+  private static final int MAX_CHUNK_SIZE = 256;
+
+  /** Chunks in flight per pool thread */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final ForkJoinPool pool;
+
+  /** Configuration for chunk writers, with parallelism turned off */
+  private final JSONWriterConfig chunkConfig;
+
+  JSONParallelWriter(ForkJoinPool pool, JSONWriterConfig chunkConfig) {
+    this.pool = pool;
+    this.chunkConfig = chunkConfig;
+  }
+
+  /**
+   * Writes all of the <code>properties</code> of an object whose opening
+   * bracket has already been written to <code>out</code>. The object is at
+   * <code>depth</code>, for metrics.
+   */
+  void writeProperties(JSONWriter out, JSONPropertyGroups properties, int depth)
+  throws IOException {
+    int level = out.getIndentLevel();
+    int maxInFlight = pool.getParallelism() * CHUNKS_PER_THREAD;
+    Chunks chunks = new Chunks(properties, level, depth, maxInFlight);
+    ArrayDeque<ForkJoinTask<String>> inFlight = new ArrayDeque<ForkJoinTask<String>>();
+
+    try {
+      for (int i = 0, propertyCount = properties.size(); i < propertyCount; i++) {
+        if (i > 0) {
+          out.writeSeparator();
+        }
+
+        ArrayList<Node> property = properties.get(i);
+        Node first = property.get(0);
+        if (!(first instanceof Element)) {
+          out.writeNode(first);
+        } else if (property.size() == 1) {
+          out.writeElementName((Element)first);
+          writeNextChunk(out, chunks, inFlight);
+        } else {
+          out.writePropertyName(first.getName());
+          out.writeOpen('[');
+          for (int j = 0, size = property.size(); j < size; j += chunks.chunkSize) {
+            if (j > 0) {
+              out.writeSeparator();
+            }
+            writeNextChunk(out, chunks, inFlight);
+          }
+          out.writeClose(']');
+        }
+      }
+    } finally {
+      for (ForkJoinTask<String> task : inFlight) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  private void writeNextChunk(JSONWriter out, Chunks chunks,
+                              ArrayDeque<ForkJoinTask<String>> inFlight)
+  throws IOException {
+    while ((inFlight.size() < chunks.maxInFlight) && chunks.hasNext()) {
+      inFlight.add(pool.submit(chunks.next()));
+    }
+
+    try {
+      out.writeRaw(inFlight.remove().join());
+    } catch (ChunkException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * The chunks for an object's properties, in document order.
+   */
+  private final class Chunks {
+    final JSONPropertyGroups properties;
+    final int level;
+    final int depth;
+    final int maxInFlight;
+    final int chunkSize;
+
+    int propertyIndex = 0;
+    int elementIndex = 0;
+
+    Chunks(JSONPropertyGroups properties, int level, int depth, int maxInFlight) {
+      this.properties = properties;
+      this.level = level;
+      this.depth = depth;
+      this.maxInFlight = maxInFlight;
+
+      int elementCount = 0;
+      for (int i = 0, propertyCount = properties.size(); i < propertyCount; i++) {
+        elementCount += properties.get(i).size();
+      }
+      chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, elementCount / maxInFlight));
+      skipNonElements();
+    }
+
+    boolean hasNext() {
+      return propertyIndex < properties.size();
+    }
+
+    ChunkTask next() {
+      ArrayList<Node> property = properties.get(propertyIndex);
+      int from = elementIndex;
+      int to = Math.min(property.size(), from + chunkSize);
+
+      // Array elements are one level deeper than the property itself
+      int chunkLevel = (property.size() == 1) ? level : level + 1;
+      ChunkTask task = new ChunkTask(property.subList(from, to), chunkLevel, depth);
+
+      elementIndex = to;
+      if (elementIndex == property.size()) {
+        propertyIndex++;
+        elementIndex = 0;
+        skipNonElements();
+      }
+      return task;
+    }
+
+    private void skipNonElements() {
+      while  (   (propertyIndex < properties.size())
+             &&  !(properties.get(propertyIndex).get(0) instanceof Element)) {
+        propertyIndex++;
+      }
+    }
+  }
+
+  /**
+   * Serializes the content of a run of sibling elements, separated as
+   * array elements.
+   */
+  private final class ChunkTask extends RecursiveTask<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Node> elements;
+    private final int level;
+    private final int depth;
+
+    ChunkTask(List<Node> elements, int level, int depth) {
+      this.elements = elements;
+      this.level = level;
+      this.depth = depth;
+    }
+
+    protected String compute() {
+      StringBuilderWriter buffer = new StringBuilderWriter();
+      JSONWriter writer = chunkConfig.acquireWriter(buffer);
+      writer.setIndentLevel(level);
+      try {
+        for (int i = 0, size = elements.size(); i < size; i++) {
+          if (i > 0) {
+            writer.writeSeparator();
+          }
+          writer.writeElementContent((Element)elements.get(i));
+        }
+        writer.addCountsToMetrics(depth);
+      } catch (IOException e) {
+        throw new ChunkException(e);
+      } finally {
+        JSONWriterConfig.releaseWriter(writer);
+      }
+
+      return buffer.toString();
+    }
+  }
+
+  /**
+   * Carries an IOException out of a chunk task.
+   */
+  private static final class ChunkException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    ChunkException(IOException cause) {
+      super(cause);
+    }
+
+    public IOException getCause() {
+      return (IOException)super.getCause();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>
+ * Element paths, like <code>/feed/entry/debug</code>, whose elements are
+ * dropped by a {@link JSONContentHandler} as they're parsed (see
+ * {@link JSONContentHandler#setPathFilter(JSONPathFilter)}). A dropped
+ * element's attributes, text and descendants are never buffered or
+ * converted, so the output is as if it wasn't in the XML at all. The top
+ * element is the exception: as with a {@link JSONProjection} that doesn't
+ * select it, it's still written, but with no content.
+ * </p>
+ *
+ * <p>
+ * Paths are absolute, with one step per element: its qualified name (with
+ * prefix, if any, as in the XML), or <code>*</code> for any element. The
+ * paths are compiled into a tree of steps, so each element costs a lookup
+ * per path prefix its parent matched, and nothing once no path can match.
+ * A filter is immutable, and can be shared by many handlers and threads.
+ * </p>
+ */
+public class JSONPathFilter {
+
+  private final List<String> paths;
+
+  /** The step before each path's first element */
+  private final Step root = new Step();
+
+  public JSONPathFilter(String... paths) {
+    this(Arrays.asList(paths));
+  }
+
+  /**
+   * @throws IllegalArgumentException
+   *             if a path isn't absolute, or has an empty step
+   */
+  public JSONPathFilter(Collection<String> paths) {
+    this.paths = Collections.unmodifiableList(new ArrayList<String>(paths));
+    for (String path : this.paths) {
+      if (!path.startsWith("/") || (path.length() == 1)) {
+        throw new IllegalArgumentException("Path must be absolute: " + path);
+      }
+
+      Step step = root;
+      for (String name : path.substring(1).split("/", -1)) {
+        if (name.length() == 0) {
+          throw new IllegalArgumentException("Empty step in path: " + path);
+        }
+        step = step.addChild(name);
+      }
+      step.drop = true;
+    }
+  }
+
+  public List<String> getPaths() {
+    return paths;
+  }
+
+  /**
+   * @return the steps matched before the top element
+   */
+  List<Step> getRootSteps() {
+    return Collections.singletonList(root);
+  }
+
+  /**
+   * Finds the steps matched by an element named <code>qualifiedName</code>
+   * whose parent matched <code>from</code>, and adds them to
+   * <code>to</code>.
+   *
+   * @return true if the element is to be dropped, in which case
+   * <code>to</code> may be incomplete
+   */
+  static boolean advance(List<Step> from, String qualifiedName, List<Step> to) {
+    for (int i = 0, size = from.size(); i < size; i++) {
+      Step step = from.get(i);
+      Step next = step.children.get(qualifiedName);
+      if (next != null) {
+        if (next.drop) {
+          return true;
+        }
+        to.add(next);
+      }
+
+      next = step.any;
+      if (next != null) {
+        if (next.drop) {
+          return true;
+        }
+        to.add(next);
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * A path prefix, with the steps that can follow it.
+   */
+  static final class Step {
+    final HashMap<String, Step> children = new HashMap<String, Step>();
+
+    /** Step for "*", or null */
+    Step any;
+
+    /** True if a path ends here */
+    boolean drop;
+
+    Step addChild(String name) {
+      if (name.equals("*")) {
+        if (any == null) {
+          any = new Step();
+        }
+        return any;
+      }
+
+      Step child = children.get(name);
+      if (child == null) {
+        child = new Step();
+        children.put(name, child);
+      }
+      return child;
+    }
+  }
+}
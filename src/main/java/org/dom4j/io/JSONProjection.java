@@ -0,0 +1,488 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.QName;
+import org.dom4j.XPath;
+
+/**
+ * <p>
+ * Limits what's written to the parts of a document selected by dom4j
+ * XPath expressions (see {@link JSONWriterConfig#withProjection(JSONProjection)}),
+ * without copying those parts into a new tree first.
+ * </p>
+ *
+ * <p>
+ * An element selected by an include expression is written with all of its
+ * content, and its ancestors are written with just enough content to hold
+ * it: the selected attributes, text and child elements on the way to it.
+ * With no include expressions, everything is included. Nodes selected by
+ * an exclude expression are never written, even inside an included
+ * element. The top element is always written, if only as empty content.
+ * </p>
+ *
+ * <p>
+ * Exclude expressions that are simple paths, made of child (<code>/</code>)
+ * and descendant (<code>//</code>) steps with names or <code>*</code>,
+ * maybe ending with an attribute step and maybe joined with
+ * <code>|</code>, are compiled into steps that each node is matched
+ * against as it's written. They cost nothing for the nodes that aren't.
+ * Other expressions are evaluated with dom4j's XPath support (which needs
+ * jaxen) once per write, so their cost depends on the expressions
+ * themselves: absolute child paths like <code>/order/item/price</code> only
+ * look at the nodes along them, while <code>//price</code> looks at every
+ * node. That includes every include expression, since an included node has
+ * to be found before its ancestors are written. Writing then skips
+ * unselected subtrees without visiting them.
+ * </p>
+ *
+ * <p>
+ * Relative expressions are evaluated from the element being written.
+ * Prefixes in the expressions must be declared with the
+ * <code>namespaceURIs</code> constructor argument. A projection is
+ * immutable, and can be shared by many configs and threads.
+ * </p>
+ */
+public class JSONProjection {
+
+  /** Everything in the element is written */
+  static final int ALL = 0;
+
+  /** The element is included, but some of its descendants are excluded */
+  static final int FILTERED = 1;
+
+  /** The element is only written because it's on the way to an included node */
+  static final int PATH = 2;
+
+  /** The element isn't written */
+  static final int SKIP = 3;
+
+  /** Set in the steps of a node that's matched by a compiled exclude path */
+  static final long MATCHED = 1L << 63;
+
+  /** Most steps of compiled exclude paths, one bit each */
+  private static final int MAX_STEPS = 63;
+
+  private final List<String> includes;
+
+  private final List<String> excludes;
+
+  private final XPath[] includePaths;
+
+  private final XPath[] excludePaths;
+
+  /** Steps of the exclude expressions that are simple paths */
+  private final Step[] excludeSteps;
+
+  /** First steps of absolute and relative exclude paths */
+  private final long absoluteStart;
+
+  private final long relativeStart;
+
+  public JSONProjection(List<String> includes, List<String> excludes) {
+    this(includes, excludes, Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * @param includes
+   *            expressions selecting what to write, or an empty list to
+   *            write everything that isn't excluded
+   * @param excludes
+   *            expressions selecting what not to write
+   * @param namespaceURIs
+   *            namespace URI for each prefix used in the expressions
+   *
+   * @throws org.dom4j.InvalidXPathException
+   *             if an expression is invalid
+   */
+  public JSONProjection(List<String> includes, List<String> excludes, Map<String, String> namespaceURIs) {
+    this.includes = Collections.unmodifiableList(new ArrayList<String>(includes));
+    this.excludes = Collections.unmodifiableList(new ArrayList<String>(excludes));
+    this.includePaths = compile(this.includes, namespaceURIs);
+
+    // Exclude paths are matched as nodes are written, if they can be
+    List<Step> steps = new ArrayList<Step>();
+    List<String> others = new ArrayList<String>();
+    long absolute = 0;
+    long relative = 0;
+    for (String expression : this.excludes) {
+      List<Step> compiled = new ArrayList<Step>();
+      long absoluteFirst = 0;
+      long relativeFirst = 0;
+      for (String path : expression.split("\\|")) {
+        path = path.trim();
+        int first = steps.size() + compiled.size();
+        if (!compileSteps(path, namespaceURIs, compiled)) {
+          compiled = null;
+          break;
+        }
+
+        if (path.startsWith("/")) {
+          absoluteFirst |= 1L << first;
+        } else {
+          relativeFirst |= 1L << first;
+        }
+      }
+
+      if ((compiled == null) || (steps.size() + compiled.size() > MAX_STEPS)) {
+        others.add(expression);
+      } else {
+        steps.addAll(compiled);
+        absolute |= absoluteFirst;
+        relative |= relativeFirst;
+      }
+    }
+
+    this.excludePaths = compile(others, namespaceURIs);
+    this.excludeSteps = steps.toArray(new Step[steps.size()]);
+    this.absoluteStart = absolute;
+    this.relativeStart = relative;
+  }
+
+  private static XPath[] compile(List<String> expressions, Map<String, String> namespaceURIs) {
+    XPath[] result = new XPath[expressions.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = DocumentHelper.createXPath(expressions.get(i));
+
+      // Otherwise dom4j takes the prefixes from the first node it sees, and
+      // keeps them.
+      result[i].setNamespaceURIs(new HashMap<String, String>(namespaceURIs));
+    }
+
+    return result;
+  }
+
+  /**
+   * Adds the steps of <code>path</code> to <code>steps</code>, if it's a
+   * simple path (see above).
+   * 
+   * @return true if the steps were added, or false if <code>path</code>
+   * has to be evaluated as XPath (and <code>steps</code> is unchanged)
+   */
+  private static boolean compileSteps(String path, Map<String, String> namespaceURIs, List<Step> steps) {
+    String[] parts = path.split("/", -1);
+    int start = 0;
+    if (path.startsWith("/")) {
+      start = 1;
+    }
+
+    List<Step> compiled = new ArrayList<Step>();
+    boolean descendant = false;
+    for (int i = start; i < parts.length; i++) {
+      String part = parts[i];
+      if (part.length() == 0) {
+        // An empty part is the middle of "//", which can't end a path
+        if (descendant || (i == parts.length - 1)) {
+          return false;
+        }
+        descendant = true;
+        continue;
+      }
+
+      boolean attribute = part.startsWith("@");
+      if (attribute) {
+        part = part.substring(1);
+      }
+
+      String localName = null;
+      String namespaceURI = null;
+      if (!part.equals("*")) {
+        int colon = part.indexOf(':');
+        String prefix = (colon < 0) ? "" : part.substring(0, colon);
+        localName = part.substring(colon + 1);
+        namespaceURI = (colon < 0) ? "" : namespaceURIs.get(prefix);
+        if ((namespaceURI == null) || !isName(prefix) || (localName.length() == 0) || !isName(localName)) {
+          return false;
+        }
+      }
+
+      // Nothing can follow an attribute
+      if (!compiled.isEmpty() && compiled.get(compiled.size() - 1).attribute) {
+        return false;
+      }
+
+      compiled.add(new Step(localName, namespaceURI, descendant, attribute));
+      descendant = false;
+    }
+
+    if (compiled.isEmpty()) {
+      return false;
+    }
+
+    compiled.get(compiled.size() - 1).last = true;
+    steps.addAll(compiled);
+    return true;
+  }
+
+  /**
+   * @return true if <code>text</code> only has characters that can be in
+   * an XML name (checked loosely), so that it's a name test
+   */
+  private static boolean isName(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (Character.isLetter(c) || (c == '_')) {
+        continue;
+      }
+
+      // "." and ".." are steps of their own, not names
+      if ((i == 0) || (!Character.isDigit(c) && (c != '-') && (c != '.'))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public List<String> getIncludes() {
+    return includes;
+  }
+
+  public List<String> getExcludes() {
+    return excludes;
+  }
+
+  /**
+   * @return the nodes to write, for a write starting at <code>context</code>
+   */
+  Selection select(Element context) {
+    Selection selection = new Selection(includePaths.length == 0, excludeSteps);
+    for (XPath path : includePaths) {
+      for (Object node : path.selectNodes(context)) {
+        if (node instanceof Node) {
+          selection.include((Node) node);
+        }
+      }
+    }
+
+    for (XPath path : excludePaths) {
+      for (Object node : path.selectNodes(context)) {
+        if (node instanceof Node) {
+          selection.exclude((Node) node);
+        }
+      }
+    }
+
+    // The compiled exclude paths are followed from the document down to
+    // the context, whose own steps include the first relative ones.
+    if (excludeSteps.length > 0) {
+      ArrayList<Element> ancestors = new ArrayList<Element>();
+      for (Element parent = context.getParent(); parent != null; parent = parent.getParent()) {
+        ancestors.add(parent);
+      }
+
+      long states = absoluteStart;
+      for (int i = ancestors.size() - 1; i >= 0; i--) {
+        states = selection.enter(states, ancestors.get(i)) & ~MATCHED;
+      }
+      selection.contextStates = selection.enter(states, context) | relativeStart;
+    }
+
+    return selection;
+  }
+
+  /**
+   * A step of a compiled exclude path.
+   */
+  private static final class Step {
+    /** Name to match, or null for any name */
+    final String localName;
+
+    final String namespaceURI;
+
+    /** True if the step is preceded by "//" */
+    final boolean descendant;
+
+    final boolean attribute;
+
+    /** True for the last step of its path */
+    boolean last;
+
+    Step(String localName, String namespaceURI, boolean descendant, boolean attribute) {
+      this.localName = localName;
+      this.namespaceURI = namespaceURI;
+      this.descendant = descendant;
+      this.attribute = attribute;
+    }
+
+    boolean matches(QName name) {
+      return  (localName == null)
+          ||  (localName.equals(name.getName()) && namespaceURI.equals(name.getNamespaceURI()));
+    }
+  }
+
+  /**
+   * Nodes selected by a projection's expressions for one write, with
+   * their ancestors, so that what's written can be decided one element at
+   * a time.
+   */
+  static final class Selection {
+    private boolean includeAll;
+
+    /** Steps of the projection's compiled exclude paths */
+    private final Step[] steps;
+
+    /** Steps matched so far at the element a write starts at */
+    private long contextStates = 0;
+
+    private final Set<Node> included = newIdentitySet();
+
+    /** Ancestors of included nodes */
+    private final Set<Node> paths = newIdentitySet();
+
+    private final Set<Node> excluded = newIdentitySet();
+
+    /** Ancestors of excluded nodes */
+    private final Set<Node> filtered = newIdentitySet();
+
+    Selection(boolean includeAll, Step[] steps) {
+      this.includeAll = includeAll;
+      this.steps = steps;
+    }
+
+    /**
+     * @return the compiled exclude steps to try on the children of the
+     * element a write starts at, and {@link #MATCHED} if it's excluded
+     */
+    long getContextStates() {
+      return contextStates;
+    }
+
+    /**
+     * Follows the compiled exclude paths from an element to its child.
+     * 
+     * @param states
+     *            one bit for each step to try on the element's children
+     *            (and its attributes, for attribute steps)
+     * @return the steps to try on the children of <code>element</code>,
+     * and {@link #MATCHED} if it's excluded
+     */
+    long enter(long states, Element element) {
+      long result = 0;
+      for (long remaining = states & ~MATCHED; remaining != 0; remaining &= remaining - 1) {
+        int index = Long.numberOfTrailingZeros(remaining);
+        Step step = steps[index];
+
+        // A step after "//" can still match further down
+        if (step.descendant) {
+          result |= 1L << index;
+        }
+
+        if (!step.attribute && step.matches(element.getQName())) {
+          result |= step.last ? MATCHED : (1L << (index + 1));
+        }
+      }
+
+      return result;
+    }
+
+    /**
+     * @return true if a compiled exclude path ends at <code>attribute</code>,
+     * of the element whose steps are <code>states</code>
+     */
+    private boolean isMatched(long states, Attribute attribute) {
+      for (long remaining = states & ~MATCHED; remaining != 0; remaining &= remaining - 1) {
+        Step step = steps[Long.numberOfTrailingZeros(remaining)];
+        if (step.attribute && step.matches(attribute.getQName())) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    private static Set<Node> newIdentitySet() {
+      return Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    }
+
+    void include(Node node) {
+      if (node instanceof Document) {
+        includeAll = true;
+        return;
+      }
+
+      included.add(node);
+      Element parent = node.getParent();
+      while ((parent != null) && paths.add(parent)) {
+        parent = parent.getParent();
+      }
+    }
+
+    void exclude(Node node) {
+      excluded.add(node);
+      Element parent = node.getParent();
+      while ((parent != null) && filtered.add(parent)) {
+        parent = parent.getParent();
+      }
+    }
+
+    /**
+     * @param inIncluded
+     *            true if the element's parent is included
+     * @param states
+     *            the element's steps, from {@link #enter(long, Element)}
+     * @return how much of <code>element</code> to write: {@link #ALL},
+     * {@link #FILTERED}, {@link #PATH} or {@link #SKIP}
+     */
+    int classify(Element element, boolean inIncluded, long states) {
+      if (((states & MATCHED) != 0) || excluded.contains(element)) {
+        return SKIP;
+      }
+
+      // While an exclude path could still match below it, an element is
+      // filtered.
+      if (inIncluded || includeAll || included.contains(element)) {
+        return ((states != 0) || filtered.contains(element)) ? FILTERED : ALL;
+      }
+
+      return paths.contains(element) ? PATH : SKIP;
+    }
+
+    /**
+     * @param parentStates
+     *            steps of the element that <code>node</code> belongs to
+     * @return true if <code>node</code>, a child or attribute of an element
+     * that's being filtered, is written
+     */
+    boolean isWritten(Node node, boolean inIncluded, long parentStates) {
+      if (node instanceof Element) {
+        Element element = (Element) node;
+        return classify(element, inIncluded, enter(parentStates, element)) != SKIP;
+      }
+
+      if ((node instanceof Attribute) && isMatched(parentStates, (Attribute) node)) {
+        return false;
+      }
+
+      return  !excluded.contains(node)
+          &&  (inIncluded || includeAll || included.contains(node));
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+/**
+ * The properties of a JSON object being built from an element, in the order
+ * they were first added. Child elements with the same name are collected
+ * into a single group (which becomes an array), found via a hash lookup
+ * rather than by scanning the existing groups. Attributes always get a group
+ * of their own.
+ *
+ * An instance is meant to be cleared and reused for one element after
+ * another: the group lists and the hash index are kept, so once they've
+ * grown to fit, adding properties doesn't allocate.
+ */
+public class JSONPropertyGroups {
+
+  /** Group lists, of which the first size are in use */
+  private final ArrayList<ArrayList<Node>> groups = new ArrayList<ArrayList<Node>>();
+
+  private int size = 0;
+
+  /** Element name of each group in use, or null for an attribute */
+  private String[] groupNames = new String[8];
+
+  /** Open addressing index from element name to group index */
+  private int[] slotGroups = new int[16];
+
+  /** A slot is only in use if its stamp matches the current generation */
+  private int[] slotStamps = new int[16];
+
+  private int generation = 1;
+
+  private int elementGroupCount = 0;
+
+  public void add(Node property) {
+    if (property instanceof Element) {
+      String name = property.getName();
+      int group = findGroup(name);
+      if (group >= 0) {
+        groups.get(group).add(property);
+        return;
+      }
+
+      group = addGroup(property, name);
+      if (++elementGroupCount * 2 > slotGroups.length) {
+        rehash(slotGroups.length * 2);
+      } else {
+        putSlot(name, group);
+      }
+    } else {
+      addGroup(property, null);
+    }
+  }
+
+  /**
+   * @return number of groups (i.e., JSON properties)
+   */
+  public int size() {
+    return size;
+  }
+
+  public ArrayList<Node> get(int index) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    return groups.get(index);
+  }
+
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      groups.get(i).clear();
+      groupNames[i] = null;
+    }
+    size = 0;
+    elementGroupCount = 0;
+
+    if (++generation == 0) {
+      // Stamps have wrapped around, so really clear them
+      Arrays.fill(slotStamps, 0);
+      generation = 1;
+    }
+  }
+
+  private int addGroup(Node property, String name) {
+    if (size == groups.size()) {
+      groups.add(new ArrayList<Node>(1));
+    }
+    if (size == groupNames.length) {
+      groupNames = Arrays.copyOf(groupNames, size * 2);
+    }
+
+    groups.get(size).add(property);
+    groupNames[size] = name;
+    return size++;
+  }
+
+  private int findGroup(String name) {
+    int mask = slotGroups.length - 1;
+    for (int slot = name.hashCode() & mask; slotStamps[slot] == generation; slot = (slot + 1) & mask) {
+      int group = slotGroups[slot];
+      if (name.equals(groupNames[group])) {
+        return group;
+      }
+    }
+
+    return -1;
+  }
+
+  private void putSlot(String name, int group) {
+    int mask = slotGroups.length - 1;
+    int slot = name.hashCode() & mask;
+    while (slotStamps[slot] == generation) {
+      slot = (slot + 1) & mask;
+    }
+
+    slotGroups[slot] = group;
+    slotStamps[slot] = generation;
+  }
+
+  private void rehash(int capacity) {
+    slotGroups = new int[capacity];
+    slotStamps = new int[capacity];
+    generation = 1;
+    for (int i = 0; i < size; i++) {
+      if (groupNames[i] != null) {
+        putSlot(groupNames[i], i);
+      }
+    }
+  }
+}
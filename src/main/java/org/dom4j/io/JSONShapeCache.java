@@ -0,0 +1,214 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.QName;
+
+/**
+ * Thread-safe cache of the shapes of elements whose content is all child
+ * elements, keyed by element <code>QName</code>.
+ *
+ * A shape is the sequence of runs of same-named children, e.g. one
+ * <code>customer</code> then two or more <code>line</code>s, and whether
+ * each run is written as a single value or as an array. When an element
+ * matches the cached shape for its name, {@link JSONWriter} writes its
+ * properties in one streaming pass, without grouping its children. An
+ * element that doesn't match (a missing or repeated child, children in a
+ * different order, etc.) is written the general way, and its own shape
+ * replaces the cached one. Either way the output is the same.
+ *
+ * Only elements whose same-named children are next to each other have a
+ * shape, since otherwise the children would have to be regrouped. The
+ * cache is bounded: once it holds <code>maxSize</code> shapes, new names
+ * aren't added.
+ */
+public class JSONShapeCache {
+  public static final int DEFAULT_MAX_SIZE = 1024;
+
+  private final int maxSize;
+
+  private final ConcurrentHashMap<QName, Shape> shapes = new ConcurrentHashMap<QName, Shape>();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  public JSONShapeCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  public JSONShapeCache(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize must be >= 0: " + maxSize);
+    }
+
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return the cached shape for <code>element</code> if its children
+   * match it, or null.
+   */
+  Shape getShape(Element element) {
+    Shape shape = shapes.get(element.getQName());
+    if ((shape != null) && shape.matches(element)) {
+      hits.incrementAndGet();
+      return shape;
+    }
+
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Records the shape of <code>element</code>, whose attributes and child
+   * element groups are <code>properties</code>, if its same-named children
+   * are all next to each other.
+   */
+  void learnShape(Element element, JSONPropertyGroups properties) {
+    int attributeCount = element.attributeCount();
+    int runCount = properties.size() - attributeCount;
+
+    // Count the runs of same-named children. If there are more runs than
+    // groups, some name is split across runs.
+    String previousName = null;
+    int runs = 0;
+    for (int i = 0, nodeCount = element.nodeCount(); i < nodeCount; i++) {
+      Node node = element.node(i);
+      if (node instanceof Element) {
+        String name = node.getName();
+        if (!name.equals(previousName)) {
+          if (++runs > runCount) {
+            return;
+          }
+          previousName = name;
+        }
+      }
+    }
+
+    String[] names = new String[runCount];
+    boolean[] arrays = new boolean[runCount];
+    for (int i = 0; i < runCount; i++) {
+      names[i] = properties.get(attributeCount + i).get(0).getName();
+      arrays[i] = properties.get(attributeCount + i).size() > 1;
+    }
+
+    QName qName = element.getQName();
+    if ((shapes.size() < maxSize) || shapes.containsKey(qName)) {
+      shapes.put(qName, new Shape(names, arrays));
+    }
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return number of shapes currently cached
+   */
+  public int size() {
+    return shapes.size();
+  }
+
+  public void clear() {
+    shapes.clear();
+  }
+
+  /**
+   * @return number of elements written using a cached shape
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of elements that had no cached shape, or didn't match it
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * The runs of same-named child elements of an element, in order.
+   */
+  static final class Shape {
+    private final String[] names;
+    private final boolean[] arrays;
+
+    Shape(String[] names, boolean[] arrays) {
+      this.names = names;
+      this.arrays = arrays;
+    }
+
+    int getRunCount() {
+      return names.length;
+    }
+
+    String getRunName(int index) {
+      return names[index];
+    }
+
+    /**
+     * @return true if the run at <code>index</code> has more than one
+     * element, so it's written as an array.
+     */
+    boolean isArray(int index) {
+      return arrays[index];
+    }
+
+    /**
+     * @return true if the children of <code>element</code> are runs with
+     * the same names in the same order, each single or not as recorded.
+     */
+    boolean matches(Element element) {
+      int run = -1;
+      String runName = null;
+      int runLength = 0;
+      for (int i = 0, nodeCount = element.nodeCount(); i < nodeCount; i++) {
+        Node node = element.node(i);
+        if (!(node instanceof Element)) {
+          continue;
+        }
+
+        String name = node.getName();
+        if (name.equals(runName)) {
+          runLength++;
+          continue;
+        }
+
+        if  (   ((run >= 0) && !fits(run, runLength))
+            ||  (++run == names.length)
+            ||  !name.equals(names[run])) {
+          return false;
+        }
+        runName = name;
+        runLength = 1;
+      }
+
+      return (run == names.length - 1) && ((run < 0) || fits(run, runLength));
+    }
+
+    private boolean fits(int run, int runLength) {
+      return arrays[run] ? (runLength > 1) : (runLength == 1);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+/**
+ * Where a {@link JSONTreeWalker} sends the tokens of the JSON it walks:
+ * brackets, separators, property names and values. {@link JSONWriter}
+ * writes them as text, and {@link JSONBinaryWriter} encodes them as CBOR
+ * or MessagePack, so both walk documents the same way.
+ *
+ * Sizes of objects and arrays are passed to {@link #writeOpen(char, int)}
+ * when they're known. A sink whose encoding has length prefixes says so
+ * with {@link #isSizeRequired()}, and then the walker counts them, and
+ * doesn't use the shape cache (whose runs are only counted as they're
+ * written).
+ */
+interface JSONTokenSink {
+
+  JSONWriterConfig getConfig();
+
+  /**
+   * @return the rules for the config's format
+   */
+  JSONEmitter getEmitter();
+
+  /**
+   * @return true if sizes passed to {@link #writeOpen(char, int)} must
+   * always be counted.
+   */
+  boolean isSizeRequired();
+
+  /**
+   * Starts an object ('{') or array ('[') with <code>size</code> members,
+   * or -1 if they weren't counted.
+   */
+  void writeOpen(char bracket, int size) throws IOException;
+
+  /**
+   * Ends one member of an object or array, before the next.
+   */
+  void writeSeparator() throws IOException;
+
+  void writeClose(char bracket) throws IOException;
+
+  /**
+   * Writes the property name for <code>element</code>.
+   */
+  void writeElementName(Element element) throws IOException;
+
+  void writePropertyName(String name) throws IOException;
+
+  /**
+   * Writes an attribute as a property: its name and value.
+   */
+  void writeAttribute(Attribute attribute) throws IOException;
+
+  /**
+   * Writes an attribute of an element with mixed content, as one of the
+   * elements of its array.
+   */
+  void writeMixedAttribute(Attribute attribute) throws IOException;
+
+  /**
+   * Writes a property that isn't an element (i.e., an attribute), or a
+   * text node's value.
+   */
+  void writeNode(Node node) throws IOException;
+
+  /**
+   * Writes the text of <code>node</code>, trimmed, as a string value.
+   */
+  void writeNodeText(Node node) throws IOException;
+
+  void writeString(String text) throws IOException;
+
+  /**
+   * Adds <code>property</code> to the properties of an object being built.
+   */
+  void addProperty(JSONPropertyGroups properties, Node property);
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+/**
+ * The punctuation of JSON output: either padded with single spaces (the
+ * original style, e.g. <code>{ "a": "b", "c": "d" }</code>), or compact,
+ * with no optional whitespace at all (<code>{"a":"b","c":"d"}</code>).
+ */
+final class JSONTokens {
+
+  static final JSONTokens PADDED = new JSONTokens(" ");
+
+  static final JSONTokens COMPACT = new JSONTokens("");
+
+  /** Written inside brackets, or "" */
+  final String padding;
+
+  final String objectOpen;
+
+  final String objectClose;
+
+  final String arrayOpen;
+
+  final String arrayClose;
+
+  /** Between members of an object or array */
+  final String separator;
+
+  /** Closes a property name, up to its value */
+  final String nameEnd;
+
+  private JSONTokens(String padding) {
+    this.padding = padding;
+    this.objectOpen = "{" + padding;
+    this.objectClose = padding + "}";
+    this.arrayOpen = "[" + padding;
+    this.arrayClose = padding + "]";
+    this.separator = "," + padding;
+    this.nameEnd = "\":" + padding;
+  }
+
+  static JSONTokens get(boolean compact) {
+    return compact ? COMPACT : PADDED;
+  }
+}
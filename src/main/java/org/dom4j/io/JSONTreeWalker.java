@@ -0,0 +1,869 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import org.dom4j.Attribute;
+import org.dom4j.CharacterData;
+import org.dom4j.Comment;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.Text;
+
+/**
+ * Writes the content of an element without recursion. Each open JSON
+ * object or array is a frame on an explicit stack, which is array-backed
+ * and reused from one call to the next, so the depth of a document costs
+ * heap rather than thread stack.
+ *
+ * The output is what the original recursive implementation wrote:
+ * mixed content becomes an array, text-only content a string, and
+ * everything else an object with one property per attribute, per "$" text
+ * and per group of same-named child elements.
+ *
+ * Tokens go to a {@link JSONTokenSink}, which writes them as text or
+ * encodes them as binary. The fragment cache and parallel writing copy
+ * text that's already been written, so they're only used for a
+ * {@link JSONWriter}, and the shape cache only when sizes don't have to be
+ * known up front.
+ *
+ * With a fragment cache, an object or array that's been written before is
+ * copied from the cache. Otherwise, while it's written, output is recorded
+ * (by swapping the writer's output for a recorder) and then cached.
+ *
+ * With a projection, the nodes its XPath expressions select are found
+ * before the first element is started, and its compiled exclude paths are
+ * followed from each element to its children. Elements that are wholly
+ * included are then written as usual, others only with their selected
+ * attributes and child nodes, and the rest are skipped.
+ */
+final class JSONTreeWalker {
+
+  private static final int MIXED_CONTENT = 0;
+  private static final int TEXT_ONLY = 1;
+  private static final int OTHER_CONTENT = 2;
+
+  private final JSONTokenSink sink;
+
+  /** The writer that the sink writes text for, or null for binary output */
+  private final JSONWriter textWriter;
+
+  private Frame[] stack = new Frame[16];
+
+  private int depth = 0;
+
+  /** Counts for metrics, since they were last cleared */
+  private int elementsWritten = 0;
+
+  private int attributesWritten = 0;
+
+  private int maxDepth = 0;
+
+  /** Records output while fragments are being written, created on first use */
+  private FragmentRecorder recorder;
+
+  /** Number of open frames whose output is being recorded */
+  private int recording = 0;
+
+  /** What the config's projection selects for the current write, or null */
+  private JSONProjection.Selection selection;
+
+  /** Exclude steps of the element last passed to getProjection() */
+  private long projectedStates;
+
+  JSONTreeWalker(JSONTokenSink sink, JSONWriter textWriter) {
+    this.sink = sink;
+    this.textWriter = textWriter;
+  }
+
+  /**
+   * Writes the JSON value for the content of <code>element</code>.
+   */
+  void writeElementContent(Element element) throws IOException {
+    int base = depth;
+    try {
+      startContent(element);
+      while (depth > base) {
+        step();
+      }
+    } finally {
+      while (depth > base) {
+        pop();
+      }
+      if (base == 0) {
+        selection = null;
+      }
+    }
+  }
+
+  /**
+   * Starts writing the JSON value for the content of <code>element</code>,
+   * to be finished by calling {@link #step()} for as long as
+   * {@link #isActive()}. Each step writes a bounded amount of output (one
+   * property name, bracket or leaf value), so a caller can stop between
+   * steps and carry on later.
+   */
+  void start(Element element) throws IOException {
+    if (depth > 0) {
+      throw new IllegalStateException("Already writing element content");
+    }
+
+    startContent(element);
+  }
+
+  /**
+   * @return true if content started by {@link #start(Element)} hasn't all
+   * been written yet.
+   */
+  boolean isActive() {
+    return depth > 0;
+  }
+
+  /**
+   * Writes the next part of the innermost open object or array.
+   */
+  void step() throws IOException {
+    Frame frame = stack[depth - 1];
+    if (frame.mixed) {
+      advanceMixedContent(frame);
+    } else if (frame.shape != null) {
+      advanceShapedObject(frame);
+    } else {
+      advanceObject(frame);
+    }
+  }
+
+  /**
+   * Abandons anything started by {@link #start(Element)}.
+   */
+  void reset() {
+    while (depth > 0) {
+      pop();
+    }
+    selection = null;
+  }
+
+  /**
+   * Starts writing the content of <code>element</code>. If it has any
+   * properties or array elements, a frame is pushed to write them.
+   */
+  private void startContent(Element element) throws IOException {
+    if (depth == 0) {
+      JSONProjection projection = sink.getConfig().getProjection();
+      selection = (projection == null) ? null : projection.select(element);
+    }
+
+    if (selection != null) {
+      int projected = getProjection(element);
+      if (projected != JSONProjection.ALL) {
+        startProjectedContent(element, projected);
+        return;
+      }
+    }
+
+    int attributeCount = element.attributeCount();
+    countElement(attributeCount);
+
+    int contentType = getContentType(element);
+
+    // An object or array may have been written before, and if not, it's
+    // recorded so that it can be next time.
+    JSONWriterConfig config = sink.getConfig();
+    JSONFragmentCache fragmentCache = (textWriter == null) ? null : config.getFragmentCache();
+    int captureStart = -1;
+    int captureLevel = 0;
+    long captureVersion = 0;
+    if ((fragmentCache != null) && (contentType != TEXT_ONLY)) {
+      captureLevel = config.isHumanFormat() ? textWriter.getIndentLevel() : 0;
+      String json = fragmentCache.getFragment(element, config.getFragmentStyle(), captureLevel);
+      if (json != null) {
+        textWriter.writeRaw(json);
+        return;
+      }
+
+      // Writes to ByteBuffers swap the output themselves
+      if (!textWriter.isWriteIncomplete()) {
+        captureStart = startRecording();
+        captureVersion = fragmentCache.getVersion(element);
+      }
+    }
+
+    // Mixed content (element and text nodes) at the same level become
+    // array elements.
+    if (contentType == MIXED_CONTENT) {
+      int size = sink.isSizeRequired() ? attributeCount + countMixedContent(element, null) : -1;
+      sink.writeOpen('[', size);
+      for (int i = 0; i < attributeCount; i++) {
+        if (i > 0) {
+          sink.writeSeparator();
+        }
+        sink.writeMixedAttribute(element.attribute(i));
+      }
+      push(element, true, captureStart, captureLevel, captureVersion);
+      return;
+    }
+
+    // Text-only content is either the value itself (BASIC_OUTPUT and
+    // RABBIT_FISH, without attributes), or a "$" property after any
+    // attributes. Either way there are no child elements to walk.
+    if (contentType == TEXT_ONLY) {
+      if ((attributeCount == 0) && sink.getEmitter().isTextValue()) {
+        sink.writeNodeText(element);
+        return;
+      }
+
+      sink.writeOpen('{', attributeCount + 1);
+      for (int i = 0; i < attributeCount; i++) {
+        sink.writeAttribute(element.attribute(i));
+        sink.writeSeparator();
+      }
+      sink.writePropertyName("$");
+      sink.writeNodeText(element);
+      sink.writeClose('}');
+      return;
+    }
+
+    JSONParallelWriter parallelWriter = (textWriter == null) ? null : config.getParallelWriter();
+    boolean parallel =  (parallelWriter != null)
+                    &&  (element.nodeCount() >= config.getParallelThreshold());
+
+    // If the children match a known shape, they're written as they come
+    JSONShapeCache shapeCache = sink.isSizeRequired() ? null : config.getShapeCache();
+    if ((shapeCache != null) && !parallel) {
+      JSONShapeCache.Shape shape = shapeCache.getShape(element);
+      if (shape != null) {
+        Frame frame = push(element, false, captureStart, captureLevel, captureVersion);
+        frame.shape = shape;
+        sink.writeOpen('{', attributeCount + shape.getRunCount());
+        return;
+      }
+    }
+
+    // We have to collect all children with the same name into an array
+    // which becomes the value of that property
+    Frame frame = push(element, false, captureStart, captureLevel, captureVersion);
+    JSONPropertyGroups properties = frame.properties;
+    for (int i = 0; i < attributeCount; i++) {
+      sink.addProperty(properties, element.attribute(i));
+    }
+
+    for (int i = 0, nodeCount = element.nodeCount(); i < nodeCount; i++) {
+      Node node = element.node(i);
+
+      // Namespaces, comments, text, etc. are skipped
+      if (node instanceof Element) {
+        sink.addProperty(properties, node);
+      }
+    }
+
+    if (shapeCache != null) {
+      shapeCache.learnShape(element, properties);
+    }
+
+    sink.writeOpen('{', properties.size());
+
+    // A large enough object is written in parallel, if we've got a pool
+    if (parallel) {
+      parallelWriter.writeProperties(textWriter, properties, depth);
+      sink.writeClose('}');
+      finish();
+    }
+  }
+
+  private void countElement(int attributeCount) {
+    elementsWritten++;
+    attributesWritten += attributeCount;
+    if (depth >= maxDepth) {
+      maxDepth = depth + 1;
+    }
+  }
+
+  /**
+   * @return how much of <code>element</code> the selection includes, which
+   * is everything if its parent's frame includes everything.
+   */
+  private int getProjection(Element element) {
+    if (depth == 0) {
+      projectedStates = selection.getContextStates();
+      return selection.classify(element, false, projectedStates);
+    }
+
+    Frame parent = stack[depth - 1];
+    if (parent.projection == JSONProjection.ALL) {
+      return JSONProjection.ALL;
+    }
+
+    projectedStates = selection.enter(parent.projectedStates, element);
+    return selection.classify(element, parent.projection == JSONProjection.FILTERED, projectedStates);
+  }
+
+  /**
+   * Starts writing the content of an element that the projection doesn't
+   * wholly include, like {@link #startContent(Element)}, but with only
+   * its selected attributes and child nodes. Skipped elements are never
+   * visited, and neither the shape cache nor the fragment cache is used.
+   * The top element is written even if it isn't selected, with no content.
+   */
+  private void startProjectedContent(Element element, int projected) throws IOException {
+    countElement(0);
+    Frame frame = push(element, false, -1, 0, 0);
+    frame.projection = projected;
+    long states = projectedStates;
+    frame.projectedStates = states;
+    ArrayList<Attribute> attributes = frame.attributes;
+    ArrayList<Node> nodes = frame.nodes;
+    if (projected != JSONProjection.SKIP) {
+      boolean inIncluded = (projected == JSONProjection.FILTERED);
+      for (int i = 0, attributeCount = element.attributeCount(); i < attributeCount; i++) {
+        Attribute attribute = element.attribute(i);
+        if (selection.isWritten(attribute, inIncluded, states)) {
+          attributes.add(attribute);
+        }
+      }
+      for (int i = 0, nodeCount = element.nodeCount(); i < nodeCount; i++) {
+        Node node = element.node(i);
+        if (selection.isWritten(node, inIncluded, states)) {
+          nodes.add(node);
+        }
+      }
+    }
+
+    int attributeCount = attributes.size();
+    attributesWritten += attributeCount;
+
+    int contentType = getContentType(nodes);
+    if (contentType == MIXED_CONTENT) {
+      frame.mixed = true;
+      int size = sink.isSizeRequired() ? attributeCount + countMixedContent(element, nodes) : -1;
+      sink.writeOpen('[', size);
+      for (int i = 0; i < attributeCount; i++) {
+        if (i > 0) {
+          sink.writeSeparator();
+        }
+        sink.writeMixedAttribute(attributes.get(i));
+      }
+      return;
+    }
+
+    if (contentType == TEXT_ONLY) {
+      StringBuilder text = new StringBuilder();
+      for (int i = 0, nodeCount = nodes.size(); i < nodeCount; i++) {
+        text.append(nodes.get(i).getText());
+      }
+
+      if ((attributeCount == 0) && sink.getEmitter().isTextValue()) {
+        sink.writeString(text.toString());
+      } else {
+        sink.writeOpen('{', attributeCount + 1);
+        for (int i = 0; i < attributeCount; i++) {
+          sink.writeAttribute(attributes.get(i));
+          sink.writeSeparator();
+        }
+        sink.writePropertyName("$");
+        sink.writeString(text.toString());
+        sink.writeClose('}');
+      }
+      pop();
+      return;
+    }
+
+    JSONPropertyGroups properties = frame.properties;
+    for (int i = 0; i < attributeCount; i++) {
+      sink.addProperty(properties, attributes.get(i));
+    }
+    for (int i = 0, nodeCount = nodes.size(); i < nodeCount; i++) {
+      Node node = nodes.get(i);
+      if (node instanceof Element) {
+        sink.addProperty(properties, node);
+      }
+    }
+
+    sink.writeOpen('{', properties.size());
+  }
+
+  /**
+   * Writes the next property of an object (or the next element of an array
+   * property), or closes the object when there are none left.
+   */
+  private void advanceObject(Frame frame) throws IOException {
+    JSONPropertyGroups properties = frame.properties;
+
+    if (frame.arrayIndex >= 0) {
+      ArrayList<Node> property = properties.get(frame.propertyIndex);
+      if (frame.arrayIndex < property.size()) {
+        if (frame.arrayIndex > 0) {
+          sink.writeSeparator();
+        }
+        startContent((Element)(property.get(frame.arrayIndex++)));
+      } else {
+        sink.writeClose(']');
+        frame.arrayIndex = -1;
+        frame.propertyIndex++;
+      }
+      return;
+    }
+
+    if (frame.propertyIndex < properties.size()) {
+      if (frame.propertyIndex > 0) {
+        sink.writeSeparator();
+      }
+
+      ArrayList<Node> property = properties.get(frame.propertyIndex);
+      if (property.size() == 1) {
+        frame.propertyIndex++;
+        Node node = property.get(0);
+        if (node instanceof Element) {
+          sink.writeElementName((Element)node);
+          startContent((Element)node);
+        } else {
+          sink.writeNode(node);
+        }
+      } else {
+        sink.writePropertyName(property.get(0).getName());
+        sink.writeOpen('[', property.size());
+        frame.arrayIndex = 0;
+      }
+      return;
+    }
+
+    sink.writeClose('}');
+    finish();
+  }
+
+  /**
+   * Writes the next property of an object whose children match a cached
+   * shape, straight from its attributes and child nodes: attributes first,
+   * then each run of same-named children as a single value or an array.
+   * Otherwise the same as {@link #advanceObject(Frame)}.
+   */
+  private void advanceShapedObject(Frame frame) throws IOException {
+    Element element = frame.element;
+    JSONShapeCache.Shape shape = frame.shape;
+
+    if (frame.arrayIndex >= 0) {
+      Element next = nextElement(frame);
+      if  (   (next != null)
+          &&  next.getName().equals(shape.getRunName(frame.runIndex))) {
+        sink.writeSeparator();
+        frame.arrayIndex++;
+        frame.nodeIndex++;
+        startContent(next);
+      } else {
+        sink.writeClose(']');
+        frame.arrayIndex = -1;
+        frame.runIndex++;
+      }
+      return;
+    }
+
+    int attributeCount = element.attributeCount();
+    if (frame.propertyIndex < attributeCount) {
+      if (frame.propertyIndex > 0) {
+        sink.writeSeparator();
+      }
+      sink.writeAttribute(element.attribute(frame.propertyIndex++));
+      return;
+    }
+
+    if (frame.runIndex < shape.getRunCount()) {
+      if ((attributeCount + frame.runIndex) > 0) {
+        sink.writeSeparator();
+      }
+
+      Element next = nextElement(frame);
+      frame.nodeIndex++;
+      if (shape.isArray(frame.runIndex)) {
+        sink.writePropertyName(next.getName());
+
+        // The run's length isn't known until it ends
+        sink.writeOpen('[', -1);
+        frame.arrayIndex = 1;
+      } else {
+        sink.writeElementName(next);
+        frame.runIndex++;
+      }
+      startContent(next);
+      return;
+    }
+
+    sink.writeClose('}');
+    finish();
+  }
+
+  /**
+   * @return the next child element of a shaped object's element, without
+   * moving past it, or null if there are none left.
+   */
+  private static Element nextElement(Frame frame) {
+    Element element = frame.element;
+    for (int nodeCount = element.nodeCount(); frame.nodeIndex < nodeCount; frame.nodeIndex++) {
+      Node node = element.node(frame.nodeIndex);
+      if (node instanceof Element) {
+        return (Element)node;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Writes nodes of mixed content up to and including the next element,
+   * or closes the array when there are none left.
+   */
+  private void advanceMixedContent(Frame frame) throws IOException {
+    if (frame.closeWrapper) {
+      sink.writeClose('}');
+      frame.closeWrapper = false;
+    }
+
+    Element element = frame.element;
+    boolean projected = (frame.projection != JSONProjection.ALL);
+    int attributeCount = projected ? frame.attributes.size() : element.attributeCount();
+    int nodeCount = projected ? frame.nodes.size() : element.nodeCount();
+    JSONEmitter emitter = sink.getEmitter();
+    while (frame.propertyIndex < nodeCount) {
+      int index = frame.propertyIndex++;
+      Node node = projected ? frame.nodes.get(index) : element.node(index);
+
+      if (isSkippedInMixedContent(node)) {
+        continue;
+      }
+
+      if ((attributeCount + frame.nodesWritten++) > 0) {
+        sink.writeSeparator();
+      }
+
+      if (node instanceof Element) {
+        sink.writeOpen('{', 1);
+        sink.writeElementName((Element)node);
+        frame.closeWrapper = true;
+        startContent((Element)node);
+        return;
+      } else {
+        emitter.writeMixedText(sink, node);
+      }
+    }
+
+    sink.writeClose(']');
+    finish();
+  }
+
+  /**
+   * @return true if <code>node</code> isn't written as part of mixed
+   * content: whitespace-only text, and comments.
+   */
+  private static boolean isSkippedInMixedContent(Node node) {
+    return  (   (node instanceof Text)
+            &&  (JSONEscaper.trimEnd(node.getText()) == 0))
+        ||  (node instanceof Comment);
+  }
+
+  /**
+   * @return number of array elements written for the child nodes of mixed
+   * content, i.e., of <code>nodes</code>, or of <code>element</code> if
+   * that's null
+   */
+  private static int countMixedContent(Element element, ArrayList<Node> nodes) {
+    int nodeCount = (nodes == null) ? element.nodeCount() : nodes.size();
+    int result = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      Node node = (nodes == null) ? element.node(i) : nodes.get(i);
+      if (!isSkippedInMixedContent(node)) {
+        result++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Classifies the content of <code>element</code> the same way as
+   * <code>hasMixedContent()</code> (nodes of more than one class) and then
+   * <code>isTextOnly()</code> (only character data), in one pass and
+   * without the iterators those allocate.
+   */
+  private static int getContentType(Element element) {
+    int nodeCount = element.nodeCount();
+    if (nodeCount == 0) {
+      return TEXT_ONLY;
+    }
+
+    Node first = element.node(0);
+    Class<?> firstClass = first.getClass();
+    boolean textOnly = first instanceof CharacterData;
+    for (int i = 1; i < nodeCount; i++) {
+      Node node = element.node(i);
+      if (node.getClass() != firstClass) {
+        return MIXED_CONTENT;
+      }
+      textOnly &= node instanceof CharacterData;
+    }
+
+    return textOnly ? TEXT_ONLY : OTHER_CONTENT;
+  }
+
+  /**
+   * @return the type of content made up of <code>nodes</code>, as
+   * {@link #getContentType(Element)}
+   */
+  private static int getContentType(ArrayList<Node> nodes) {
+    int nodeCount = nodes.size();
+    if (nodeCount == 0) {
+      return TEXT_ONLY;
+    }
+
+    Class<?> firstClass = nodes.get(0).getClass();
+    boolean textOnly = true;
+    for (int i = 0; i < nodeCount; i++) {
+      Node node = nodes.get(i);
+      if (node.getClass() != firstClass) {
+        return MIXED_CONTENT;
+      }
+      textOnly &= node instanceof CharacterData;
+    }
+
+    return textOnly ? TEXT_ONLY : OTHER_CONTENT;
+  }
+
+  int getElementsWritten() {
+    return elementsWritten;
+  }
+
+  int getAttributesWritten() {
+    return attributesWritten;
+  }
+
+  /**
+   * @return depth of the most deeply nested element written, where the
+   * first element written is at depth 1
+   */
+  int getMaxDepth() {
+    return maxDepth;
+  }
+
+  void clearCounts() {
+    elementsWritten = 0;
+    attributesWritten = 0;
+    maxDepth = 0;
+  }
+
+  private Frame push(Element element, boolean mixed, int captureStart, int captureLevel,
+                     long captureVersion) {
+    if (depth == stack.length) {
+      Frame[] newStack = new Frame[stack.length * 2];
+      System.arraycopy(stack, 0, newStack, 0, depth);
+      stack = newStack;
+    }
+
+    Frame frame = stack[depth];
+    if (frame == null) {
+      frame = new Frame();
+      stack[depth] = frame;
+    }
+    depth++;
+
+    frame.element = element;
+    frame.mixed = mixed;
+    frame.propertyIndex = 0;
+    frame.arrayIndex = -1;
+    frame.nodesWritten = 0;
+    frame.closeWrapper = false;
+    frame.shape = null;
+    frame.nodeIndex = 0;
+    frame.runIndex = 0;
+    frame.captureStart = captureStart;
+    frame.captureLevel = captureLevel;
+    frame.captureVersion = captureVersion;
+    frame.projection = JSONProjection.ALL;
+    return frame;
+  }
+
+  /**
+   * Pops the innermost frame, whose object or array has been written,
+   * caching its output if that was recorded.
+   */
+  private void finish() {
+    Frame frame = stack[depth - 1];
+    if (frame.captureStart >= 0) {
+      JSONWriterConfig config = sink.getConfig();
+      String json = recorder.getRecorded(frame.captureStart);
+      config.getFragmentCache().putFragment(frame.element, config.getFragmentStyle(),
+                                            frame.captureLevel, json, frame.captureVersion);
+    }
+
+    pop();
+  }
+
+  /**
+   * Pops the innermost frame, whether or not it's been written.
+   */
+  private void pop() {
+    Frame frame = stack[--depth];
+    if (frame.captureStart >= 0) {
+      frame.captureStart = -1;
+      stopRecording();
+    }
+    frame.element = null;
+    frame.properties.clear();
+    if (frame.projection != JSONProjection.ALL) {
+      frame.attributes.clear();
+      frame.nodes.clear();
+    }
+  }
+
+  /**
+   * Starts recording output for a frame, if it isn't being recorded already
+   * for an outer one.
+   *
+   * @return offset of the frame's output in the recording
+   */
+  private int startRecording() {
+    if (recording++ == 0) {
+      if (recorder == null) {
+        recorder = new FragmentRecorder();
+      }
+      recorder.start(textWriter.swapWriter(recorder));
+    }
+
+    return recorder.getLength();
+  }
+
+  /**
+   * Stops recording for a frame, and restores the writer's output when no
+   * other frame is being recorded.
+   */
+  private void stopRecording() {
+    if (--recording == 0) {
+      textWriter.swapWriter(recorder.stop());
+    }
+  }
+
+  /**
+   * State of an open object (or array, for mixed content).
+   */
+  private static final class Frame {
+    Element element;
+
+    /** True if we're writing mixed content as an array */
+    boolean mixed;
+
+    /** Properties of an object, grouped by name */
+    final JSONPropertyGroups properties = new JSONPropertyGroups();
+
+    /** Next property of an object, or next node of mixed content */
+    int propertyIndex;
+
+    /** Next element of an array property, or -1 */
+    int arrayIndex;
+
+    /** Number of mixed content nodes written so far */
+    int nodesWritten;
+
+    /** True if a mixed content element's "{ ... }" wrapper is still open */
+    boolean closeWrapper;
+
+    /** Shape that the element's children match, or null to group them */
+    JSONShapeCache.Shape shape;
+
+    /** Next child node of a shaped object */
+    int nodeIndex;
+
+    /** Current run of children of a shaped object */
+    int runIndex;
+
+    /** Offset of the frame's output in the recording, or -1 */
+    int captureStart;
+
+    /** Indentation level the frame's output started at, if recorded */
+    int captureLevel;
+
+    /** Fragment cache version of the element when recording started */
+    long captureVersion;
+
+    /** How much of the element a projection includes */
+    int projection;
+
+    /** Exclude steps to follow to the element's children, unless it's ALL */
+    long projectedStates;
+
+    /** Attributes and child nodes a projection selects, unless it's ALL */
+    final ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+
+    final ArrayList<Node> nodes = new ArrayList<Node>();
+  }
+
+  /**
+   * Passes output through to the writer's real output, keeping a copy.
+   */
+  private static final class FragmentRecorder extends Writer {
+
+    /** Recordings longer than this aren't kept for reuse */
+    private static final int MAX_RETAINED_LENGTH = 1024 * 1024;
+
+    private final StringBuilder recorded = new StringBuilder();
+
+    private Writer out;
+
+    void start(Writer out) {
+      this.out = out;
+    }
+
+    Writer stop() {
+      Writer result = out;
+      out = null;
+      recorded.setLength(0);
+      if (recorded.capacity() > MAX_RETAINED_LENGTH) {
+        recorded.trimToSize();
+      }
+      return result;
+    }
+
+    int getLength() {
+      return recorded.length();
+    }
+
+    String getRecorded(int start) {
+      return recorded.substring(start);
+    }
+
+    public void write(int c) throws IOException {
+      out.write(c);
+      recorded.append((char) c);
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      out.write(cbuf, off, len);
+      recorded.append(cbuf, off, len);
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+      out.write(str, off, len);
+      recorded.append(str, off, off + len);
+    }
+
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
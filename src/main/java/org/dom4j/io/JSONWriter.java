@@ -22,20 +22,20 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import org.dom4j.Attribute;
-import org.dom4j.Comment;
 import org.dom4j.Document;
 import org.dom4j.DocumentType;
 import org.dom4j.Element;
 import org.dom4j.Namespace;
 import org.dom4j.Node;
 import org.dom4j.Text;
-import org.dom4j.tree.DefaultElement;
 import org.dom4j.tree.NamespaceStack;
 
 /* This first pass implementation doesn't handle namespaces, is basically
@@ -52,45 +52,23 @@ import org.dom4j.tree.NamespaceStack;
  * 
  * Note: It does borrow the indentation support from XMLWriter,
  * which makes it easier to read the output while you're debugging
- * (just set humanFormat below to true).
+ * (just use a JSONWriterConfig with humanFormat set to true).
  */
 public class JSONWriter {
   protected static final JSONFormat DEFAULT_FORMAT = JSONFormat.RABBIT_FISH;
 
-  /* We prefix any element names in the following list with "_" to avoid
-   * JavaScript reserved words and client-side objects, methods,
-   * or properties in Netscape Navigator or Internet Explorer.
-   * 
-   * (from http://www.javascripter.net/faq/reserved.htm)
-   */
-  private static final List<String> JAVASCRIPT_RESERVED_WORDS
-    = Arrays.asList(new String[] {
-      "abstract", "alert", "all", "anchor", "anchors", "area", "array",
-      "assign", "blur", "boolean", "break", "button", "byte", "case", "catch",
-      "char", "checkbox", "class", "clearTimeout", "clientInformation",
-      "close", "closed", "confirm", "const", "continue", "crypto", "date",
-      "debugger", "default", "defaultStatus", "delete", "do", "document",
-      "double", "element", "elements", "else", "embed", "embeds", "enum",
-      "escape", "eval", "event", "export", "extends", "false", "fileUpload",
-      "final", "finally", "float", "focus", "for", "form", "forms", "frame",
-      "frameRate", "frames", "function", "function", "getClass", "goto",
-      "hidden", "history", "if", "image", "images", "implements", "import",
-      "in", "innerHeight", "innerWidth", "instanceof", "int", "interface",
-      "isNaN", "java", "JavaArray", "JavaClass", "JavaObject", "JavaPackage",
-      "layer", "layers", "length", "link", "location", "long", "Math",
-      "mimeTypes", "name", "native", "navigate", "navigator", "netscape",
-      "new", "null", "Number", "Object", "offscreenBuffering", "onblur",
-      "onerror", "onfocus", "onload", "onunload", "open", "opener", "option",
-      "outerHeight", "outerWidth", "package", "packages", "pageXOffset",
-      "pageYOffset", "parent", "parseFloat", "parseInt", "password", "pkcs11",
-      "plugin", "private", "prompt", "protected", "prototype", "public",
-      "radio", "reset", "return", "screenX", "screenY", "scroll", "secure",
-      "select", "self", "setTimeout", "short", "static", "status", "String",
-      "submit", "sun", "super", "switch", "synchronized", "taint", "text",
-      "textarea", "this", "throw", "throws", "top", "toString", "transient",
-      "true", "try", "typeof", "unescape", "untaint", "valueOf", "var", "void",
-      "volatile", "while", "window", "with" 
-    });
+  /** Whether each class overrides indent() or writePrintln() */
+  private static final ClassValue<Boolean> LINE_HOOKS_OVERRIDDEN = new ClassValue<Boolean>() {
+    protected Boolean computeValue(Class<?> type) {
+      for (Class<?> c = type; c != JSONWriter.class; c = c.getSuperclass()) {
+        if (declares(c, "indent") || declares(c, "writePrintln")) {
+          return Boolean.TRUE;
+        }
+      }
+
+      return Boolean.FALSE;
+    }
+  };
 
   /** The Writer used to output to */
   protected Writer writer;
@@ -98,56 +76,117 @@ public class JSONWriter {
   /** The Stack of namespaceStack written so far */
   private NamespaceStack namespaceStack = new NamespaceStack();
 
-  /** The format used by this writer */
+  /** The configuration of this writer */
+  private JSONWriterConfig config;
+
+  /** The format used by this writer (from config) */
   private JSONFormat format;
 
+  /** Rules for the format (from config) */
+  private JSONEmitter emitter;
+
   /** Whether a flush should occur after writing a document */
   private boolean autoFlush;
 
   /**
-   * The initial number of indentations (so you can print a whole document
+   * The current number of indentations (so you can print a whole document
    * indented, if you like)
    */
   private int indentLevel = 0;
   
-  /** buffer used when escaping strings */
-  private StringBuffer buffer = new StringBuffer();
-
-  /** Turn this on to get indentation, newlines, etc. */
+  /** Turn this on to get indentation, newlines, etc. (from config) */
   private boolean humanFormat = false;
 
+  /** Padded or compact punctuation (from config) */
+  private JSONTokens tokens;
+
+  /** Line separator for human format (from config) */
+  private String lineSeparator;
+
+  /** Spaces per indentation level (from config) */
+  private int indentWidth;
+
+  /** Line separator plus indentation, by level (from config) */
+  private String[] lineStarts;
+
+  /** True if a subclass overrides indent() or writePrintln() */
+  private final boolean lineHooksOverridden = LINE_HOOKS_OVERRIDDEN.get(getClass()).booleanValue();
+
+  /** Cache of translated element names (from config) */
+  private JSONNameCache nameCache;
+
+  /** Writes element content, created on first use */
+  private JSONTreeWalker walker;
+
+  /** Metrics to add to, or null (from config) */
+  private JSONWriterMetrics metrics;
+
+  /** True while a top-level write is being timed for metrics */
+  private boolean recording = false;
+
+  private long recordingStartNanos;
+
+  private long recordingStartBytes;
+
+  /** Counts for metrics, since they were last added */
+  private int escapesWritten = 0;
+
+  private int nameLookups = 0;
+
+  private int nameMisses = 0;
+
+  /** Statistics to add what's written to, or null */
+  private JSONOutputStats stats;
+
+  /** Encodes output for write(Node, ByteBuffer), created on first use */
+  private ByteBufferWriter byteBufferWriter;
+
+  /** True while a write to ByteBuffers is incomplete */
+  private boolean byteBufferWritePending = false;
+
+  /** Document whose top-level nodes are being written to ByteBuffers */
+  private Document pendingDocument;
+
+  /** Next top-level node of pendingDocument, or -1 before its "{" */
+  private int pendingIndex;
+
   public JSONWriter(Writer writer) {
-    this(writer, DEFAULT_FORMAT);
+    this(writer, JSONWriterConfig.DEFAULT);
   }
 
   public JSONWriter(Writer writer, JSONFormat format) {
+    this(writer, new JSONWriterConfig(format));
+  }
+
+  public JSONWriter(Writer writer, JSONWriterConfig config) {
+    setConfig(config);
     this.writer = writer;
-    this.format = format;
   }
 
   public JSONWriter() {
-    this.format = DEFAULT_FORMAT;
+    setConfig(JSONWriterConfig.DEFAULT);
     this.writer = new BufferedWriter(new OutputStreamWriter(System.out));
     this.autoFlush = true;
   }
 
   public JSONWriter(OutputStream out) throws UnsupportedEncodingException {
-    this.format = DEFAULT_FORMAT;
-    this.writer = createWriter(out, format.getEncoding());
-    this.autoFlush = true;
+    this(out, JSONWriterConfig.DEFAULT);
   }
 
   public JSONWriter(OutputStream out, JSONFormat format)
   throws UnsupportedEncodingException {
-    this.format = format;
+    this(out, new JSONWriterConfig(format));
+  }
+
+  public JSONWriter(OutputStream out, JSONWriterConfig config)
+  throws UnsupportedEncodingException {
+    setConfig(config);
     this.writer = createWriter(out, format.getEncoding());
     this.autoFlush = true;
   }
 
   public JSONWriter(JSONFormat format) throws UnsupportedEncodingException {
-    this.format = format;
-    this.writer = createWriter(System.out, format.getEncoding());
-    this.autoFlush = true;
+    this(System.out, format);
   }
 
   public void setWriter(Writer writer) {
@@ -162,7 +201,107 @@ public class JSONWriter {
   }
 
   /**
-   * Get an OutputStreamWriter, use preferred encoding.
+   * Replaces this writer's configuration. Also resets the indentation
+   * level to the configured one.
+   * 
+   * @param config
+   *            the new configuration
+   */
+  public void setConfig(JSONWriterConfig config) {
+    this.config = config;
+    this.format = config.getFormat();
+    this.emitter = JSONEmitter.forFormat(format);
+    this.humanFormat = config.isHumanFormat();
+    this.tokens = JSONTokens.get(config.isCompact());
+    this.lineSeparator = config.getLineSeparator();
+    this.indentWidth = config.getIndentWidth();
+    this.lineStarts = config.getLineStarts();
+    this.nameCache = config.getNameCache();
+    this.metrics = config.getMetrics();
+    this.indentLevel = config.getIndentLevel();
+    if (!byteBufferWritePending) {
+      // Recreated on next use, for the format's encoding
+      this.byteBufferWriter = null;
+    }
+  }
+
+  /**
+   * Turns human format (line breaks and indentation) on or off, keeping the
+   * rest of this writer's configuration.
+   * 
+   * @param humanFormat
+   *            true for human format
+   */
+  public void setHumanFormat(boolean humanFormat) {
+    int level = indentLevel;
+    setConfig(config.withHumanFormat(humanFormat));
+    this.indentLevel = level;
+  }
+
+  public boolean isHumanFormat() {
+    return humanFormat;
+  }
+
+  /**
+   * Turns compact output (no optional whitespace) on or off, keeping the
+   * rest of this writer's configuration.
+   * 
+   * @param compact
+   *            true for compact output
+   */
+  public void setCompact(boolean compact) {
+    int level = indentLevel;
+    setConfig(config.withCompact(compact));
+    this.indentLevel = level;
+  }
+
+  public boolean isCompact() {
+    return tokens == JSONTokens.COMPACT;
+  }
+
+  /**
+   * Limits what's written to the parts of each node that
+   * <code>projection</code> selects, keeping the rest of this writer's
+   * configuration.
+   * 
+   * @param projection
+   *            projection to use, or null to write everything
+   */
+  public void setProjection(JSONProjection projection) {
+    int level = indentLevel;
+    setConfig(config.withProjection(projection));
+    this.indentLevel = level;
+  }
+
+  public JSONProjection getProjection() {
+    return config.getProjection();
+  }
+
+  public JSONWriterConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * Prepares this writer for reuse by {@link JSONWriterConfig}: switches to
+   * <code>writer</code> (without auto-flushing) and clears any state left
+   * over from the previous use.
+   */
+  void reset(Writer writer) {
+    this.writer = writer;
+    this.autoFlush = false;
+    this.recording = false;
+    this.indentLevel = config.getIndentLevel();
+    namespaceStack.clear();
+  }
+
+  /**
+   * Get a Writer for the given stream and encoding. For UTF-8 this is a
+   * {@link UTF8Writer}, which encodes straight into its own byte buffer.
+   * For other encodings that are ASCII-compatible (e.g., ISO-8859-1), it's
+   * a <code>UTF8Writer</code> that escapes all non-ASCII characters as
+   * "\\uXXXX", so the output is valid in any of them. Anything else (e.g.,
+   * UTF-16) gets a <code>BufferedWriter</code> around an
+   * <code>OutputStreamWriter</code>.
    * 
    * @param outStream
    *            DOCUMENT ME!
@@ -176,7 +315,46 @@ public class JSONWriter {
    */
   protected Writer createWriter(OutputStream outStream, String encoding)
   throws UnsupportedEncodingException {
-    return new BufferedWriter(new OutputStreamWriter(outStream, encoding));
+    if (UTF8Writer.isUTF8(encoding)) {
+      return new UTF8Writer(outStream);
+    } else if (UTF8Writer.isAsciiCompatible(encoding)) {
+      return new UTF8Writer(outStream, true);
+    } else {
+      return new BufferedWriter(new OutputStreamWriter(outStream, encoding));
+    }
+  }
+
+  /**
+   * Get the writer for {@link #write(Node, ByteBuffer)}, which encodes the
+   * same way as {@link #createWriter(OutputStream, String)} for UTF-8 and
+   * ASCII-compatible encodings, and doesn't support any others.
+   */
+  private static ByteBufferWriter createByteBufferWriter(String encoding)
+  throws UnsupportedEncodingException {
+    if (UTF8Writer.isUTF8(encoding)) {
+      return new ByteBufferWriter(false);
+    } else if (UTF8Writer.isAsciiCompatible(encoding)) {
+      return new ByteBufferWriter(true);
+    } else {
+      throw new UnsupportedEncodingException("Can't write " + encoding + " to a ByteBuffer");
+    }
+  }
+
+  /**
+   * Set the cache used to translate element names into JSON property names.
+   * Default: {@link JSONNameCache#getDefault()}, which is shared by all
+   * writers.
+   * 
+   * @param nameCache
+   *            the cache to use
+   */
+  public void setNameCache(JSONNameCache nameCache) {
+    this.config = config.withNameCache(nameCache);
+    this.nameCache = nameCache;
+  }
+
+  public JSONNameCache getNameCache() {
+    return nameCache;
   }
 
   /**
@@ -191,6 +369,10 @@ public class JSONWriter {
     this.indentLevel = indentLevel;
   }
 
+  public int getIndentLevel() {
+    return indentLevel;
+  }
+
   /**
    * Flushes the underlying Writer
    * 
@@ -218,7 +400,7 @@ public class JSONWriter {
    *             DOCUMENT ME!
    */
   public void println() throws IOException {
-    writer.write(format.getLineSeparator());
+    writer.write(lineSeparator);
   }
 
   /**
@@ -244,32 +426,24 @@ public class JSONWriter {
    *             if there's any problem writing.
    */
   public void write(Document doc) throws IOException {
-    if (doc.getDocType() != null) {
-      indent();
-      writeDocType(doc.getDocType());
-      writer.write(" = ");
-    }
-    writer.write("{ ");
-    
-    ++indentLevel;
-    writePrintln();
-    indent();
-    for (int i = 0, size = doc.nodeCount(); i < size; i++) {
-      if (i > 0) {
-        writer.write(", ");
-        writePrintln();
-        indent();
+    boolean timed = startRecording();
+    boolean completed = false;
+    try {
+      writeDocumentStart(doc);
+      for (int i = 0, size = doc.nodeCount(); i < size; i++) {
+        if (i > 0) {
+          writeSeparator();
+        }
+        Node node = doc.node(i);
+        writeNode(node);
+      }
+      writeDocumentEnd();
+      completed = true;
+    } finally {
+      if (timed) {
+        stopRecording(completed);
       }
-      Node node = doc.node(i);
-      writeNode(node);
     }
-    
-    writer.write(" ");
-    --indentLevel;
-    writePrintln();
-    indent();
-    writer.write("}");
-    writePrintln();
 
     if (autoFlush) {
       flush();
@@ -291,7 +465,77 @@ public class JSONWriter {
    *             DOCUMENT ME!
    */
   public void write(Element element) throws IOException {
-    writeElement(element);
+    boolean timed = startRecording();
+    boolean completed = false;
+    try {
+      writeElement(element);
+      completed = true;
+    } finally {
+      if (timed) {
+        stopRecording(completed);
+      }
+    }
+
+    if (autoFlush) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes <code>element</code> as one record of newline-delimited JSON,
+   * i.e., as the one property of an object, the same as for a document with
+   * that root element. It's recorded in the metrics (if any) as a document.
+   */
+  void writeRecord(Element element) throws IOException {
+    boolean timed = startRecording();
+    boolean completed = false;
+    try {
+      writeOpen('{');
+      writeElement(element);
+      writeClose('}');
+      completed = true;
+    } finally {
+      if (timed) {
+        stopRecording(completed);
+      }
+    }
+  }
+
+  /**
+   * <p>
+   * Converts XML pulled from a StAX <code>XMLStreamReader</code> straight
+   * to JSON, without building a dom4j tree. The output is the same as
+   * writing the <code>Document</code> that a <code>SAXReader</code> would
+   * have built (see {@link JSONContentHandler}).
+   * </p>
+   * 
+   * <p>
+   * If the reader is positioned on a <code>START_ELEMENT</code>, only that
+   * element is converted, and the reader is left on its
+   * <code>END_ELEMENT</code>.
+   * </p>
+   * 
+   * @param reader
+   *            the StAX reader to pull events from
+   * 
+   * @throws IOException
+   *             if there's any problem writing.
+   * @throws XMLStreamException
+   *             if there's any problem reading.
+   * @throws IllegalStateException
+   *             if this writer uses human format, which isn't supported
+   *             for streaming conversion.
+   */
+  public void transcode(XMLStreamReader reader)
+  throws IOException, XMLStreamException {
+    if (humanFormat) {
+      throw new IllegalStateException("Human format isn't supported for streaming conversion");
+    }
+
+    // Human format may have been turned off since the writer was created
+    JSONWriterConfig handlerConfig = config.isHumanFormat() ? config.withHumanFormat(false) : config;
+    JSONContentHandler handler = new JSONContentHandler(writer, handlerConfig);
+    handler.transcode(reader);
 
     if (autoFlush) {
       flush();
@@ -345,13 +589,281 @@ public class JSONWriter {
    *             DOCUMENT ME!
    */
   public void write(Node node) throws IOException {
-    writeNode(node);
+    boolean timed = startRecording();
+    boolean completed = false;
+    try {
+      writeNode(node);
+      completed = true;
+    } finally {
+      if (timed) {
+        stopRecording(completed);
+      }
+    }
 
     if (autoFlush) {
       flush();
     }
   }
 
+  /**
+   * <p>
+   * Writes <code>node</code> as UTF-8 into <code>buffer</code>, with the
+   * same output as {@link #write(Node)}. If it doesn't all fit, this
+   * returns false, and {@link #resume(ByteBuffer)} carries on from exactly
+   * where it stopped, into the next buffer. Nothing else should be written
+   * with this writer until the write is complete.
+   * </p>
+   * 
+   * <p>
+   * Output is encoded straight into the buffers. The document is walked
+   * one step (a property name, bracket or value) at a time, and once a
+   * buffer is full, the strings for the rest of that step are kept, not
+   * encoded or copied, and encoded into the next buffer. For
+   * ASCII-compatible encodings other than UTF-8, non-ASCII characters are
+   * escaped.
+   * </p>
+   * 
+   * @param node
+   *            <code>Node</code> to output, typically a <code>Document</code>
+   *            or <code>Element</code>
+   * @param buffer
+   *            buffer to write into, from its position
+   * 
+   * @return true if all of <code>node</code> has been written, false if
+   * <code>buffer</code> is full and <code>resume()</code> must be called.
+   * 
+   * @throws IOException
+   *             if there's any problem writing, in which case the write is
+   *             abandoned.
+   */
+  public boolean write(Node node, ByteBuffer buffer) throws IOException {
+    if (byteBufferWritePending) {
+      throw new IllegalStateException("The previous write to a ByteBuffer is incomplete");
+    }
+
+    if (byteBufferWriter == null) {
+      byteBufferWriter = createByteBufferWriter(format.getEncoding());
+    }
+    if (walker == null) {
+      walker = new JSONTreeWalker(new TextSink(), this);
+    }
+
+    byteBufferWritePending = true;
+    Writer savedWriter = writer;
+    writer = byteBufferWriter;
+    byteBufferWriter.setTarget(buffer);
+    startRecording();
+    boolean complete = false;
+    boolean failed = true;
+    try {
+      if (node instanceof Document) {
+        pendingDocument = (Document) node;
+        pendingIndex = -1;
+      } else {
+        startByteBufferNode(node);
+      }
+
+      complete = writeByteBufferSteps();
+      failed = false;
+      return complete;
+    } finally {
+      endByteBufferWrite(savedWriter, complete, failed);
+    }
+  }
+
+  /**
+   * Continues an incomplete {@link #write(Node, ByteBuffer)} into the next
+   * <code>buffer</code>.
+   * 
+   * @return true if the write is now complete, false if <code>buffer</code>
+   * is full and <code>resume()</code> must be called again.
+   * 
+   * @throws IOException
+   *             if there's any problem writing, in which case the write is
+   *             abandoned.
+   */
+  public boolean resume(ByteBuffer buffer) throws IOException {
+    if (!byteBufferWritePending) {
+      throw new IllegalStateException("There's no incomplete write to a ByteBuffer");
+    }
+
+    Writer savedWriter = writer;
+    writer = byteBufferWriter;
+    byteBufferWriter.setTarget(buffer);
+    boolean complete = false;
+    boolean failed = true;
+    try {
+      complete = byteBufferWriter.drain() && writeByteBufferSteps();
+      failed = false;
+      return complete;
+    } finally {
+      endByteBufferWrite(savedWriter, complete, failed);
+    }
+  }
+
+  /**
+   * @return true if a {@link #write(Node, ByteBuffer)} is waiting for
+   * {@link #resume(ByteBuffer)}.
+   */
+  public boolean isWriteIncomplete() {
+    return byteBufferWritePending;
+  }
+
+  /**
+   * Writes steps until everything has been written, or the target buffer
+   * is full.
+   */
+  private boolean writeByteBufferSteps() throws IOException {
+    while (walker.isActive() || (pendingDocument != null)) {
+      if (walker.isActive()) {
+        walker.step();
+      } else {
+        writeDocumentStep();
+      }
+
+      if (byteBufferWriter.isFull()) {
+        return false;
+      }
+    }
+
+    byteBufferWriter.flush();
+    return !byteBufferWriter.hasOverflow();
+  }
+
+  /**
+   * Writes the next part of pendingDocument: its start, one of its
+   * top-level nodes (or the start of its root element), or its end.
+   */
+  private void writeDocumentStep() throws IOException {
+    Document doc = pendingDocument;
+    if (pendingIndex < 0) {
+      writeDocumentStart(doc);
+      pendingIndex = 0;
+    } else if (pendingIndex < doc.nodeCount()) {
+      if (pendingIndex > 0) {
+        writeSeparator();
+      }
+      startByteBufferNode(doc.node(pendingIndex++));
+    } else {
+      writeDocumentEnd();
+      pendingDocument = null;
+    }
+  }
+
+  /**
+   * Writes <code>node</code>, except for the content of an element, which
+   * is left to the walker's steps.
+   */
+  private void startByteBufferNode(Node node) throws IOException {
+    if (node instanceof Element) {
+      Element element = (Element) node;
+      writeElementName(element);
+      walker.start(element);
+    } else {
+      writeNode(node);
+    }
+  }
+
+  private void endByteBufferWrite(Writer savedWriter, boolean complete, boolean failed) {
+    boolean done = complete || failed;
+    if (done && recording) {
+      // Metrics time the write from its start until it's complete
+      stopRecording(complete);
+    }
+
+    writer = savedWriter;
+    byteBufferWriter.setTarget(null);
+    if (done) {
+      byteBufferWritePending = false;
+      pendingDocument = null;
+      walker.reset();
+      byteBufferWriter.reset();
+    }
+  }
+
+  /**
+   * Starts timing a top-level write for metrics, unless there are no
+   * metrics or a write is already being timed (e.g., a
+   * <code>Document</code> passed to {@link #write(Node)}).
+   *
+   * @return true if the caller must call {@link #stopRecording(boolean)}
+   */
+  private boolean startRecording() {
+    if ((metrics == null) || recording) {
+      return false;
+    }
+
+    recording = true;
+    recordingStartBytes = getEncodedByteCount();
+    recordingStartNanos = System.nanoTime();
+    return true;
+  }
+
+  /**
+   * Adds a completed write to the metrics. The counts for a failed one are
+   * thrown away.
+   */
+  private void stopRecording(boolean completed) {
+    recording = false;
+    if (completed) {
+      long nanos = System.nanoTime() - recordingStartNanos;
+      metrics.recordDocument(nanos, getEncodedByteCount() - recordingStartBytes);
+      addCountsToMetrics(0);
+    } else {
+      clearCounts();
+    }
+  }
+
+  /**
+   * @return bytes encoded so far, if writing to a {@link UTF8Writer}
+   */
+  private long getEncodedByteCount() {
+    return (writer instanceof UTF8Writer) ? ((UTF8Writer) writer).getByteCount() : 0;
+  }
+
+  /**
+   * Adds the counts kept since they were last added to the metrics (if
+   * any), with element depths offset by <code>depthOffset</code>.
+   */
+  void addCountsToMetrics(int depthOffset) {
+    if (metrics != null) {
+      int elements = 0;
+      int attributes = 0;
+      int depth = 0;
+      if (walker != null) {
+        elements = walker.getElementsWritten();
+        attributes = walker.getAttributesWritten();
+        depth = walker.getMaxDepth() + depthOffset;
+      }
+      metrics.addCounts(elements, attributes, depth, escapesWritten, nameLookups, nameMisses);
+    }
+
+    clearCounts();
+  }
+
+  /**
+   * Starts adding what's written to <code>stats</code>, or with null, stops
+   * and adds the counts kept since it was set.
+   */
+  void setStats(JSONOutputStats stats) {
+    if ((this.stats != null) && (walker != null)) {
+      this.stats.addCounts(walker.getElementsWritten(), walker.getAttributesWritten(),
+                           walker.getMaxDepth());
+    }
+
+    clearCounts();
+    this.stats = stats;
+  }
+
+  private void clearCounts() {
+    if (walker != null) {
+      walker.clearCounts();
+    }
+    escapesWritten = 0;
+    nameLookups = 0;
+    nameMisses = 0;
+  }
+
   /**
    * Writes the given object which should be a String, a Node or a List of
    * Nodes.
@@ -378,211 +890,189 @@ public class JSONWriter {
     }
   }
 
-// Implementation methods
+  // Implementation methods
   // -------------------------------------------------------------------------
   protected void writeElement(Element element) throws IOException {
-    writer.write("\"");
-    writer.write(getJsonElementName(element));
-    writer.write("\"");
-    writer.write(": ");
+    writeElementName(element);
     writeElementContent(element);
   }
-  
+
   /**
-   * @param element in document
-   * @return qualified name of element massaged into a valid JavaScript
-   * identifier name to make JSON output valid. We replace hyphens ("-")
-   * with underscores ("_"). All other invalid characters (e.g., "+")
-   * are replaced with Unicode code point sequence of the form "_uXXXX_"
-   * (e.g., "_u002B_"). JavaScript reserved words (e.g., "protected")
-   * are prefixed with underscores (e.g., "_protected").
+   * Writes the property name for <code>element</code>, i.e.,
+   * <code>"name": </code>
    */
-  private String getJsonElementName(Element element) {
-    char[] block = null;
-    int i;
-    int last = 0;
-    String name = element.getQualifiedName().replaceAll("-", "_");
-    
-    if (isJavaScriptReservedWord(name)) {
-      name = "_" + name;
-    }
-    
-    int size = name.length();
-    for (i = 0; i < size; i++) {
-      char c = name.charAt(i);
-      
-      if  (   (   (i == 0)
-              &&  (!Character.isJavaIdentifierStart(c)))
-          ||  (!Character.isJavaIdentifierPart(c))) {
-        int codePoint = Character.codePointAt(name, i);
-        if (block == null) {
-          block = name.toCharArray();
-        }
+  protected void writeElementName(Element element) throws IOException {
+    writePropertyName(getJsonElementName(element));
+  }
 
-        buffer.append(block, last, i - last);
-        buffer.append(String.format("_u%04X_", codePoint));
-        last = i + 1;
-      }
+  protected void writePropertyName(String name) throws IOException {
+    writer.write('"');
+    writer.write(name);
+    writer.write(tokens.nameEnd);
+  }
 
+  /**
+   * Writes the opening bracket ('{' or '[') of an object or array, and
+   * starts the line for its first member.
+   */
+  protected void writeOpen(char bracket) throws IOException {
+    writer.write(bracket);
+    writer.write(tokens.padding);
+    ++indentLevel;
+    if (humanFormat) {
+      writeLineStart();
     }
+  }
 
-    if (last == 0) {
-      return name;
+  /**
+   * Writes the separator between members of an object or array, and starts
+   * the line for the next member.
+   */
+  protected void writeSeparator() throws IOException {
+    writer.write(tokens.separator);
+    if (humanFormat) {
+      writeLineStart();
     }
+  }
 
-    if (last < size) {
-      buffer.append(block, last, i - last);
+  /**
+   * Ends the last member of an object or array, and writes the closing
+   * bracket ('}' or ']') on its own line.
+   */
+  protected void writeClose(char bracket) throws IOException {
+    writer.write(tokens.padding);
+    --indentLevel;
+    if (humanFormat) {
+      writeLineStart();
     }
-
-    String result = buffer.toString();
-    buffer.setLength(0);
-
-    return result;
+    writer.write(bracket);
   }
-  
-  private boolean isJavaScriptReservedWord(String name) {
-    return JAVASCRIPT_RESERVED_WORDS.contains(name);
+
+  /**
+   * Starts a new line, indented to the current level, in a single write
+   * when the level is in the precomputed table. If a subclass overrides
+   * {@link #writePrintln()} or {@link #indent()}, they're called instead.
+   */
+  private void writeLineStart() throws IOException {
+    if (lineHooksOverridden) {
+      writePrintln();
+      indent();
+    } else if (indentLevel < lineStarts.length) {
+      writer.write(lineStarts[Math.max(indentLevel, 0)]);
+    } else {
+      writer.write(lineSeparator);
+      writeIndent(indentLevel);
+    }
   }
 
-  protected void writeElementMixedContent(Element element) throws IOException {
-    int attributeCount = element.attributeCount();
-    writer.write("[ ");
-    
-    ++indentLevel;
-    writePrintln();
-    indent();
-    for (int i = 0; i < attributeCount; i++) {
-      if (i > 0) {
-        writer.write(", ");
-        writePrintln();
-        indent();
-      }
-      writeAttribute(element.attribute(i));
+  /**
+   * Writes the indentation for <code>level</code>, in chunks taken from
+   * the widest precomputed line start.
+   */
+  private void writeIndent(int level) throws IOException {
+    String widest = lineStarts[lineStarts.length - 1];
+    int offset = lineSeparator.length();
+    for (int count = level * indentWidth; count > 0; ) {
+      int length = Math.min(count, widest.length() - offset);
+      writer.write(widest, offset, length);
+      count -= length;
     }
-    for (int i = 0, nodesWritten = 0, nodeCount = element.nodeCount(); i < nodeCount; i++) {
-      Node node = element.node(i);
-      
-      // Skip any whitespace-only Text nodes
-      if  (   (node instanceof Text)
-          &&  (node.getText().trim().length() == 0)) {
-        continue;
-      }
-      
-      if ((attributeCount + nodesWritten) > 0) {
-        writer.write(", ");
-        writePrintln();
-        indent();
-      }
-      if  (   (node instanceof Element)
-          ||  (format.equals(JSONFormat.BADGER_FISH))) {
-        writer.write("{ ");
-        
-        ++indentLevel;
-        writePrintln();
-        indent();
-        if (!(node instanceof Element)) {
-          writer.write("\"$\": ");
-        }
-        writeNode(node);
+  }
 
-        writer.write(" ");
-        
-        --indentLevel;
-        writePrintln();
-        indent();
-        writer.write("}");
-        
-      } else {
-        writeNode(node);
-      }
-      
-      nodesWritten++;
+  /**
+   * @return true if <code>type</code> itself declares a method called
+   * <code>name</code> with no parameters
+   */
+  private static boolean declares(Class<?> type, String name) {
+    try {
+      type.getDeclaredMethod(name);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
     }
-    writer.write(" ");
-    
-   --indentLevel;
-    writePrintln();
-    indent();
-    writer.write("]");
+  }
+
+  /**
+   * @return the punctuation this writer uses
+   */
+  JSONTokens getTokens() {
+    return tokens;
+  }
+
+  /**
+   * Writes JSON that's already been serialized, e.g. by another thread.
+   */
+  void writeRaw(String json) throws IOException {
+    writer.write(json);
+  }
+
+  /**
+   * Switches output to <code>writer</code>, e.g. to record what's written,
+   * without changing auto-flushing.
+   *
+   * @return the writer that was being used
+   */
+  Writer swapWriter(Writer writer) {
+    Writer old = this.writer;
+    this.writer = writer;
+    return old;
   }
   
-  protected void writeElementContent(Element element) throws IOException {
-    
-    // Mixed content (element and text nodes) at the same level become
-    // array elements.
-    if (element.hasMixedContent()) {
-      writeElementMixedContent(element);
-      return;
-    }
-    
-    // BASIC_OUTPUT & RABBIT_FISH: Text content goes directly in the value
-    // of an object. For BADGER_FISH, we end up here processing the "$:"
-    // property we add below.
-    if  (   (element.attributeCount() == 0)
-        &&  element.isTextOnly()
-        &&  (   format.equals(JSONFormat.BASIC_OUTPUT)
-            ||  format.equals(JSONFormat.RABBIT_FISH)
-            ||  element.getName().equals("$"))) {
-      writeNodeText(element);
-      return;
-    }
-    
-    // We have to collect all children with the same name into an array
-    // which becomes the value of that property
-    ArrayList<ArrayList<Node>> properties = new ArrayList<ArrayList<Node>>();
-    
-    // Loop over the attributes to help determine answers to the above
-    for (int i = 0, attributeCount = element.attributeCount(); i < attributeCount; i++) {
-      addProperty(properties, element.attribute(i));
-    }
-    
-    // Concatenate any Text nodes into a single property
-    if (element.isTextOnly()) {
-      addProperty(properties, new DefaultElement("$").addText(element.getText()));
-    }
-
-    // Loop over the nodes to help determine answers to the above
-    for (int i = 0, nodeCount = element.nodeCount(); i < nodeCount; i++) {
-      Node node = element.node(i);
-
-      if (node instanceof Namespace) {
-        // namespaces not supported yet
-        
-      } else if (node instanceof Comment) {
-        // comments ignored
-        
-      } else if (node instanceof Element) {
-        addProperty(properties, node);
-        
-      } else if (node instanceof Text) {
-        // text nodes were concatenated above
-        
-      } else {
-        // ignore everything else
-      }
+  /**
+   * @param element in document
+   * @return qualified name of element massaged into a valid JavaScript
+   * identifier name to make JSON output valid (see
+   * {@link JSONNameCache#translate(String)}).
+   */
+  private String getJsonElementName(Element element) {
+    String qualifiedName = element.getQualifiedName();
+    String name = nameCache.getCachedName(format, qualifiedName);
+    nameLookups++;
+    if (name == null) {
+      nameMisses++;
+      name = nameCache.addName(format, qualifiedName);
     }
 
-    writer.write("{ ");
-      
-    ++indentLevel;
-    writePrintln();
-    indent();
-    for (int i = 0, propertyCount = properties.size(); i < propertyCount; i++) {
-      if (i > 0) {
-        writer.write(", ");
-        writePrintln();
-        indent();
-      }
-      writeProperty(properties.get(i));
+    return name;
+  }
+
+  /**
+   * Writes the JSON value for the content of <code>element</code>: a
+   * string for text-only content, an array for mixed content, and
+   * otherwise an object with a property for each attribute, for any text,
+   * and for each group of same-named child elements.
+   * 
+   * The element's descendants are written by a {@link JSONTreeWalker},
+   * without recursion, so this doesn't call back into
+   * <code>writeElement()</code> or <code>writeElementContent()</code> for
+   * them.
+   * 
+   * @param element
+   *            <code>Element</code> whose content is written.
+   * 
+   * @throws IOException
+   *             DOCUMENT ME!
+   */
+  protected void writeElementContent(Element element) throws IOException {
+    if (walker == null) {
+      walker = new JSONTreeWalker(new TextSink(), this);
     }
-    writer.write(" ");
-    
-    --indentLevel;
-    writePrintln();
-    indent();
-    writer.write("}");
+    walker.writeElementContent(element);
+  }
+
+  protected void addProperty(JSONPropertyGroups properties, Node property) {
+    properties.add(property);
   }
 
+  /**
+   * Adds <code>property</code> to the group of same-named elements in
+   * <code>properties</code>, or to a new group.
+   *
+   * @deprecated Properties are now grouped in a {@link JSONPropertyGroups};
+   *             override {@link #addProperty(JSONPropertyGroups, Node)}
+   *             instead. This method is no longer called by the writer.
+   */
+  @Deprecated
   protected void addProperty( ArrayList<ArrayList<Node>> properties,
                               Node property) {
     ArrayList<Node> targetPropertyList = null;
@@ -602,36 +1092,57 @@ public class JSONWriter {
     targetPropertyList.add(property);
   }
 
+  /**
+   * Writes a group of properties: a single node as itself, or same-named
+   * elements as an array.
+   *
+   * @deprecated Element content, including property groups, is written by
+   *             {@link #writeElementContent(Element)}, which no longer calls
+   *             this method.
+   */
+  @Deprecated
   protected void writeProperty(ArrayList<Node> property) throws IOException {
     if (property.size() == 1) {
       writeNode(property.get(0));
-      
+
     } else {
-      String propertyName = ((Element)(property.get(0))).getName();
-      writer.write("\"");
-      writer.write(propertyName);
-      writer.write("\": ");
-      writer.write("[ ");
-      
-      ++indentLevel;
-      writePrintln();
-      indent();
-      Iterator<Node> nodeIterator = property.iterator();
-      for (int nodeIndex = 0; nodeIterator.hasNext(); nodeIndex++) {
-        if (nodeIndex > 0) {
-          writer.write(", ");
-          writePrintln();
-          indent();
+      writePropertyName(((Element)(property.get(0))).getName());
+      writeOpen('[');
+      for (int i = 0, size = property.size(); i < size; i++) {
+        if (i > 0) {
+          writeSeparator();
         }
-        writeElementContent((Element)(nodeIterator.next()));
+        writeElementContent((Element)(property.get(i)));
       }
-      
-      writer.write(" ");
-      --indentLevel;
-      writePrintln();
+      writeClose(']');
+    }
+  }
+
+  /**
+   * Writes the content of <code>element</code>, which has mixed content,
+   * as an array.
+   *
+   * @deprecated Mixed content is written by
+   *             {@link #writeElementContent(Element)}, which no longer calls
+   *             this method; this just delegates to it.
+   */
+  @Deprecated
+  protected void writeElementMixedContent(Element element) throws IOException {
+    writeElementContent(element);
+  }
+
+  private void writeDocumentStart(Document doc) throws IOException {
+    if (doc.getDocType() != null) {
       indent();
-      writer.write("]");
+      writeDocType(doc.getDocType());
+      writer.write(" = ");
     }
+    writeOpen('{');
+  }
+
+  private void writeDocumentEnd() throws IOException {
+    writeClose('}');
+    writePrintln();
   }
 
   protected void writeDocType(DocumentType docType) throws IOException {
@@ -649,13 +1160,7 @@ public class JSONWriter {
   }
 
   protected void writeAttribute(Attribute attribute) throws IOException {
-    writer.write("\"");
-    if  (   format.equals(JSONFormat.BADGER_FISH)
-        ||  format.equals(JSONFormat.RABBIT_FISH)) {
-      writer.write("@");
-    }
-    writer.write(attribute.getQualifiedName());
-    writer.write("\": ");
+    emitter.writeAttributeName(writer, attribute.getQualifiedName(), tokens);
     writeString(attribute.getText());
   }
 
@@ -682,13 +1187,23 @@ public class JSONWriter {
     writeString(node.getText());
   }
 
+  /**
+   * Writes <code>text</code>, trimmed and escaped, as a JSON string. The
+   * trimmed range is escaped straight from <code>text</code> to the
+   * writer.
+   */
   protected void writeString(String text) throws IOException {
     if (text != null) {
-      text = escapeElementEntities(text.trim());
+      if (stats != null) {
+        stats.addText(text.length());
+      }
+
+      int end = JSONEscaper.trimEnd(text);
+      int start = JSONEscaper.trimStart(text, end);
 
-      writer.write("\"");
-      writer.write(text);
-      writer.write("\"");
+      writer.write('"');
+      escapesWritten += JSONEscaper.writeEscaped(writer, text, start, end);
+      writer.write('"');
     }
   }
   
@@ -743,9 +1258,7 @@ public class JSONWriter {
 
   protected void indent() throws IOException {
     if (humanFormat) {
-      for (int i = 0; i < indentLevel; i++) {
-        writer.write("  ");
-      }
+      writeIndent(indentLevel);
     }
   }
 
@@ -759,14 +1272,13 @@ public class JSONWriter {
    */
   protected void writePrintln() throws IOException {
     if (humanFormat) {
-      writer.write(format.getLineSeparator());
+      writer.write(lineSeparator);
     }
   }
 
   /**
-   * This will take the pre-defined entities in XML 1.0 and convert their
-   * character representation to the appropriate entity reference, suitable
-   * for XML attributes.
+   * Escapes the characters in <code>text</code> that can't appear as-is in
+   * a JSON string (see {@link JSONEscaper}).
    * 
    * @param text
    *            DOCUMENT ME!
@@ -774,72 +1286,19 @@ public class JSONWriter {
    * @return DOCUMENT ME!
    */
   protected String escapeElementEntities(String text) {
-    char[] block = null;
-    int i;
-    int last = 0;
-    int size = text.length();
-
-    for (i = 0; i < size; i++) {
-      String entity = null;
-      char c = text.charAt(i);
-
-      switch (c) {
-      case '"':
-        entity = "\\\"";
-
-        break;
-
-      case '/':
-        entity = "\\/";
-
-        break;
-
-      case '\\':
-        entity = "\\\\";
-
-        break;
-      }
-
-      if (entity != null) {
-        if (block == null) {
-          block = text.toCharArray();
-        }
-
-        buffer.append(block, last, i - last);
-        buffer.append(entity);
-        last = i + 1;
-      }
-    }
-
-    if (last == 0) {
-      return text;
-    }
-
-    if (last < size) {
-      if (block == null) {
-        block = text.toCharArray();
-      }
-
-      buffer.append(block, last, i - last);
-    }
-
-    String answer = buffer.toString();
-    buffer.setLength(0);
-
-    return answer;
+    return JSONEscaper.escape(text);
   }
 
   protected void writeEscapeAttributeEntities(String txt) throws IOException {
       if (txt != null) {
-          String escapedText = escapeAttributeEntities(txt);
-          writer.write(escapedText);
+          escapesWritten += JSONEscaper.writeEscaped(writer, txt, 0, txt.length());
       }
   }
 
   /**
-   * This will take the pre-defined entities in XML 1.0 and convert their
-   * character representation to the appropriate entity reference, suitable
-   * for XML attributes.
+   * Escapes the characters in <code>text</code> that can't appear as-is in
+   * a JSON string. Attribute values are escaped the same way as element
+   * text.
    * 
    * @param text
    *            DOCUMENT ME!
@@ -847,59 +1306,7 @@ public class JSONWriter {
    * @return DOCUMENT ME!
    */
   protected String escapeAttributeEntities(String text) {
-    char[] block = null;
-    int i;
-    int last = 0;
-    int size = text.length();
-
-    for (i = 0; i < size; i++) {
-      String entity = null;
-      char c = text.charAt(i);
-
-      switch (c) {
-      case '"':
-        entity = "\\\"";
-
-        break;
-
-      case '/':
-        entity = "\\/";
-
-        break;
-
-      case '\\':
-        entity = "\\\\";
-
-        break;
-      }
-
-      if (entity != null) {
-        if (block == null) {
-          block = text.toCharArray();
-        }
-
-        buffer.append(block, last, i - last);
-        buffer.append(entity);
-        last = i + 1;
-      }
-    }
-
-    if (last == 0) {
-      return text;
-    }
-
-    if (last < size) {
-      if (block == null) {
-        block = text.toCharArray();
-      }
-
-      buffer.append(block, last, i - last);
-    }
-
-    String answer = buffer.toString();
-    buffer.setLength(0);
-
-    return answer;
+    return JSONEscaper.escape(text);
   }
 
   protected boolean isNamespaceDeclaration(Namespace ns) {
@@ -930,4 +1337,69 @@ public class JSONWriter {
     return format;
   }
 
+  /**
+   * Passes the tokens of element content, from the {@link JSONTreeWalker},
+   * to this writer's methods, so that subclasses can still override them.
+   */
+  private final class TextSink implements JSONTokenSink {
+    public JSONWriterConfig getConfig() {
+      return config;
+    }
+
+    public JSONEmitter getEmitter() {
+      return emitter;
+    }
+
+    public boolean isSizeRequired() {
+      return false;
+    }
+
+    public void writeOpen(char bracket, int size) throws IOException {
+      JSONWriter.this.writeOpen(bracket);
+    }
+
+    public void writeSeparator() throws IOException {
+      JSONWriter.this.writeSeparator();
+    }
+
+    public void writeClose(char bracket) throws IOException {
+      JSONWriter.this.writeClose(bracket);
+    }
+
+    public void writeElementName(Element element) throws IOException {
+      JSONWriter.this.writeElementName(element);
+    }
+
+    public void writePropertyName(String name) throws IOException {
+      JSONWriter.this.writePropertyName(name);
+    }
+
+    public void writeAttribute(Attribute attribute) throws IOException {
+      JSONWriter.this.writeAttribute(attribute);
+    }
+
+    /**
+     * Text output has always written the name and value as they are, as in
+     * an object.
+     */
+    public void writeMixedAttribute(Attribute attribute) throws IOException {
+      JSONWriter.this.writeAttribute(attribute);
+    }
+
+    public void writeNode(Node node) throws IOException {
+      JSONWriter.this.writeNode(node);
+    }
+
+    public void writeNodeText(Node node) throws IOException {
+      JSONWriter.this.writeNodeText(node);
+    }
+
+    public void writeString(String text) throws IOException {
+      JSONWriter.this.writeString(text);
+    }
+
+    public void addProperty(JSONPropertyGroups properties, Node property) {
+      JSONWriter.this.addProperty(properties, property);
+    }
+  }
 }
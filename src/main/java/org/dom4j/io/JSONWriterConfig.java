@@ -0,0 +1,711 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+
+import org.dom4j.Node;
+
+/**
+ * Immutable configuration for {@link JSONWriter}. A config can be shared
+ * by any number of threads, and doubles as a factory: {@link #write(Node,
+ * Writer)} and {@link #write(Node, OutputStream)} serialize using a
+ * per-thread <code>JSONWriter</code> (with its scratch stack and UTF-8
+ * buffer), so one configured instance can serve all request threads
+ * without any per-request setup. The per-thread writers are shared by all
+ * configs, so a config made for one request (e.g. with its own projection)
+ * costs no more than the config object itself.
+ *
+ * Settings are changed by making a modified copy, e.g.
+ * <code>new JSONWriterConfig(JSONFormat.BADGER_FISH).withHumanFormat(true)</code>.
+ */
+public final class JSONWriterConfig {
+
+  public static final JSONWriterConfig DEFAULT = new JSONWriterConfig(JSONWriter.DEFAULT_FORMAT);
+
+  /** Objects with fewer child nodes than this are written sequentially */
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+
+  public static final int DEFAULT_INDENT_WIDTH = 2;
+
+  /** Indentation levels with a precomputed line start */
+  private static final int LINE_START_LEVELS = 32;
+
+  /** How write(Node, OutputStream) encodes, by the format's encoding */
+  private static final int ENCODING_UTF8 = 1;
+  private static final int ENCODING_ASCII = 2;
+  private static final int ENCODING_OTHER = 3;
+
+  /** Writers (and buffers) reused by the write methods of all configs */
+  private static final ThreadLocal<Context> CONTEXTS = new ThreadLocal<Context>();
+
+  private final Settings settings;
+
+  // The rest are derived from the settings on first use. Two threads may
+  // both make one, which is harmless, since either will do.
+
+  /**
+   * For human format, the line separator followed by the indentation for
+   * each level, so a new line is started with one write. Otherwise null.
+   */
+  private volatile String[] lineStarts;
+
+  /** Writes large objects in parallel, or null if there's no pool */
+  private volatile JSONParallelWriter parallelWriter;
+
+  /** This config without metrics, so measuring isn't recorded as writing */
+  private volatile JSONWriterConfig measuringConfig;
+
+  /**
+   * This config without metrics, or the fragment cache and pool, whose
+   * output isn't written node by node, for measuring with statistics
+   */
+  private volatile JSONWriterConfig statsConfig;
+
+  /** Settings that affect the text of a fragment, as a fragment cache key */
+  private volatile String fragmentStyle;
+
+  /** One of the ENCODING_ types, or 0 if it isn't known yet */
+  private volatile int encodingType;
+
+  public JSONWriterConfig(JSONFormat format) {
+    this(new Settings(format));
+  }
+
+  private JSONWriterConfig(Settings settings) {
+    if ((settings.format == null) || (settings.nameCache == null)) {
+      throw new IllegalArgumentException("format and nameCache can't be null");
+    }
+
+    this.settings = settings;
+  }
+
+  public JSONFormat getFormat() {
+    return settings.format;
+  }
+
+  /**
+   * @return true if output has indentation, newlines, etc.
+   */
+  public boolean isHumanFormat() {
+    return settings.humanFormat;
+  }
+
+  /**
+   * @return true if output has no optional whitespace at all, e.g.
+   * <code>{"a":"b"}</code> rather than <code>{ "a": "b" }</code>.
+   */
+  public boolean isCompact() {
+    return settings.compact;
+  }
+
+  /**
+   * @return the number of spaces per indentation level, in human format
+   */
+  public int getIndentWidth() {
+    return settings.indentWidth;
+  }
+
+  /**
+   * @return the line separator for human format: the one set on this
+   * config, or by default the format's.
+   */
+  public String getLineSeparator() {
+    return (settings.lineSeparator != null) ? settings.lineSeparator : settings.format.getLineSeparator();
+  }
+
+  /**
+   * @return the number of indentations each write starts at
+   */
+  public int getIndentLevel() {
+    return settings.indentLevel;
+  }
+
+  public JSONNameCache getNameCache() {
+    return settings.nameCache;
+  }
+
+  /**
+   * @return the cache of element shapes, or null if shapes aren't cached.
+   */
+  public JSONShapeCache getShapeCache() {
+    return settings.shapeCache;
+  }
+
+  /**
+   * @return the metrics that writers add to, or null if they don't.
+   */
+  public JSONWriterMetrics getMetrics() {
+    return settings.metrics;
+  }
+
+  /**
+   * @return the cache of written fragments, or null if they aren't cached.
+   */
+  public JSONFragmentCache getFragmentCache() {
+    return settings.fragmentCache;
+  }
+
+  /**
+   * @return the projection limiting what's written, or null if everything
+   * is written.
+   */
+  public JSONProjection getProjection() {
+    return settings.projection;
+  }
+
+  /**
+   * @return the pool used to write large objects in parallel, or null if
+   * all output is written by the calling thread.
+   */
+  public ForkJoinPool getParallelPool() {
+    return settings.pool;
+  }
+
+  /**
+   * @return the minimum number of child nodes an element needs for its
+   * properties to be written in parallel.
+   */
+  public int getParallelThreshold() {
+    return settings.parallelThreshold;
+  }
+
+  public JSONWriterConfig withFormat(JSONFormat format) {
+    Settings copy = settings.copy();
+    copy.format = format;
+    return new JSONWriterConfig(copy);
+  }
+
+  public JSONWriterConfig withHumanFormat(boolean humanFormat) {
+    Settings copy = settings.copy();
+    copy.humanFormat = humanFormat;
+    return new JSONWriterConfig(copy);
+  }
+
+  /**
+   * Leaves out the spaces normally written inside brackets and after
+   * separators, for the smallest possible output. Combined with human
+   * format, lines are still broken and indented.
+   */
+  public JSONWriterConfig withCompact(boolean compact) {
+    Settings copy = settings.copy();
+    copy.compact = compact;
+    return new JSONWriterConfig(copy);
+  }
+
+  public JSONWriterConfig withIndentWidth(int indentWidth) {
+    if (indentWidth < 0) {
+      throw new IllegalArgumentException("Indent width can't be negative: " + indentWidth);
+    }
+
+    Settings copy = settings.copy();
+    copy.indentWidth = indentWidth;
+    return new JSONWriterConfig(copy);
+  }
+
+  /**
+   * @param lineSeparator
+   *            line separator for human format, or null (the default) to
+   *            use the format's.
+   */
+  public JSONWriterConfig withLineSeparator(String lineSeparator) {
+    Settings copy = settings.copy();
+    copy.lineSeparator = lineSeparator;
+    return new JSONWriterConfig(copy);
+  }
+
+  public JSONWriterConfig withIndentLevel(int indentLevel) {
+    Settings copy = settings.copy();
+    copy.indentLevel = indentLevel;
+    return new JSONWriterConfig(copy);
+  }
+
+  public JSONWriterConfig withNameCache(JSONNameCache nameCache) {
+    Settings copy = settings.copy();
+    copy.nameCache = nameCache;
+    return new JSONWriterConfig(copy);
+  }
+
+  /**
+   * Uses <code>shapeCache</code> to write elements with a known structure
+   * in one pass, without grouping their children (see
+   * {@link JSONShapeCache}). The cache can be shared by many configs.
+   *
+   * @param shapeCache
+   *            cache to use, or null (the default) to always group children
+   */
+  public JSONWriterConfig withShapeCache(JSONShapeCache shapeCache) {
+    Settings copy = settings.copy();
+    copy.shapeCache = shapeCache;
+    return new JSONWriterConfig(copy);
+  }
+
+  /**
+   * Has writers add what they write to <code>metrics</code>, which can be
+   * shared by many configs.
+   *
+   * @param metrics
+   *            metrics to add to, or null (the default) for none
+   */
+  public JSONWriterConfig withMetrics(JSONWriterMetrics metrics) {
+    Settings copy = settings.copy();
+    copy.metrics = metrics;
+    return new JSONWriterConfig(copy);
+  }
+
+  /**
+   * Uses <code>fragmentCache</code> to copy the JSON for unchanged
+   * elements from earlier writes, rather than writing it again (see
+   * {@link JSONFragmentCache}). The cache can be shared by many configs.
+   * Elements written from the cache aren't included in metrics' element
+   * and attribute counts.
+   *
+   * @param fragmentCache
+   *            cache to use, or null (the default) to always write elements
+   */
+  public JSONWriterConfig withFragmentCache(JSONFragmentCache fragmentCache) {
+    Settings copy = settings.copy();
+    copy.fragmentCache = fragmentCache;
+    return new JSONWriterConfig(copy);
+  }
+
+  /**
+   * Only writes the parts of each node that <code>projection</code>
+   * selects (see {@link JSONProjection}). The projection can be shared by
+   * many configs.
+   *
+   * @param projection
+   *            projection to use, or null (the default) to write everything
+   */
+  public JSONWriterConfig withProjection(JSONProjection projection) {
+    Settings copy = settings.copy();
+    copy.projection = projection;
+    return new JSONWriterConfig(copy);
+  }
+
+  /**
+   * Writes the properties of large objects in parallel using
+   * <code>pool</code>. The first element (in document order) with at least
+   * {@link #getParallelThreshold()} child nodes has its child elements split
+   * into chunks, which are serialized by the pool's threads and then written
+   * in order. Everything else, including smaller documents, is written by
+   * the calling thread. The output is identical either way.
+   *
+   * @param pool
+   *            pool to use, or null to write everything sequentially
+   */
+  public JSONWriterConfig withParallelism(ForkJoinPool pool) {
+    Settings copy = settings.copy();
+    copy.pool = pool;
+    return new JSONWriterConfig(copy);
+  }
+
+  public JSONWriterConfig withParallelThreshold(int parallelThreshold) {
+    if (parallelThreshold < 1) {
+      throw new IllegalArgumentException("Parallel threshold must be positive: " + parallelThreshold);
+    }
+
+    Settings copy = settings.copy();
+    copy.parallelThreshold = parallelThreshold;
+    return new JSONWriterConfig(copy);
+  }
+
+  String[] getLineStarts() {
+    String[] result = lineStarts;
+    if ((result == null) && settings.humanFormat) {
+      StringBuilder lineStart = new StringBuilder(getLineSeparator());
+      result = new String[LINE_START_LEVELS];
+      for (int level = 0; level < LINE_START_LEVELS; level++) {
+        result[level] = lineStart.toString();
+        for (int i = 0; i < settings.indentWidth; i++) {
+          lineStart.append(' ');
+        }
+      }
+      lineStarts = result;
+    }
+
+    return result;
+  }
+
+  JSONParallelWriter getParallelWriter() {
+    JSONParallelWriter result = parallelWriter;
+    if ((result == null) && (settings.pool != null)) {
+      Settings sequential = settings.copy();
+      sequential.pool = null;
+
+      // Chunks are only ever parts of wholly included elements
+      sequential.projection = null;
+      result = new JSONParallelWriter(settings.pool, new JSONWriterConfig(sequential));
+      parallelWriter = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * @return the output style of this config, which fragments are cached
+   * under: the same for configs whose output differs only in indentation
+   * level, and different otherwise.
+   */
+  String getFragmentStyle() {
+    String result = fragmentStyle;
+    if (result == null) {
+      StringBuilder style = new StringBuilder(settings.format.name());
+      style.append(settings.compact ? "/compact" : "/padded");
+      if (settings.humanFormat) {
+        style.append("/human/").append(settings.indentWidth).append('/').append(getLineSeparator());
+      }
+      result = style.toString();
+      fragmentStyle = result;
+    }
+
+    return result;
+  }
+
+  private JSONWriterConfig getMeasuringConfig() {
+    JSONWriterConfig result = measuringConfig;
+    if (result == null) {
+      if (settings.metrics == null) {
+        result = this;
+      } else {
+        Settings unmeasured = settings.copy();
+        unmeasured.metrics = null;
+        result = new JSONWriterConfig(unmeasured);
+      }
+      measuringConfig = result;
+    }
+
+    return result;
+  }
+
+  private JSONWriterConfig getStatsConfig() {
+    JSONWriterConfig result = statsConfig;
+    if (result == null) {
+      if  (   (settings.metrics == null)
+          &&  (settings.fragmentCache == null)
+          &&  (settings.pool == null)) {
+        result = this;
+      } else {
+        Settings walked = settings.copy();
+        walked.metrics = null;
+        walked.fragmentCache = null;
+        walked.pool = null;
+        result = new JSONWriterConfig(walked);
+      }
+      statsConfig = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * @return a new writer using this configuration, which (like all
+   * <code>JSONWriter</code>s) must only be used by one thread at a time.
+   */
+  public JSONWriter createWriter(Writer writer) {
+    return new JSONWriter(writer, this);
+  }
+
+  public JSONWriter createWriter(OutputStream out) throws UnsupportedEncodingException {
+    return new JSONWriter(out, this);
+  }
+
+  /**
+   * @return a new writer using this configuration for binary output (see
+   * {@link JSONBinaryWriter}), which must only be used by one thread at a
+   * time.
+   */
+  public JSONBinaryWriter createBinaryWriter(OutputStream out, JSONBinaryFormat binaryFormat) {
+    return new JSONBinaryWriter(out, binaryFormat, this);
+  }
+
+  /**
+   * Writes <code>node</code> to <code>writer</code>, using this thread's
+   * reusable <code>JSONWriter</code>, set to this config. The writer isn't
+   * flushed.
+   *
+   * @throws IOException
+   *             if there's any problem writing.
+   */
+  public void write(Node node, Writer writer) throws IOException {
+    write(node, writer, null);
+  }
+
+  /**
+   * Writes <code>node</code> as {@link #write(Node, Writer)}, adding what's
+   * written to <code>stats</code> if it isn't null.
+   */
+  private void write(Node node, Writer writer, JSONOutputStats stats) throws IOException {
+    Context context = acquireContext();
+    try {
+      write(context, node, writer, stats);
+    } finally {
+      context.busy = false;
+    }
+  }
+
+  /**
+   * Writes <code>node</code> to <code>out</code> in the format's encoding,
+   * and flushes it. For UTF-8 and other ASCII-compatible encodings, this
+   * thread's <code>UTF8Writer</code> (and its byte buffer) is reused.
+   *
+   * @throws IOException
+   *             if there's any problem writing.
+   */
+  public void write(Node node, OutputStream out) throws IOException {
+    write(node, out, null);
+  }
+
+  private void write(Node node, OutputStream out, JSONOutputStats stats) throws IOException {
+    int type = getEncodingType();
+    if (type == ENCODING_OTHER) {
+      // No reusable writer for this encoding
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, settings.format.getEncoding()));
+      write(node, writer, stats);
+      writer.flush();
+      return;
+    }
+
+    Context context = acquireContext();
+    try {
+      UTF8Writer utf8Writer;
+      if (type == ENCODING_UTF8) {
+        if (context.utf8Writer == null) {
+          context.utf8Writer = new UTF8Writer(null);
+        }
+        utf8Writer = context.utf8Writer;
+      } else {
+        if (context.asciiWriter == null) {
+          context.asciiWriter = new UTF8Writer(null, true);
+        }
+        utf8Writer = context.asciiWriter;
+      }
+
+      utf8Writer.setOutputStream(out);
+      try {
+        write(context, node, utf8Writer, stats);
+        utf8Writer.flush();
+      } finally {
+        utf8Writer.setOutputStream(null);
+      }
+    } finally {
+      context.busy = false;
+    }
+  }
+
+  private void write(Context context, Node node, Writer writer, JSONOutputStats stats)
+  throws IOException {
+    JSONWriter jsonWriter = context.getWriter(this);
+    jsonWriter.reset(writer);
+    jsonWriter.setStats(stats);
+    try {
+      jsonWriter.write(node);
+    } finally {
+      jsonWriter.setStats(null);
+      jsonWriter.reset(null);
+    }
+  }
+
+  /**
+   * @return the exact number of bytes that {@link #write(Node, OutputStream)}
+   * would write for <code>node</code>, e.g. for a Content-Length header.
+   * The output is produced by the same code as for a real write, with the
+   * same name cache and escaping, but its characters are only counted, as
+   * the bytes they'd be encoded as, and never encoded or kept. So this
+   * costs less than writing, but still walks everything that would be
+   * written. For encodings that aren't ASCII-compatible (e.g. UTF-16), the
+   * output is encoded and then counted, which costs as much as writing.
+   *
+   * @throws IOException
+   *             if writing would fail, e.g. for an unsupported node type
+   */
+  public long measure(Node node) throws IOException {
+    return measure(node, null);
+  }
+
+  /**
+   * Measures <code>node</code>, as {@link #measure(Node)}, and if
+   * <code>stats</code> isn't null, also fills it in (after clearing it).
+   * Measuring isn't recorded in this config's metrics.
+   *
+   * The statistics are counted by the same walk, as the output is counted,
+   * so they only cover what's written: nodes a projection leaves out, and
+   * comments, aren't counted. To count every node, the fragment cache and
+   * pool aren't used while collecting them.
+   *
+   * @throws IOException
+   *             if writing would fail, e.g. for an unsupported node type
+   */
+  public long measure(Node node, JSONOutputStats stats) throws IOException {
+    JSONWriterConfig config;
+    if (stats == null) {
+      config = getMeasuringConfig();
+    } else {
+      config = getStatsConfig();
+      stats.clear();
+    }
+
+    long length;
+    int type = getEncodingType();
+    if (type == ENCODING_OTHER) {
+      MeasuringOutputStream out = new MeasuringOutputStream();
+      config.write(node, out, stats);
+      length = out.getCount();
+    } else {
+      MeasuringWriter writer = new MeasuringWriter(type == ENCODING_ASCII);
+      config.write(node, writer, stats);
+      length = writer.getCount();
+    }
+
+    if (stats != null) {
+      stats.setByteLength(length);
+    }
+    return length;
+  }
+
+  /**
+   * @return a <code>JSONWriter</code> for this config, writing to
+   * <code>writer</code>, from the ones this thread reuses. It must be
+   * handed back with {@link #releaseWriter(JSONWriter)}.
+   */
+  JSONWriter acquireWriter(Writer writer) {
+    JSONWriter jsonWriter = acquireContext().getWriter(this);
+    jsonWriter.reset(writer);
+    return jsonWriter;
+  }
+
+  static void releaseWriter(JSONWriter jsonWriter) {
+    jsonWriter.reset(null);
+    for (Context context = CONTEXTS.get(); context != null; context = context.nested) {
+      if (context.jsonWriter == jsonWriter) {
+        context.busy = false;
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return this thread's first context that isn't in use, marked as in
+   * use. A write that starts while another is under way on the same thread
+   * (e.g. a parallel chunk run while waiting for the others) gets a nested
+   * one.
+   */
+  private static Context acquireContext() {
+    Context context = CONTEXTS.get();
+    if (context == null) {
+      context = new Context();
+      CONTEXTS.set(context);
+    }
+
+    while (context.busy) {
+      if (context.nested == null) {
+        context.nested = new Context();
+      }
+      context = context.nested;
+    }
+
+    context.busy = true;
+    return context;
+  }
+
+  /**
+   * @return {@link #ENCODING_UTF8}, {@link #ENCODING_ASCII} or
+   * {@link #ENCODING_OTHER}, for the format's encoding
+   */
+  private int getEncodingType() throws UnsupportedEncodingException {
+    int result = encodingType;
+    if (result == 0) {
+      String encoding = settings.format.getEncoding();
+      if (UTF8Writer.isUTF8(encoding)) {
+        result = ENCODING_UTF8;
+      } else if (UTF8Writer.isAsciiCompatible(encoding)) {
+        result = ENCODING_ASCII;
+      } else {
+        result = ENCODING_OTHER;
+      }
+      encodingType = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * The values of a config's settings, copied to make a modified config.
+   */
+  private static final class Settings implements Cloneable {
+    JSONFormat format;
+    boolean humanFormat = false;
+    boolean compact = false;
+    int indentWidth = DEFAULT_INDENT_WIDTH;
+    String lineSeparator = null;
+    int indentLevel = 0;
+    JSONNameCache nameCache = JSONNameCache.getDefault();
+    JSONShapeCache shapeCache = null;
+    JSONWriterMetrics metrics = null;
+    JSONFragmentCache fragmentCache = null;
+    JSONProjection projection = null;
+    ForkJoinPool pool = null;
+    int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    Settings(JSONFormat format) {
+      this.format = format;
+    }
+
+    Settings copy() {
+      try {
+        return (Settings)clone();
+      } catch (CloneNotSupportedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * Per-thread state for the write methods, shared by all configs.
+   */
+  private static final class Context {
+    /** True while a write is using this context */
+    boolean busy;
+
+    /** Created on first use, and switched to the config that's writing */
+    JSONWriter jsonWriter;
+
+    /** Created on first use, for UTF-8 and other ASCII-compatible encodings */
+    UTF8Writer utf8Writer;
+
+    UTF8Writer asciiWriter;
+
+    /** Context for a write started while this one is busy, or null */
+    Context nested;
+
+    JSONWriter getWriter(JSONWriterConfig config) {
+      if (jsonWriter == null) {
+        jsonWriter = new JSONWriter((Writer) null, config);
+      } else if (jsonWriter.getConfig() != config) {
+        jsonWriter.setConfig(config);
+      }
+
+      return jsonWriter;
+    }
+  }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Serialization metrics, collected by every {@link JSONWriter} whose config
+ * has them (see {@link JSONWriterConfig#withMetrics(JSONWriterMetrics)}).
+ * One instance can be shared by any number of configs and threads: the
+ * counters are striped <code>LongAdder</code>s, and a writer only adds to
+ * them once per document, from counts it keeps in plain fields as it
+ * writes. Without metrics, nothing is recorded.
+ * </p>
+ *
+ * <p>
+ * Time per document goes into a histogram with logarithmic buckets, each
+ * split into 8 linear sub-buckets (as in HdrHistogram), so percentiles are
+ * within 12.5%. Bytes are only counted for output written through a
+ * {@link UTF8Writer} (which includes {@link JSONWriterConfig#write(org.dom4j.Node,
+ * java.io.OutputStream)} for UTF-8 and ASCII-compatible formats), since
+ * output to any other <code>Writer</code> hasn't been encoded yet.
+ * </p>
+ *
+ * <p>
+ * Read the values with {@link #snapshot()}, or through JMX after
+ * {@link #registerMBean(String)}.
+ * </p>
+ */
+public class JSONWriterMetrics implements JSONWriterMetricsMBean {
+
+  /** Linear sub-buckets per power of two, as a number of bits */
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /** Times of 2^MAX_EXPONENT ns (about 18 minutes) or more share a bucket */
+  private static final int MAX_EXPONENT = 40;
+
+  static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final LongAdder documents = new LongAdder();
+  private final LongAdder elements = new LongAdder();
+  private final LongAdder attributes = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder escapes = new LongAdder();
+  private final LongAdder nameCacheHits = new LongAdder();
+  private final LongAdder nameCacheMisses = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+  private final LongAdder[] timeBuckets = new LongAdder[BUCKET_COUNT];
+
+  public JSONWriterMetrics() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      timeBuckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records one complete document (or other top-level node).
+   *
+   * @param nanos
+   *            time taken to write it
+   * @param byteCount
+   *            encoded length, or 0 if not known
+   */
+  void recordDocument(long nanos, long byteCount) {
+    documents.increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+    timeBuckets[getBucket(nanos)].increment();
+    if (byteCount > 0) {
+      bytes.add(byteCount);
+    }
+  }
+
+  /**
+   * Adds counts kept by a writer while it wrote part or all of a document.
+   */
+  void addCounts(int elementCount, int attributeCount, int depth,
+                 int escapeCount, int nameLookups, int nameMisses) {
+    if (elementCount > 0) {
+      elements.add(elementCount);
+      attributes.add(attributeCount);
+      maxDepth.accumulate(depth);
+    }
+    if (escapeCount > 0) {
+      escapes.add(escapeCount);
+    }
+    if (nameLookups > 0) {
+      nameCacheHits.add(nameLookups - nameMisses);
+      nameCacheMisses.add(nameMisses);
+    }
+  }
+
+  /**
+   * @return index of the histogram bucket for a time of <code>nanos</code>
+   */
+  static int getBucket(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (nanos < 0) ? 0 : (int) nanos;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+
+    int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return ((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS) + subBucket;
+  }
+
+  /**
+   * @return smallest time (in ns) that goes in bucket <code>index</code>
+   */
+  static long getBucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int exponent = (index / SUB_BUCKETS) + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  /**
+   * @return largest time (in ns) that goes in bucket <code>index</code>
+   */
+  static long getBucketUpperBound(int index) {
+    if (index == BUCKET_COUNT - 1) {
+      return Long.MAX_VALUE;
+    }
+
+    return getBucketLowerBound(index + 1) - 1;
+  }
+
+  /**
+   * @return a copy of the current values. Counters are read one after
+   * another, so values recorded while this runs may be partly included.
+   */
+  public Snapshot snapshot() {
+    long[] histogram = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      histogram[i] = timeBuckets[i].sum();
+    }
+
+    return new Snapshot(documents.sum(), elements.sum(), attributes.sum(),
+                        bytes.sum(), escapes.sum(), nameCacheHits.sum(),
+                        nameCacheMisses.sum(), maxDepth.get(), totalNanos.sum(),
+                        maxNanos.get(), histogram);
+  }
+
+  public void reset() {
+    documents.reset();
+    elements.reset();
+    attributes.reset();
+    bytes.reset();
+    escapes.reset();
+    nameCacheHits.reset();
+    nameCacheMisses.reset();
+    totalNanos.reset();
+    maxDepth.reset();
+    maxNanos.reset();
+    for (LongAdder bucket : timeBuckets) {
+      bucket.reset();
+    }
+  }
+
+  /**
+   * Registers these metrics with the platform MBean server.
+   *
+   * @param name
+   *            object name, e.g. "org.dom4j.io:type=JSONWriterMetrics,name=api"
+   * @return the registered name
+   *
+   * @throws JMException
+   *             if the name is invalid or already registered
+   */
+  public ObjectName registerMBean(String name) throws JMException {
+    ObjectName objectName = new ObjectName(name);
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  public void unregisterMBean(ObjectName name) throws JMException {
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+  }
+
+  public long getDocumentCount() {
+    return documents.sum();
+  }
+
+  public long getElementCount() {
+    return elements.sum();
+  }
+
+  public long getAttributeCount() {
+    return attributes.sum();
+  }
+
+  public long getByteCount() {
+    return bytes.sum();
+  }
+
+  public long getEscapeCount() {
+    return escapes.sum();
+  }
+
+  public long getNameCacheHitCount() {
+    return nameCacheHits.sum();
+  }
+
+  public long getNameCacheMissCount() {
+    return nameCacheMisses.sum();
+  }
+
+  public long getMaxDepth() {
+    return maxDepth.get();
+  }
+
+  public long getMeanTimeNanos() {
+    return snapshot().getMeanTimeNanos();
+  }
+
+  public long getMedianTimeNanos() {
+    return snapshot().getTimePercentileNanos(50.0);
+  }
+
+  public long getPercentile99TimeNanos() {
+    return snapshot().getTimePercentileNanos(99.0);
+  }
+
+  public long getMaxTimeNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Values of a {@link JSONWriterMetrics} at one point in time.
+   */
+  public static final class Snapshot {
+    private final long documentCount;
+    private final long elementCount;
+    private final long attributeCount;
+    private final long byteCount;
+    private final long escapeCount;
+    private final long nameCacheHitCount;
+    private final long nameCacheMissCount;
+    private final long maxDepth;
+    private final long totalTimeNanos;
+    private final long maxTimeNanos;
+    private final long[] timeHistogram;
+
+    Snapshot(long documentCount, long elementCount, long attributeCount,
+             long byteCount, long escapeCount, long nameCacheHitCount,
+             long nameCacheMissCount, long maxDepth, long totalTimeNanos,
+             long maxTimeNanos, long[] timeHistogram) {
+      this.documentCount = documentCount;
+      this.elementCount = elementCount;
+      this.attributeCount = attributeCount;
+      this.byteCount = byteCount;
+      this.escapeCount = escapeCount;
+      this.nameCacheHitCount = nameCacheHitCount;
+      this.nameCacheMissCount = nameCacheMissCount;
+      this.maxDepth = maxDepth;
+      this.totalTimeNanos = totalTimeNanos;
+      this.maxTimeNanos = maxTimeNanos;
+      this.timeHistogram = timeHistogram;
+    }
+
+    public long getDocumentCount() {
+      return documentCount;
+    }
+
+    public long getElementCount() {
+      return elementCount;
+    }
+
+    public long getAttributeCount() {
+      return attributeCount;
+    }
+
+    public long getByteCount() {
+      return byteCount;
+    }
+
+    /**
+     * @return number of characters that had to be escaped
+     */
+    public long getEscapeCount() {
+      return escapeCount;
+    }
+
+    public long getNameCacheHitCount() {
+      return nameCacheHitCount;
+    }
+
+    public long getNameCacheMissCount() {
+      return nameCacheMissCount;
+    }
+
+    public long getMaxDepth() {
+      return maxDepth;
+    }
+
+    public long getTotalTimeNanos() {
+      return totalTimeNanos;
+    }
+
+    public long getMaxTimeNanos() {
+      return maxTimeNanos;
+    }
+
+    public long getMeanTimeNanos() {
+      return (documentCount == 0) ? 0 : totalTimeNanos / documentCount;
+    }
+
+    /**
+     * @param percentile
+     *            from 0 to 100
+     * @return time (in ns) that <code>percentile</code> percent of
+     * documents took no longer than, to within the histogram's precision
+     * (and never more than the max time).
+     */
+    public long getTimePercentileNanos(double percentile) {
+      long total = 0;
+      for (long count : timeHistogram) {
+        total += count;
+      }
+      if (total == 0) {
+        return 0;
+      }
+
+      long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+      long seen = 0;
+      for (int i = 0; i < timeHistogram.length; i++) {
+        seen += timeHistogram[i];
+        if (seen >= target) {
+          return Math.min(maxTimeNanos, getBucketUpperBound(i));
+        }
+      }
+
+      return maxTimeNanos;
+    }
+
+    /**
+     * @return number of documents in each bucket of the time histogram
+     * (a copy).
+     */
+    public long[] getTimeHistogram() {
+      return timeHistogram.clone();
+    }
+
+    /**
+     * @return smallest time (in ns) counted in histogram bucket
+     * <code>index</code>
+     */
+    public static long getBucketLowerBound(int index) {
+      return JSONWriterMetrics.getBucketLowerBound(index);
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+/**
+ * JMX interface of {@link JSONWriterMetrics}.
+ */
+public interface JSONWriterMetricsMBean {
+
+  long getDocumentCount();
+
+  long getElementCount();
+
+  long getAttributeCount();
+
+  long getByteCount();
+
+  long getEscapeCount();
+
+  long getNameCacheHitCount();
+
+  long getNameCacheMissCount();
+
+  long getMaxDepth();
+
+  long getMeanTimeNanos();
+
+  long getMedianTimeNanos();
+
+  long getPercentile99TimeNanos();
+
+  long getMaxTimeNanos();
+
+  void reset();
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * A {@link UTF8Writer} that writes into a memory-mapped region of a file,
+ * for very large exports. There's no write system call per buffer: output
+ * is encoded straight into the mapping, and the kernel writes dirty pages
+ * back to disk.
+ * </p>
+ *
+ * <p>
+ * The file is mapped in windows of <code>windowSize</code> bytes, with a new
+ * window mapped as each one fills. Mapping a window past the end of the
+ * file grows it, so {@link #close()} truncates the file to the exact length
+ * written. Nothing is forced to disk; call {@link #force()} for that.
+ * </p>
+ *
+ * <p>
+ * Java has no supported way to unmap a file, and Windows won't truncate a
+ * file while part of it is mapped, so each window is released as soon as
+ * it's replaced, and the last one when the writer is closed, through
+ * <code>Unsafe.invokeCleaner()</code> (or the buffer's cleaner before
+ * Java 9). If that isn't available, windows are only unmapped when they're
+ * garbage collected, and on Windows <code>close()</code> may then fail to
+ * truncate the file, leaving it padded with zeros up to the end of the
+ * last window.
+ * </p>
+ */
+public class MappedFileWriter extends DirectUTF8Writer {
+
+  public static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+
+  /** Unsafe.invokeCleaner(ByteBuffer), on Java 9 and later */
+  private static final Method INVOKE_CLEANER;
+
+  private static final Object UNSAFE;
+
+  static {
+    Method invokeCleaner = null;
+    Object unsafe = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+    } catch (Exception e) {
+      // Java 8, or no access to Unsafe
+      invokeCleaner = null;
+    }
+
+    INVOKE_CLEANER = invokeCleaner;
+    UNSAFE = unsafe;
+  }
+
+  private final FileChannel channel;
+
+  private final long windowSize;
+
+  private MappedByteBuffer window;
+
+  /** File position of the start of window, or of the next byte if there's no window */
+  private long windowStart;
+
+  /** File position up to which output has been forced to disk */
+  private long forcedPosition;
+
+  private boolean open = true;
+
+  /**
+   * Creates (or truncates) the file at <code>path</code>, and writes to it.
+   *
+   * @throws IOException
+   *             if the file can't be created or opened
+   */
+  public MappedFileWriter(Path path) throws IOException {
+    this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                          StandardOpenOption.READ, StandardOpenOption.WRITE),
+         0, false, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param channel
+   *            file to write to, which must be open for reading and writing
+   * @param position
+   *            file position to start writing at
+   * @param escapeNonAscii
+   *            see {@link UTF8Writer}
+   * @param windowSize
+   *            number of bytes mapped at a time, which can't be more than
+   *            <code>Integer.MAX_VALUE</code>
+   */
+  public MappedFileWriter(FileChannel channel, long position, boolean escapeNonAscii,
+                          long windowSize) {
+    super(escapeNonAscii);
+
+    if ((windowSize <= 0) || (windowSize > Integer.MAX_VALUE)) {
+      throw new IllegalArgumentException("windowSize must be > 0 and <= "
+                                         + Integer.MAX_VALUE + ": " + windowSize);
+    }
+
+    this.channel = channel;
+    this.windowStart = position;
+    this.forcedPosition = position;
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * @return file position that the next byte written will go to
+   */
+  public long getPosition() {
+    return (window == null) ? windowStart : windowStart + window.position();
+  }
+
+  /**
+   * Maps the next window whenever the current one is full, and carries on
+   * encoding <code>text</code> into it.
+   */
+  protected void overflow(CharSequence text, int off, int end) throws IOException {
+    if (!open) {
+      throw new IOException("Writer is closed");
+    }
+
+    do {
+      long start = getPosition();
+      MappedByteBuffer previous = window;
+      window = channel.map(FileChannel.MapMode.READ_WRITE, start, windowSize);
+      windowStart = start;
+      target = window;
+      if (previous != null) {
+        unmap(previous);
+      }
+
+      off = encode(text, off, end);
+    } while ((off < end) || hasHeld());
+  }
+
+  /**
+   * Forces everything written since the last call out to disk, including
+   * what went into windows that have since been replaced.
+   *
+   * @throws IOException
+   *             if the file can't be mapped or forced
+   */
+  public void force() throws IOException {
+    flushBuffer();
+
+    // Earlier windows are no longer mapped, and FileChannel.force() isn't
+    // guaranteed to write back changes made through a mapping, so map the
+    // unforced part of them again to force it.
+    for (long start = forcedPosition; start < windowStart; start += windowSize) {
+      long size = Math.min(windowSize, windowStart - start);
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+      mapped.force();
+      unmap(mapped);
+    }
+    if (window != null) {
+      window.force();
+    }
+    forcedPosition = getPosition();
+  }
+
+  /**
+   * Output is encoded straight into the mapping, where it's visible to
+   * other readers of the file, so there's nothing to flush; it isn't
+   * forced to disk.
+   */
+  public void flush() throws IOException {
+    flushBuffer();
+  }
+
+  protected boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Releases the last window, so that the file can be truncated to the
+   * length written, and closes it.
+   *
+   * @throws IOException
+   *             if the file can't be truncated, e.g. on Windows if the
+   *             window couldn't be unmapped; the channel is closed anyway
+   */
+  protected void closeOutput() throws IOException {
+    long length = getPosition();
+    MappedByteBuffer last = window;
+    open = false;
+    window = null;
+    target = null;
+    windowStart = length;
+    try {
+      if (last != null) {
+        unmap(last);
+      }
+      channel.truncate(length);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Unmaps <code>buffer</code> now, if that's possible, rather than when
+   * it's garbage collected. It mustn't be used afterwards.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (Exception e) {
+      // Left for the garbage collector to unmap
+    }
+  }
+}
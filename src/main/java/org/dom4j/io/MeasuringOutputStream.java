@@ -0,0 +1,40 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.OutputStream;
+
+/**
+ * An <code>OutputStream</code> that discards everything written to it, and
+ * just counts the bytes.
+ */
+final class MeasuringOutputStream extends OutputStream {
+
+  private long count = 0;
+
+  public void write(int b) {
+    count++;
+  }
+
+  public void write(byte[] b, int off, int len) {
+    count += len;
+  }
+
+  long getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.Writer;
+
+/**
+ * A <code>Writer</code> that counts the bytes {@link UTF8Writer} would
+ * encode the characters written to it as, without encoding them: one to
+ * four for each UTF-8 character, or six for each non-ASCII char when
+ * <code>escapeNonAscii</code> is set. Unpaired surrogates count as the
+ * '?' they're written as, and a high surrogate that's still pending at
+ * the end isn't counted, the same as when <code>UTF8Writer</code> is
+ * switched to another stream.
+ */
+final class MeasuringWriter extends Writer {
+
+  private final boolean escapeNonAscii;
+
+  private long count = 0;
+
+  /** True if the last char written was a high surrogate */
+  private boolean highSurrogate = false;
+
+  MeasuringWriter(boolean escapeNonAscii) {
+    this.escapeNonAscii = escapeNonAscii;
+  }
+
+  public void write(int c) {
+    add((char)c);
+  }
+
+  public void write(String str) {
+    write(str, 0, str.length());
+  }
+
+  public void write(String str, int off, int len) {
+    long ascii = 0;
+    for (int i = off, end = off + len; i < end; i++) {
+      char c = str.charAt(i);
+      if ((c < 0x80) && !highSurrogate) {
+        ascii++;
+      } else {
+        add(c);
+      }
+    }
+    count += ascii;
+  }
+
+  public void write(char[] cbuf, int off, int len) {
+    long ascii = 0;
+    for (int i = off, end = off + len; i < end; i++) {
+      char c = cbuf[i];
+      if ((c < 0x80) && !highSurrogate) {
+        ascii++;
+      } else {
+        add(c);
+      }
+    }
+    count += ascii;
+  }
+
+  private void add(char c) {
+    if (escapeNonAscii) {
+      count += (c < 0x80) ? 1 : 6;
+      return;
+    }
+
+    if (highSurrogate) {
+      highSurrogate = false;
+      if (Character.isLowSurrogate(c)) {
+        count += 4;
+        return;
+      }
+
+      count++;
+    }
+
+    if (c < 0x80) {
+      count++;
+    } else if (c < 0x800) {
+      count += 2;
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = true;
+    } else if (Character.isLowSurrogate(c)) {
+      count++;
+    } else {
+      count += 3;
+    }
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  public void flush() {
+  }
+
+  public void close() {
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * An <code>OutputStream</code> that gzips what's written to it using
+ * several cores, in the style of pigz. The stream is split into blocks,
+ * each block is compressed by a <code>ForkJoinPool</code> thread as a
+ * complete gzip member, and the members are written in order. Concatenated
+ * members are a valid gzip stream (RFC 1952), which
+ * <code>GZIPInputStream</code>, gunzip, browsers, etc. all read as the
+ * original bytes.
+ * </p>
+ *
+ * <p>
+ * Only a bounded number of blocks are in flight at once, so memory use
+ * doesn't grow with the size of the output. Each member has its own
+ * dictionary, so compression is slightly worse than a single member; larger
+ * blocks narrow the gap. As with <code>GZIPOutputStream</code>,
+ * {@link #flush()} doesn't force out a partly filled block, so members are
+ * only ever cut at block boundaries (and at the end of the stream). For
+ * <code>JSONWriter</code> output, use it as the
+ * <code>OutputStream</code>, e.g.
+ * <code>config.write(doc, new ParallelGzipOutputStream(out))</code>, and
+ * close it when done.
+ * </p>
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+  public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+  /** Blocks in flight per pool thread */
+  private static final int BLOCKS_PER_THREAD = 4;
+
+  private static final byte[] HEADER = {
+    0x1f, (byte) 0x8b,    // magic
+    Deflater.DEFLATED,    // compression method
+    0,                    // flags
+    0, 0, 0, 0,           // modification time
+    0,                    // extra flags
+    0                     // OS
+  };
+
+  private static final int TRAILER_LENGTH = 8;
+
+  private final OutputStream out;
+
+  private final int level;
+
+  private final int blockSize;
+
+  private final ForkJoinPool pool;
+
+  private final int maxInFlight;
+
+  private final ArrayDeque<CompressTask> inFlight = new ArrayDeque<CompressTask>();
+
+  /** Input buffers that are free for reuse */
+  private final ArrayDeque<byte[]> freeBlocks = new ArrayDeque<byte[]>();
+
+  /** Deflaters that are free for reuse, by any pool thread */
+  private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+  private byte[] block;
+
+  private int count = 0;
+
+  private boolean wroteMember = false;
+
+  /** Read by pool threads, to end their deflaters once we're closed */
+  private volatile boolean closed = false;
+
+  public ParallelGzipOutputStream(OutputStream out) {
+    this(out, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param out
+   *            stream to write the gzipped output to
+   * @param level
+   *            compression level, from 0 to 9, or
+   *            <code>Deflater.DEFAULT_COMPRESSION</code>
+   * @param blockSize
+   *            number of input bytes compressed as one gzip member
+   * @param pool
+   *            pool whose threads compress the blocks
+   */
+  public ParallelGzipOutputStream(OutputStream out, int level, int blockSize, ForkJoinPool pool) {
+    if  (   ((level < 0) || (level > 9))
+        &&  (level != Deflater.DEFAULT_COMPRESSION)) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("blockSize must be > 0: " + blockSize);
+    }
+
+    this.out = out;
+    this.level = level;
+    this.blockSize = blockSize;
+    this.pool = pool;
+    this.maxInFlight = pool.getParallelism() * BLOCKS_PER_THREAD;
+    this.block = new byte[blockSize];
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public void write(int b) throws IOException {
+    if (count == blockSize) {
+      submitBlock();
+    }
+
+    block[count++] = (byte) b;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == blockSize) {
+        submitBlock();
+      }
+
+      int chunk = Math.min(len, blockSize - count);
+      System.arraycopy(b, off, block, count, chunk);
+      count += chunk;
+      off += chunk;
+      len -= chunk;
+    }
+  }
+
+  /**
+   * Waits for the blocks already filled to be compressed and written, and
+   * flushes the underlying stream. The partly filled block stays buffered,
+   * rather than being cut short as a member of its own, so flushing often
+   * doesn't make compression worse; it's written when it fills, or on
+   * close.
+   */
+  public void flush() throws IOException {
+    while (!inFlight.isEmpty()) {
+      writeNextMember();
+    }
+    out.flush();
+  }
+
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    try {
+      submitBlock();
+      while (!inFlight.isEmpty()) {
+        writeNextMember();
+      }
+
+      // An empty gzip stream still needs one member
+      if (!wroteMember) {
+        CompressTask empty = new CompressTask(block, 0);
+        empty.invoke();
+        out.write(empty.output, 0, empty.outputLength);
+      }
+    } finally {
+      for (CompressTask task : inFlight) {
+        task.cancel(false);
+      }
+
+      // A task that was already running ends its own deflater
+      endDeflaters();
+      out.close();
+    }
+  }
+
+  /**
+   * Frees the native memory of the deflaters not in use. Safe to call from
+   * several threads: each deflater is only taken from the queue once.
+   */
+  private void endDeflaters() {
+    Deflater deflater;
+    while ((deflater = deflaters.poll()) != null) {
+      deflater.end();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    if (count == 0) {
+      return;
+    }
+
+    while (inFlight.size() >= maxInFlight) {
+      writeNextMember();
+    }
+
+    CompressTask task = new CompressTask(block, count);
+    pool.execute(task);
+    inFlight.add(task);
+
+    block = freeBlocks.isEmpty() ? new byte[blockSize] : freeBlocks.remove();
+    count = 0;
+  }
+
+  private void writeNextMember() throws IOException {
+    CompressTask task = inFlight.remove();
+    try {
+      task.join();
+    } catch (RuntimeException e) {
+      throw new IOException("Error compressing block", e);
+    }
+
+    out.write(task.output, 0, task.outputLength);
+    freeBlocks.add(task.input);
+    wroteMember = true;
+  }
+
+  /**
+   * Compresses one block as a complete gzip member.
+   */
+  private final class CompressTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final byte[] input;
+    final int inputLength;
+    byte[] output;
+    int outputLength;
+
+    CompressTask(byte[] input, int inputLength) {
+      this.input = input;
+      this.inputLength = inputLength;
+    }
+
+    protected void compute() {
+      Deflater deflater = deflaters.poll();
+      if (deflater == null) {
+        deflater = new Deflater(level, true);
+      }
+
+      try {
+        // Room for the usual worst case, grown if need be
+        output = new byte[HEADER.length + inputLength + (inputLength >> 8) + 64];
+        System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+        int length = HEADER.length;
+
+        deflater.setInput(input, 0, inputLength);
+        deflater.finish();
+        while (!deflater.finished()) {
+          if (length == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+          }
+          length += deflater.deflate(output, length, output.length - length);
+        }
+
+        if (length + TRAILER_LENGTH > output.length) {
+          output = Arrays.copyOf(output, length + TRAILER_LENGTH);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, inputLength);
+        length = writeInt(output, length, (int) crc.getValue());
+        outputLength = writeInt(output, length, inputLength);
+      } finally {
+        deflater.reset();
+        deflaters.add(deflater);
+
+        // If the stream was closed while we were compressing, it may have
+        // ended the free deflaters before ours was back
+        if (closed) {
+          endDeflaters();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes <code>value</code> little-endian, as gzip needs.
+   *
+   * @return offset after the value
+   */
+  private static int writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >> 8);
+    bytes[offset + 2] = (byte) (value >> 16);
+    bytes[offset + 3] = (byte) (value >> 24);
+    return offset + 4;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.Writer;
+
+/**
+ * An unsynchronized <code>StringWriter</code>, for buffering JSON
+ * fragments.
+ */
+final class StringBuilderWriter extends Writer {
+
+  private final StringBuilder buffer;
+
+  StringBuilderWriter() {
+    this(256);
+  }
+
+  StringBuilderWriter(int capacity) {
+    this.buffer = new StringBuilder(capacity);
+  }
+
+  public void write(int c) {
+    buffer.append((char)c);
+  }
+
+  public void write(char[] cbuf, int off, int len) {
+    buffer.append(cbuf, off, len);
+  }
+
+  public void write(String str) {
+    buffer.append(str);
+  }
+
+  public void write(String str, int off, int len) {
+    buffer.append(str, off, off + len);
+  }
+
+  public void flush() {
+  }
+
+  public void close() {
+  }
+
+  public int length() {
+    return buffer.length();
+  }
+
+  public void clear() {
+    buffer.setLength(0);
+  }
+
+  public String toString() {
+    return buffer.toString();
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+
+/**
+ * A <code>Writer</code> that encodes characters as UTF-8 straight into a
+ * reusable byte buffer, which is written to an <code>OutputStream</code>
+ * when full. This replaces a <code>BufferedWriter</code> around an
+ * <code>OutputStreamWriter</code>, avoiding the second buffer and the
+ * charset encoder for the many small writes <code>JSONWriter</code> makes.
+ *
+ * With <code>escapeNonAscii</code> set, any non-ASCII character is written
+ * as a JSON "\\uXXXX" escape instead, so the output is plain ASCII and can
+ * be declared as any ASCII-compatible encoding. That is only valid because
+ * <code>JSONWriter</code> writes all non-ASCII text inside JSON strings.
+ *
+ * Unpaired surrogates are written as '?', the same as the JDK's encoder.
+ */
+public class UTF8Writer extends Writer {
+  public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+  /** Longest encoding of a single char: "\\uXXXX" */
+  private static final int MAX_CHAR_BYTES = 6;
+
+  private static final byte[] HEX_DIGITS = {
+    '0', '1', '2', '3', '4', '5', '6', '7',
+    '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+  };
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** ASCII characters used in JSON syntax and names */
+  private static final String ASCII_SAMPLE
+    = "{}[]:,\"\\/ @$_-.0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ\n\r\t";
+
+  protected OutputStream out;
+
+  protected byte[] buffer;
+
+  /** Number of valid bytes in buffer */
+  protected int count;
+
+  /** Number of bytes written to out so far */
+  private long flushedBytes;
+
+  private final boolean escapeNonAscii;
+
+  /** High surrogate left over from the end of the previous write, or 0 */
+  private char highSurrogate;
+
+  public UTF8Writer(OutputStream out) {
+    this(out, false);
+  }
+
+  public UTF8Writer(OutputStream out, boolean escapeNonAscii) {
+    this(out, escapeNonAscii, DEFAULT_BUFFER_SIZE);
+  }
+
+  public UTF8Writer(OutputStream out, boolean escapeNonAscii, int bufferSize) {
+    if (bufferSize < MAX_CHAR_BYTES * 2) {
+      throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+    }
+
+    this.out = out;
+    this.escapeNonAscii = escapeNonAscii;
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Switches to writing to <code>out</code>, so this writer (and its
+   * buffer) can be reused. Anything still buffered is discarded, so flush
+   * first.
+   */
+  public void setOutputStream(OutputStream out) {
+    this.out = out;
+    count = 0;
+    flushedBytes = 0;
+    highSurrogate = 0;
+  }
+
+  /**
+   * @return true if the last char written was a high surrogate, whose
+   * bytes wait for the low surrogate that follows it
+   */
+  boolean hasHighSurrogate() {
+    return highSurrogate != 0;
+  }
+
+  /**
+   * @return the number of bytes encoded since this writer was created (or
+   * last switched streams), including any that are still buffered.
+   */
+  public long getByteCount() {
+    return flushedBytes + count;
+  }
+
+  /**
+   * @param encoding
+   *            name of a charset
+   * @return true if <code>encoding</code> is UTF-8 (under any alias).
+   *
+   * @throws UnsupportedEncodingException
+   *             if the encoding isn't supported by this JVM.
+   */
+  public static boolean isUTF8(String encoding) throws UnsupportedEncodingException {
+    return getCharset(encoding).equals(UTF_8);
+  }
+
+  /**
+   * @param encoding
+   *            name of a charset
+   * @return true if <code>encoding</code> encodes the ASCII characters used
+   * by JSON as the same single bytes as ASCII does (true for ISO-8859-x,
+   * windows-125x, etc., false for UTF-16 or EBCDIC).
+   *
+   * @throws UnsupportedEncodingException
+   *             if the encoding isn't supported by this JVM.
+   */
+  public static boolean isAsciiCompatible(String encoding) throws UnsupportedEncodingException {
+    Charset charset = getCharset(encoding);
+    if (!charset.canEncode()) {
+      return false;
+    }
+
+    byte[] encoded = ASCII_SAMPLE.getBytes(charset);
+    if (encoded.length != ASCII_SAMPLE.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < encoded.length; i++) {
+      if (encoded[i] != ASCII_SAMPLE.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static Charset getCharset(String encoding) throws UnsupportedEncodingException {
+    try {
+      if (Charset.isSupported(encoding)) {
+        return Charset.forName(encoding);
+      }
+    } catch (IllegalCharsetNameException e) {
+      // fall through
+    }
+
+    throw new UnsupportedEncodingException(encoding);
+  }
+
+  public void write(int c) throws IOException {
+    if (count > buffer.length - MAX_CHAR_BYTES * 2) {
+      flushBuffer();
+    }
+
+    if ((c < 0x80) && (highSurrogate == 0)) {
+      buffer[count++] = (byte)c;
+    } else {
+      writeNonAscii((char)c);
+    }
+  }
+
+  public void write(String str) throws IOException {
+    write(str, 0, str.length());
+  }
+
+  public void write(String str, int off, int len) throws IOException {
+    int end = off + len;
+    while (off < end) {
+      if (count > buffer.length - MAX_CHAR_BYTES * 2) {
+        flushBuffer();
+      }
+
+      // ASCII fast path: one byte per char, as many as fit
+      byte[] bytes = buffer;
+      int pos = count;
+      int limit = Math.min(end, off + (bytes.length - MAX_CHAR_BYTES * 2 - pos));
+      if (highSurrogate == 0) {
+        while (off < limit) {
+          char c = str.charAt(off);
+          if (c >= 0x80) {
+            break;
+          }
+          bytes[pos++] = (byte)c;
+          off++;
+        }
+      }
+      count = pos;
+
+      if (off < end) {
+        writeNonAscii(str.charAt(off++));
+      }
+    }
+  }
+
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    int end = off + len;
+    while (off < end) {
+      if (count > buffer.length - MAX_CHAR_BYTES * 2) {
+        flushBuffer();
+      }
+
+      byte[] bytes = buffer;
+      int pos = count;
+      int limit = Math.min(end, off + (bytes.length - MAX_CHAR_BYTES * 2 - pos));
+      if (highSurrogate == 0) {
+        while (off < limit) {
+          char c = cbuf[off];
+          if (c >= 0x80) {
+            break;
+          }
+          bytes[pos++] = (byte)c;
+          off++;
+        }
+      }
+      count = pos;
+
+      if (off < end) {
+        writeNonAscii(cbuf[off++]);
+      }
+    }
+  }
+
+  /**
+   * Encodes one char that isn't plain ASCII (or follows a pending high
+   * surrogate). The caller ensures there's room for two chars' worth of
+   * bytes in the buffer.
+   */
+  void writeNonAscii(char c) {
+    if (escapeNonAscii) {
+      if (c < 0x80) {
+        buffer[count++] = (byte)c;
+      } else {
+        writeEscape(c);
+      }
+      return;
+    }
+
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(high, c);
+        buffer[count++] = (byte)(0xF0 | (codePoint >> 18));
+        buffer[count++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+        buffer[count++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+        buffer[count++] = (byte)(0x80 | (codePoint & 0x3F));
+        return;
+      }
+
+      buffer[count++] = '?';
+    }
+
+    if (c < 0x80) {
+      buffer[count++] = (byte)c;
+    } else if (c < 0x800) {
+      buffer[count++] = (byte)(0xC0 | (c >> 6));
+      buffer[count++] = (byte)(0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      buffer[count++] = '?';
+    } else {
+      buffer[count++] = (byte)(0xE0 | (c >> 12));
+      buffer[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+      buffer[count++] = (byte)(0x80 | (c & 0x3F));
+    }
+  }
+
+  private void writeEscape(char c) {
+    buffer[count++] = '\\';
+    buffer[count++] = 'u';
+    buffer[count++] = HEX_DIGITS[(c >> 12) & 0xF];
+    buffer[count++] = HEX_DIGITS[(c >> 8) & 0xF];
+    buffer[count++] = HEX_DIGITS[(c >> 4) & 0xF];
+    buffer[count++] = HEX_DIGITS[c & 0xF];
+  }
+
+  /**
+   * Writes any buffered bytes to the underlying stream, without flushing
+   * it. A pending high surrogate stays pending.
+   *
+   * @throws IOException
+   *             DOCUMENT ME!
+   */
+  protected void flushBuffer() throws IOException {
+    if (count > 0) {
+      writeBuffer(buffer, count);
+      flushedBytes += count;
+      count = 0;
+    }
+  }
+
+  /**
+   * Writes the first <code>length</code> bytes of a full (or flushed)
+   * buffer to the output. Subclasses can write somewhere else, or swap in
+   * another buffer to encode into while this one is written.
+   *
+   * @throws IOException
+   *             DOCUMENT ME!
+   */
+  protected void writeBuffer(byte[] bytes, int length) throws IOException {
+    out.write(bytes, 0, length);
+  }
+
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  public void close() throws IOException {
+    if (isOpen()) {
+      try {
+        if (highSurrogate != 0) {
+          highSurrogate = 0;
+          buffer[count++] = '?';
+        }
+        flush();
+      } finally {
+        closeOutput();
+      }
+    }
+  }
+
+  /**
+   * @return true if there's an output to write to and close
+   */
+  protected boolean isOpen() {
+    return out != null;
+  }
+
+  /**
+   * Closes the output, once everything has been flushed to it.
+   *
+   * @throws IOException
+   *             DOCUMENT ME!
+   */
+  protected void closeOutput() throws IOException {
+    out.close();
+    out = null;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class ChannelWriterTest extends TestCase {
+
+    private static final String TEXT = "plain ascii, café, ༀ€, 😀 smile, end. ";
+
+    public void testByteChannel() throws Exception {
+        for (int bufferSize : new int[] { 16, 64, 8192 }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ChannelWriter writer = new ChannelWriter(Channels.newChannel(bytes), null, false, bufferSize);
+            String expected = writeText(writer, 200);
+            writer.close();
+
+            assertTrue(Arrays.equals(expected.getBytes("UTF-8"), bytes.toByteArray()));
+        }
+    }
+
+    public void testFileChannel() throws Exception {
+        File file = File.createTempFile("ChannelWriterTest", ".json");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "0123456789".getBytes("UTF-8"));
+
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        ChannelWriter writer = new ChannelWriter(channel, 10, false, 64);
+        String expected = writeText(writer, 200);
+        writer.close();
+        assertFalse(channel.isOpen());
+
+        byte[] fileBytes = Files.readAllBytes(file.toPath());
+        assertTrue(Arrays.equals(("0123456789" + expected).getBytes("UTF-8"), fileBytes));
+    }
+
+    public void testFlushPolicy() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChannelWriter writer = new ChannelWriter(Channels.newChannel(bytes), null, false, 8192);
+
+        // Nothing reaches the channel until the buffer fills, or a flush.
+        writer.write("abc");
+        assertEquals(0, bytes.size());
+        writer.flush();
+        assertEquals(3, bytes.size());
+        assertEquals(3, writer.getByteCount());
+
+        // With a max delay, output is handed off once it's old enough,
+        // timed from its first byte rather than from the last hand-off.
+        writer.setMaxDelay(50, TimeUnit.MILLISECONDS);
+        Thread.sleep(100);
+        writer.write('d');
+        assertEquals(1, writer.count);
+        Thread.sleep(100);
+        writer.write('e');
+        assertEquals(0, writer.count);
+        writer.close();
+        assertEquals(5, bytes.size());
+    }
+
+    public void testWriteErrors() throws Exception {
+        WritableByteChannel channel = new WritableByteChannel() {
+            private boolean open = true;
+
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            public boolean isOpen() {
+                return open;
+            }
+
+            public void close() {
+                open = false;
+            }
+        };
+
+        ChannelWriter writer = new ChannelWriter(channel, null, false, 64);
+        writer.write("some text");
+        try {
+            writer.flush();
+            fail("Should have thrown");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+
+        writer.close();
+        assertFalse(channel.isOpen());
+    }
+
+    private String writeText(ChannelWriter writer, int count) throws IOException {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String text = TEXT + i;
+            writer.write(text);
+            expected.append(text);
+        }
+
+        return expected.toString();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+
+public class JSONBatchWriterTest extends TestCase {
+
+    public void testRecordsMatchDocuments() throws Exception {
+        List<Document> docs = makeRecords(100);
+        for (JSONFormat format : JSONFormat.values()) {
+            JSONWriterConfig config = new JSONWriterConfig(format).withHumanFormat(true);
+            StringBuilder expected = new StringBuilder();
+            for (Document doc : docs) {
+                StringWriter out = new StringWriter();
+                config.withHumanFormat(false).write(doc, out);
+                expected.append(out.toString()).append('\n');
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            JSONBatchWriter batchWriter = new JSONBatchWriter(bytes, config);
+            batchWriter.writeAll(docs);
+            batchWriter.close();
+            assertEquals(expected.toString(), bytes.toString("UTF-8"));
+            assertEquals(docs.size(), batchWriter.getRecordCount());
+
+            // Elements are written the same way as documents
+            StringWriter chars = new StringWriter();
+            batchWriter = new JSONBatchWriter(chars, config);
+            batchWriter.writeAll(docs.stream().map(Document::getRootElement));
+            batchWriter.flush();
+            assertEquals(expected.toString(), chars.toString());
+        }
+    }
+
+    public void testFlushThresholds() throws Exception {
+        List<Document> docs = makeRecords(1000);
+        FlushCountingStream out = new FlushCountingStream();
+        JSONBatchWriter batchWriter = new JSONBatchWriter(out, JSONWriterConfig.DEFAULT);
+        batchWriter.writeAll(docs);
+        assertEquals(1, out.flushes);
+        assertTrue(out.size() > 0);
+
+        out = new FlushCountingStream();
+        batchWriter = new JSONBatchWriter(out, JSONWriterConfig.DEFAULT);
+        batchWriter.setFlushBytes(Long.MAX_VALUE);
+        batchWriter.setFlushRecords(100);
+        batchWriter.writeAll(docs);
+        assertEquals(10, out.flushes);
+        batchWriter.close();
+        assertEquals(11, out.flushes);
+    }
+
+    public void testMetrics() throws Exception {
+        List<Document> docs = makeRecords(10);
+        JSONWriterMetrics metrics = new JSONWriterMetrics();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JSONBatchWriter batchWriter = new JSONBatchWriter(bytes, JSONWriterConfig.DEFAULT.withMetrics(metrics));
+        batchWriter.writeAll(docs);
+        batchWriter.close();
+
+        // Each record is a document, without its separator
+        assertEquals(10, metrics.getDocumentCount());
+        assertEquals(10 * 4, metrics.getElementCount());
+        assertEquals(10, metrics.getAttributeCount());
+        assertEquals(bytes.size() - 10, metrics.getByteCount());
+    }
+
+    public void testInvalidRecord() throws Exception {
+        JSONBatchWriter batchWriter = new JSONBatchWriter(new StringWriter(), JSONWriterConfig.DEFAULT);
+        try {
+            batchWriter.write(DocumentFactory.getInstance().createText("text"));
+            fail("Text isn't a record");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static List<Document> makeRecords(int count) {
+        List<Document> docs = new ArrayList<Document>();
+        for (int i = 0; i < count; i++) {
+            Document doc = DocumentFactory.getInstance().createDocument();
+            Element record = doc.addElement("record");
+            record.addAttribute("id", Integer.toString(i));
+            record.addElement("name").setText("name " + i + " é");
+            record.addElement("tag").setText("a");
+            record.addElement("tag").setText("b");
+            docs.add(doc);
+        }
+
+        return docs;
+    }
+
+    private static class FlushCountingStream extends ByteArrayOutputStream {
+        int flushes = 0;
+
+        public void flush() {
+            flushes++;
+        }
+    }
+}
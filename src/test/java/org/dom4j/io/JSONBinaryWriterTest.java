@@ -0,0 +1,302 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+public class JSONBinaryWriterTest extends TestCase {
+
+    private static Document makeDocument() {
+        Document doc = DocumentHelper.createDocument();
+        Element root = doc.addElement("root");
+        root.addAttribute("id", "r1");
+        for (int i = 0; i < 300; i++) {
+            Element item = root.addElement("item");
+            item.addAttribute("n", Integer.toString(i));
+            item.addElement("label").setText("  label " + (i % 7) + "  ");
+            item.addElement("empty");
+        }
+        Element text = root.addElement("text");
+        text.addAttribute("lang", "fr");
+        text.setText("caf\u00e9 \u4e2d\u6587 \ud83d\ude00 done");
+
+        Element mixed = root.addElement("mixed");
+        mixed.addText("some ");
+        mixed.addElement("b").setText("bold");
+        mixed.addText("   ");
+        mixed.addComment("skipped");
+        mixed.addText(" text");
+
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; longText.length() < 70000; i++) {
+            longText.append("line ").append(i).append(" \u00e9\n");
+        }
+        root.addElement("long").setText(longText.toString());
+
+        return doc;
+    }
+
+    private static byte[] writeBinary(JSONBinaryWriter writer, ByteArrayOutputStream out, Object node)
+    throws Exception {
+        out.reset();
+        writer.write(node);
+        return out.toByteArray();
+    }
+
+    private static String writeText(JSONWriterConfig config, Object node) throws Exception {
+        StringWriter out = new StringWriter();
+        JSONWriter writer = config.withCompact(true).createWriter(out);
+        writer.write(node);
+        writer.flush();
+        return out.toString();
+    }
+
+    public void testSameStructure() throws Exception {
+        Document doc = makeDocument();
+        for (JSONFormat format : JSONFormat.values()) {
+            for (JSONBinaryFormat binaryFormat : JSONBinaryFormat.values()) {
+                JSONWriterConfig config = new JSONWriterConfig(format);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                // Human format and the caches are ignored
+                JSONBinaryWriter writer = config
+                    .withHumanFormat(true)
+                    .withShapeCache(new JSONShapeCache())
+                    .withFragmentCache(new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH))
+                    .createBinaryWriter(out, binaryFormat);
+                for (int i = 0; i < 2; i++) {
+                    String expected = writeText(config, doc);
+                    assertEquals(expected, decode(writeBinary(writer, out, doc), binaryFormat));
+
+                    Element element = doc.getRootElement().element("text");
+                    expected = "{" + writeText(config, element) + "}";
+                    assertEquals(expected, decode(writeBinary(writer, out, element), binaryFormat));
+                }
+
+                JSONProjection projection = new JSONProjection(Arrays.asList("/root/mixed", "/root/item/label"),
+                                                               Collections.singletonList("//b"));
+                writer.setProjection(projection);
+                assertEquals(writeText(config.withProjection(projection), doc),
+                             decode(writeBinary(writer, out, doc), binaryFormat));
+            }
+        }
+    }
+
+    public void testEncoding() throws Exception {
+        Document doc = DocumentHelper.parseText("<a b=\"c\">d</a>");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONBinaryWriter writer = new JSONBinaryWriter(out, JSONBinaryFormat.CBOR);
+        assertEquals(Arrays.toString(new byte[] {
+            (byte) 0xa1, 0x61, 'a', (byte) 0xa2, 0x62, '@', 'b', 0x61, 'c', 0x61, '$', 0x61, 'd'
+        }), Arrays.toString(writeBinary(writer, out, doc)));
+
+        writer = new JSONBinaryWriter(out, JSONBinaryFormat.MESSAGE_PACK);
+        assertEquals(Arrays.toString(new byte[] {
+            (byte) 0x81, (byte) 0xa1, 'a', (byte) 0x82, (byte) 0xa2, '@', 'b',
+            (byte) 0xa1, 'c', (byte) 0xa1, '$', (byte) 0xa1, 'd'
+        }), Arrays.toString(writeBinary(writer, out, doc)));
+
+        // Unpaired surrogates can't be encoded
+        assertEquals(Arrays.toString(new byte[] { (byte) 0xa2, 'x', '?' }),
+                     Arrays.toString(writeBinary(writer, out, "x\ud800")));
+    }
+
+    public void testMixedContentAttributes() throws Exception {
+        Document doc = DocumentHelper.parseText("<p class=\"x\">a<b>c</b><!-- skipped --></p>");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (JSONBinaryFormat binaryFormat : JSONBinaryFormat.values()) {
+            JSONBinaryWriter writer = new JSONBinaryWriter(out, binaryFormat);
+            assertEquals("{\"p\":[{\"@class\":\"x\"},\"a\",{\"b\":\"c\"}]}",
+                         decode(writeBinary(writer, out, doc), binaryFormat));
+        }
+    }
+
+    public void testSmallerThanText() throws Exception {
+        Document doc = makeDocument();
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.RABBIT_FISH);
+        int textLength = writeText(config, doc).getBytes("UTF-8").length;
+        for (JSONBinaryFormat binaryFormat : JSONBinaryFormat.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JSONBinaryWriter writer = config.createBinaryWriter(out, binaryFormat);
+            assertTrue(writeBinary(writer, out, doc).length < textLength);
+        }
+    }
+
+    public void testStringReferences() throws Exception {
+        Document doc = makeDocument();
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.BADGER_FISH);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONBinaryWriter writer = config.createBinaryWriter(out, JSONBinaryFormat.CBOR);
+        int plainLength = writeBinary(writer, out, doc).length;
+
+        writer.setStringReferences(true);
+        for (int i = 0; i < 2; i++) {
+            byte[] bytes = writeBinary(writer, out, doc);
+            assertEquals(writeText(config, doc), decode(bytes, JSONBinaryFormat.CBOR));
+            assertTrue(bytes.length < plainLength);
+        }
+
+        writer = config.createBinaryWriter(out, JSONBinaryFormat.MESSAGE_PACK);
+        try {
+            writer.setStringReferences(true);
+            fail("String references are CBOR only");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testInvalidNode() throws Exception {
+        Document doc = makeDocument();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONBinaryWriter writer = new JSONBinaryWriter(out, JSONBinaryFormat.CBOR);
+        try {
+            writer.write(doc.getRootElement().element("text").node(0));
+            fail("Text can't be written on its own");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(0, out.size());
+    }
+
+    /**
+     * @return <code>bytes</code> decoded and written as compact JSON text
+     */
+    private static String decode(byte[] bytes, JSONBinaryFormat binaryFormat) {
+        Decoder decoder = new Decoder(bytes, binaryFormat == JSONBinaryFormat.CBOR);
+        StringBuilder result = new StringBuilder();
+        decoder.decodeValue(result);
+        assertEquals(bytes.length, decoder.position);
+        return result.toString();
+    }
+
+    /**
+     * Just enough of a CBOR and MessagePack decoder for what
+     * <code>JSONBinaryWriter</code> writes.
+     */
+    private static class Decoder {
+        private final byte[] bytes;
+        private final boolean cbor;
+        private int position = 0;
+
+        /** Strings that can be referred to, or null */
+        private ArrayList<String> strings;
+
+        Decoder(byte[] bytes, boolean cbor) {
+            this.bytes = bytes;
+            this.cbor = cbor;
+        }
+
+        void decodeValue(StringBuilder out) {
+            int type = bytes[position] & 0xff;
+            if (cbor ? ((type >> 5) == 4) : (((type & 0xf0) == 0x90) || (type == 0xdc) || (type == 0xdd))) {
+                int size = readSize();
+                out.append('[');
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    decodeValue(out);
+                }
+                out.append(']');
+            } else if (cbor ? ((type >> 5) == 5) : (((type & 0xf0) == 0x80) || (type == 0xde) || (type == 0xdf))) {
+                int size = readSize();
+                out.append('{');
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append('"').append(readString()).append("\":");
+                    decodeValue(out);
+                }
+                out.append('}');
+            } else if (cbor && (type == 0xd9) && (bytes[position + 1] == 1) && (bytes[position + 2] == 0)) {
+                position += 3;
+                ArrayList<String> outer = strings;
+                strings = new ArrayList<String>();
+                decodeValue(out);
+                strings = outer;
+            } else if ((type == 0xf6) || (type == 0xc0)) {
+                position++;
+                out.append("null");
+            } else {
+                JSONEscaper.appendString(out, readString());
+            }
+        }
+
+        private String readString() {
+            int type = bytes[position] & 0xff;
+            if (cbor && (type == 0xd8) && (bytes[position + 1] == 25)) {
+                position += 2;
+                return strings.get(readSize());
+            }
+
+            assertTrue(cbor ? ((type >> 5) == 3) : (((type & 0xe0) == 0xa0) || ((type >= 0xd9) && (type <= 0xdb))));
+            int length = readSize();
+            String result = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            if ((strings != null) && (length >= minReferencedLength(strings.size()))) {
+                strings.add(result);
+            }
+            return result;
+        }
+
+        private static int minReferencedLength(int size) {
+            return (size < 24) ? 3 : (size < 0x100) ? 4 : (size < 0x10000) ? 5 : 7;
+        }
+
+        /**
+         * @return the length, size or unsigned value in the header at the
+         * current position, which is moved past it
+         */
+        private int readSize() {
+            int type = bytes[position++] & 0xff;
+            int byteCount;
+            if (cbor) {
+                int info = type & 0x1f;
+                if (info < 24) {
+                    return info;
+                }
+                byteCount = 1 << (info - 24);
+            } else if (type < 0xc0) {
+                return type & (((type & 0xe0) == 0xa0) ? 0x1f : 0x0f);
+            } else if (type == 0xd9) {
+                byteCount = 1;
+            } else {
+                byteCount = ((type == 0xda) || (type == 0xdc) || (type == 0xde)) ? 2 : 4;
+            }
+
+            int result = 0;
+            for (int i = 0; i < byteCount; i++) {
+                result = (result << 8) | (bytes[position++] & 0xff);
+            }
+            return result;
+        }
+    }
+}
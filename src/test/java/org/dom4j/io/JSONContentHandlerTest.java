@@ -0,0 +1,381 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.VisitorSupport;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Checks that streaming conversion (SAX and StAX) matches reading the XML into a dom4j
+ * Document and writing that with JSONWriter.
+ */
+public class JSONContentHandlerTest extends AbstractTestCase {
+
+    protected static final String[] XML_DOCUMENTS = {
+        "<alice>bob</alice>",
+        "<alice><bob>charlie</bob><david>edgar</david></alice>",
+        "<alice><bob>charlie</bob><bob>david</bob></alice>",
+        "<alice>bob<charlie>david</charlie>edgar</alice>",
+        "<alice charlie=\"\\dav&quot;id/\">\\bob\"by/</alice>",
+        "<alice><bob/><charlie>david</charlie><edgar></edgar></alice>",
+        "<alice>\n<charlie>\n\n</charlie> \n \n edgar</alice>",
+        "<alice zed=\"1\"><bob>b1</bob><charlie>c1</charlie><bob>b2</bob><david a=\"x\"/><bob>b3</bob></alice>",
+        "<private><ns:bob-by xmlns:ns=\"urn:x\">x+y</ns:bob-by><a><b><c>deep</c></b></a></private>",
+        "<feed>\n  <entry id=\"1\">\n    <title>One</title>\n  </entry>\n  <entry id=\"2\"><title>Two</title></entry>\n</feed>",
+    };
+
+    public void testMatchesJSONWriter() throws Exception {
+        for (String xml : XML_DOCUMENTS) {
+            for (JSONFormat format : JSONFormat.values()) {
+                assertEquals(xml + " as " + format.getName(),
+                                writeFromDocument(xml, format),
+                                writeFromHandler(xml, format));
+            }
+        }
+    }
+
+    public void testTranscodeMatchesJSONWriter() throws Exception {
+        for (String xml : XML_DOCUMENTS) {
+            for (JSONFormat format : JSONFormat.values()) {
+                XMLStreamReader reader = XMLInputFactory.newInstance()
+                                .createXMLStreamReader(new StringReader(xml));
+                StringWriter out = new StringWriter();
+                new JSONWriter(out, format).transcode(reader);
+
+                assertEquals(xml + " as " + format.getName(),
+                                writeFromDocument(xml, format),
+                                out.toString());
+            }
+        }
+    }
+
+    public void testTranscodeSubtrees() throws Exception {
+        String xml = "<feed><debug><x>1</x></debug><entry id=\"1\">one</entry>"
+                        + "<debug/><entry id=\"2\">two</entry></feed>";
+        XMLStreamReader reader = XMLInputFactory.newInstance()
+                        .createXMLStreamReader(new StringReader(xml));
+        StringWriter out = new StringWriter();
+        JSONWriter writer = new JSONWriter(out, JSONFormat.RABBIT_FISH);
+        while (reader.hasNext()) {
+            if  (   (reader.next() == XMLStreamConstants.START_ELEMENT)
+                &&  reader.getLocalName().equals("entry")) {
+                writer.transcode(reader);
+                out.write("\n");
+            }
+        }
+
+        assertEquals("{ \"entry\": { \"@id\": \"1\", \"$\": \"one\" } }\n"
+                        + "{ \"entry\": { \"@id\": \"2\", \"$\": \"two\" } }\n",
+                        out.toString());
+    }
+
+    public void testPathFilter() throws Exception {
+        JSONPathFilter filter = new JSONPathFilter("/feed/audit", "/feed/entry/debug", "/feed/*/trace");
+        String[][] cases = {
+            { "<feed><audit a=\"1\"><x>1</x></audit><entry id=\"1\"><debug>d<y/></debug><title>One</title></entry>"
+                + "<entry id=\"2\"><title>Two</title><trace/></entry><audit/><other><trace>t</trace></other></feed>",
+              "<feed><entry id=\"1\"><title>One</title></entry>"
+                + "<entry id=\"2\"><title>Two</title></entry><other/></feed>" },
+
+            // Text either side of a dropped element is one run
+            { "<feed><entry>one <debug>two</debug> three</entry><entry><b/>x<debug/>y</entry></feed>",
+              "<feed><entry>one  three</entry><entry><b/>xy</entry></feed>" },
+
+            // Paths only match from the top
+            { "<other><feed><audit/></feed></other>", "<other><feed><audit/></feed></other>" },
+            { "<feed><audit/></feed>", "<feed/>" },
+        };
+
+        for (String[] xml : cases) {
+            for (JSONFormat format : JSONFormat.values()) {
+                String expected = writeFromDocument(xml[1], format);
+                assertEquals(expected, writeFromHandler(xml[0], format, filter));
+
+                XMLStreamReader reader = XMLInputFactory.newInstance()
+                                .createXMLStreamReader(new StringReader(xml[0]));
+                StringWriter out = new StringWriter();
+                JSONContentHandler handler = new JSONContentHandler(out, format);
+                handler.setPathFilter(filter);
+                handler.transcode(reader);
+                assertEquals(expected, out.toString());
+            }
+        }
+
+        // The top element is still written, but with no content, as for a
+        // projection that doesn't select it
+        for (String path : new String[] { "/*", "/feed" }) {
+            for (JSONFormat format : JSONFormat.values()) {
+                String xml = "<feed id=\"1\">text<entry/>more</feed>";
+                String expected = writeFromDocument("<feed/>", format);
+                assertEquals(expected, writeFromHandler(xml, format, new JSONPathFilter(path)));
+
+                StringWriter out = new StringWriter();
+                JSONContentHandler handler = new JSONContentHandler(out, format);
+                handler.setPathFilter(new JSONPathFilter(path));
+                handler.transcode(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml)));
+                assertEquals(expected, out.toString());
+
+                JSONProjection projection = new JSONProjection(Collections.<String>emptyList(),
+                                                               Arrays.asList(path));
+                out = new StringWriter();
+                new JSONWriterConfig(format).withProjection(projection)
+                                .write(DocumentHelper.parseText(xml), out);
+                assertEquals(expected, out.toString());
+            }
+        }
+    }
+
+    public void testInvalidPathFilter() throws Exception {
+        for (String path : new String[] { "feed/entry", "/", "/feed//entry", "/feed/" }) {
+            try {
+                new JSONPathFilter(path);
+                fail("Invalid path accepted: " + path);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testCommentsAndCDATA() throws Exception {
+        String[] documents = {
+            "<alice>bob<!-- x -->by</alice>",
+            "<alice><!-- x --><bob/><!-- y --><charlie>d</charlie></alice>",
+        };
+        for (String xml : documents) {
+            for (JSONFormat format : JSONFormat.values()) {
+                assertEquals(xml + " as " + format.getName(),
+                                writeFromDocument(xml, format, true),
+                                writeFromHandler(xml, format));
+            }
+        }
+
+        // CDATA sections are just text
+        assertEquals("{ \"alice\": \"bob<by>\" }",
+                        writeFromHandler("<alice>bob<![CDATA[<by>]]></alice>", JSONFormat.RABBIT_FISH));
+    }
+
+    public void testLookahead() throws Exception {
+        StringBuilder compact = new StringBuilder("<feed><title>Feed</title>");
+        for (int i = 0; i < 1000; i++) {
+            compact.append("<entry id=\"").append(i).append("\"><title>Entry ").append(i)
+                            .append("</title><link href=\"/").append(i).append("\"/></entry>");
+        }
+        compact.append("<updated>now</updated></feed>");
+        String pretty = compact.toString().replace("<entry", "\n  <entry").replace("</feed>", "\n</feed>");
+
+        for (String xml : new String[] { compact.toString(), pretty }) {
+            for (JSONFormat format : JSONFormat.values()) {
+                String expected = writeFromDocument(xml, format);
+                for (int lookahead : new int[] { 200, 10000, Integer.MAX_VALUE }) {
+                    assertEquals(format.getName() + " with lookahead " + lookahead,
+                                    expected, writeFromHandler(xml, format, null, lookahead));
+                }
+            }
+        }
+    }
+
+    public void testOutputWhileParsing() throws Exception {
+        StringWriter out = new StringWriter();
+        JSONContentHandler handler = new JSONContentHandler(out, JSONFormat.RABBIT_FISH);
+        handler.setLookahead(100);
+        handler.startDocument();
+        handler.startElement("feed");
+        for (int i = 0; i < 1000; i++) {
+            handler.startElement("entry");
+            handler.addAttribute("id", Integer.toString(i));
+            handler.characters("text".toCharArray(), 0, 4);
+            handler.endElement();
+        }
+
+        // Only the current group, up to the lookahead, is held
+        int length = out.getBuffer().length();
+        handler.endElement();
+        handler.endDocument();
+        assertTrue(out.getBuffer().length() - length < 100);
+        assertTrue(out.toString().startsWith("{ \"feed\": { \"entry\": [ { \"@id\": \"0\", \"$\": \"text\" }, "));
+    }
+
+    public void testCommittedElements() throws Exception {
+        // An array that's still open can take more members
+        String xml = "<alice><bob>1</bob><bob>2</bob><bob>3</bob><charlie/></alice>";
+        assertEquals(writeFromDocument(xml, JSONFormat.RABBIT_FISH),
+                        writeFromHandler(xml, JSONFormat.RABBIT_FISH, null, 0));
+
+        // Once written, a group can't become an array or take more members,
+        // and an object can't become mixed content
+        String[] documents = {
+            "<alice><bob><charlie>1</charlie></bob><bob>2</bob></alice>",
+            "<alice><bob>1</bob><charlie/><bob>2</bob></alice>",
+            "<alice><bob>1</bob><bob>2</bob><charlie/><bob>3</bob></alice>",
+            "<alice><bob>1</bob><bob>2</bob>end </alice>",
+            "<alice><bob>1</bob><bob>2</bob> <charlie/></alice>",
+        };
+        for (String committed : documents) {
+            try {
+                writeFromHandler(committed, JSONFormat.RABBIT_FISH, null, 0);
+                fail("Should have thrown: " + committed);
+            } catch (SAXException e) {
+                // expected
+            }
+
+            XMLStreamReader reader = XMLInputFactory.newInstance()
+                            .createXMLStreamReader(new StringReader(committed));
+            JSONContentHandler handler = new JSONContentHandler(new StringWriter(), JSONFormat.RABBIT_FISH);
+            handler.setLookahead(0);
+            try {
+                handler.transcode(reader);
+                fail("Should have thrown: " + committed);
+            } catch (IOException e) {
+                // expected
+            }
+
+            // With enough lookahead, nothing is committed too early
+            assertEquals(writeFromDocument(committed, JSONFormat.RABBIT_FISH),
+                            writeFromHandler(committed, JSONFormat.RABBIT_FISH));
+        }
+    }
+
+    public void testHumanFormatRejected() throws Exception {
+        JSONWriterConfig human = new JSONWriterConfig(JSONFormat.RABBIT_FISH).withHumanFormat(true);
+        try {
+            new JSONContentHandler(new StringWriter(), human);
+            fail("Human format should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        XMLStreamReader reader = XMLInputFactory.newInstance()
+                        .createXMLStreamReader(new StringReader("<alice>bob</alice>"));
+        try {
+            human.createWriter(new StringWriter()).transcode(reader);
+            fail("Human format should be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // Unless the writer has had it turned off
+        StringWriter out = new StringWriter();
+        JSONWriter writer = human.createWriter(out);
+        writer.setHumanFormat(false);
+        writer.transcode(reader);
+        assertEquals(writeFromDocument("<alice>bob</alice>", JSONFormat.RABBIT_FISH), out.toString());
+    }
+
+    public void testRandomDocuments() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            Document doc = DocumentFactory.getInstance().createDocument();
+            addRandomContent(doc.addElement("root"), random, 0);
+            StringWriter xml = new StringWriter();
+            new XMLWriter(xml).write(doc);
+
+            for (JSONFormat format : JSONFormat.values()) {
+                assertEquals(xml + " as " + format.getName(),
+                                writeFromDocument(xml.toString(), format),
+                                writeFromHandler(xml.toString(), format));
+            }
+        }
+    }
+
+    private static void addRandomContent(Element element, Random random, int depth) {
+        String[] names = { "a", "b", "c", "private", "d-e" };
+        for (int i = random.nextInt(3); i > 0; i--) {
+            element.addAttribute(names[random.nextInt(names.length)], "v" + random.nextInt(10));
+        }
+
+        boolean lastWasText = false;
+        for (int i = (depth < 5) ? random.nextInt(6) : 0; i > 0; i--) {
+            if (!lastWasText && (random.nextInt(4) == 0)) {
+                element.addText(" text/" + random.nextInt(10) + "\" ");
+                lastWasText = true;
+            } else {
+                addRandomContent(element.addElement(names[random.nextInt(names.length)]), random, depth + 1);
+                lastWasText = false;
+            }
+        }
+
+        if ((element.nodeCount() == 0) && random.nextBoolean()) {
+            element.setText("leaf" + random.nextInt(10));
+        }
+    }
+
+    protected String writeFromDocument(String xml, JSONFormat format) throws Exception {
+        return writeFromDocument(xml, format, false);
+    }
+
+    protected String writeFromDocument(String xml, JSONFormat format, boolean ignoreComments) throws Exception {
+        SAXReader reader = new SAXReader();
+        reader.setMergeAdjacentText(true);
+        reader.setIgnoreComments(ignoreComments);
+        Document doc = reader.read(new StringReader(xml));
+
+        // Namespace declarations aren't supported by JSONWriter
+        doc.accept(new VisitorSupport() {
+            public void visit(Element element) {
+                for (Object namespace : element.declaredNamespaces()) {
+                    element.remove((Namespace) namespace);
+                }
+            }
+        });
+
+        StringWriter out = new StringWriter();
+        new JSONWriter(out, format).write(doc);
+        return out.toString();
+    }
+
+    private String writeFromHandler(String xml, JSONFormat format) throws Exception {
+        return writeFromHandler(xml, format, null);
+    }
+
+    private String writeFromHandler(String xml, JSONFormat format, JSONPathFilter filter) throws Exception {
+        return writeFromHandler(xml, format, filter, JSONContentHandler.DEFAULT_LOOKAHEAD);
+    }
+
+    private String writeFromHandler(String xml, JSONFormat format, JSONPathFilter filter, int lookahead)
+    throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XMLReader xmlReader = factory.newSAXParser().getXMLReader();
+
+        StringWriter out = new StringWriter();
+        JSONContentHandler handler = new JSONContentHandler(out, format);
+        handler.setPathFilter(filter);
+        handler.setLookahead(lookahead);
+        xmlReader.setContentHandler(handler);
+        xmlReader.parse(new InputSource(new StringReader(xml)));
+        return out.toString();
+    }
+}
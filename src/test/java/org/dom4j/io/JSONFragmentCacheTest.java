@@ -0,0 +1,227 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+
+public class JSONFragmentCacheTest extends TestCase {
+
+    private static Document makeDocument(DocumentFactory factory) {
+        Document doc = factory.createDocument();
+        Element root = doc.addElement("root");
+        root.addAttribute("id", "r1");
+        for (int i = 0; i < 50; i++) {
+            Element item = root.addElement("item");
+            item.addAttribute("n", Integer.toString(i));
+            item.addElement("name").setText("name " + i);
+            item.addElement("value").setText("value " + i);
+        }
+        Element mixed = root.addElement("mixed");
+        mixed.addText("some ");
+        mixed.addElement("b").setText("bold");
+        mixed.addText(" text");
+
+        return doc;
+    }
+
+    private static String write(JSONWriterConfig config, Document doc) throws Exception {
+        StringWriter out = new StringWriter();
+        config.write(doc, out);
+        return out.toString();
+    }
+
+    public void testSameOutput() throws Exception {
+        for (JSONFormat format : JSONFormat.values()) {
+            for (boolean human : new boolean[] { false, true }) {
+                JSONWriterConfig config = new JSONWriterConfig(format).withHumanFormat(human);
+                JSONFragmentCache cache = new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+                JSONWriterConfig cached = config.withFragmentCache(cache);
+                Document doc = makeDocument(cache.getDocumentFactory());
+
+                String expected = write(config, doc);
+                assertEquals(expected, write(cached, doc));
+                assertEquals(0, cache.getHitCount());
+                assertTrue(cache.size() > 0);
+
+                // Everything comes from the root's fragment
+                assertEquals(expected, write(cached, doc));
+                assertEquals(1, cache.getHitCount());
+
+                // At a different level, only unindented fragments can be used
+                JSONWriterConfig indented = cached.withIndentLevel(2);
+                assertEquals(write(config.withIndentLevel(2), doc), write(indented, doc));
+                assertEquals(write(config.withIndentLevel(2), doc), write(indented, doc));
+            }
+        }
+    }
+
+    public void testStyles() throws Exception {
+        JSONFragmentCache cache = new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+        Document doc = makeDocument(cache.getDocumentFactory());
+        JSONWriterConfig padded = new JSONWriterConfig(JSONFormat.BADGER_FISH);
+        JSONWriterConfig compact = padded.withCompact(true);
+
+        String expected = write(compact, doc);
+        write(padded.withFragmentCache(cache), doc);
+        assertEquals(expected, write(compact.withFragmentCache(cache), doc));
+        assertEquals(0, cache.getHitCount());
+    }
+
+    public void testTrackedChanges() throws Exception {
+        JSONFragmentCache cache = new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.RABBIT_FISH);
+        JSONWriterConfig cached = config.withFragmentCache(cache);
+        Document doc = makeDocument(cache.getDocumentFactory());
+        write(cached, doc);
+        int size = cache.size();
+
+        Element item = (Element) doc.getRootElement().elements("item").get(7);
+        item.element("name").setText("changed");
+        assertEquals(size - 2, cache.size());
+        assertEquals(write(config, doc), write(cached, doc));
+        assertEquals(size, cache.size());
+
+        // Only the root and the changed item had to be written again
+        cache.invalidate(item);
+        long misses = cache.getMissCount();
+        write(cached, doc);
+        assertEquals(misses + 2, cache.getMissCount());
+
+        item.attribute("n").setValue("seven");
+        assertEquals(write(config, doc), write(cached, doc));
+
+        ((org.dom4j.Text) item.element("value").node(0)).setText("new value");
+        assertEquals(write(config, doc), write(cached, doc));
+
+        item.addElement("extra").setText("x");
+        assertEquals(write(config, doc), write(cached, doc));
+
+        doc.getRootElement().remove(item);
+        assertEquals(write(config, doc), write(cached, doc));
+        assertTrue(write(config, doc).indexOf("seven") < 0);
+    }
+
+    public void testExplicitInvalidate() throws Exception {
+        JSONFragmentCache cache = new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.RABBIT_FISH);
+        JSONWriterConfig cached = config.withFragmentCache(cache);
+
+        // Not tracked, so changes must be invalidated by hand
+        Document doc = makeDocument(DocumentFactory.getInstance());
+        String before = write(cached, doc);
+        Element item = (Element) doc.getRootElement().elements("item").get(3);
+        item.addAttribute("n", "three");
+        assertEquals(before, write(cached, doc));
+
+        cache.invalidate(item);
+        assertEquals(write(config, doc), write(cached, doc));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getLength());
+    }
+
+    public void testPutAfterInvalidate() throws Exception {
+        JSONFragmentCache cache = new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+        Document doc = makeDocument(DocumentFactory.getInstance());
+        Element item = doc.getRootElement().element("item");
+
+        // Written before a change, and put after it's been invalidated
+        long version = cache.getVersion(item);
+        cache.invalidate((Element) item.elements().get(0));
+        cache.putFragment(item, "style", 0, "{\"stale\":true}", version);
+        assertNull(cache.getFragment(item, "style", 0));
+        assertEquals(0, cache.getLength());
+
+        // Invalidating an empty cache still counts
+        cache.putFragment(item, "style", 0, "{\"fresh\":true}", cache.getVersion(item));
+        assertEquals("{\"fresh\":true}", cache.getFragment(item, "style", 0));
+    }
+
+    public void testDiscardedDocuments() throws Exception {
+        JSONFragmentCache cache = new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+        JSONWriterConfig cached = new JSONWriterConfig(JSONFormat.RABBIT_FISH).withFragmentCache(cache);
+        write(cached, makeDocument(DocumentFactory.getInstance()));
+        assertTrue(cache.size() > 0);
+
+        // Fragments of collected elements are dropped
+        for (int i = 0; (i < 100) && (cache.size() > 0); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getLength());
+    }
+
+    public void testLimits() throws Exception {
+        Document doc = makeDocument(DocumentFactory.getInstance());
+
+        // Small fragments aren't cached
+        JSONFragmentCache cache = new JSONFragmentCache(1000, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+        write(new JSONWriterConfig(JSONFormat.RABBIT_FISH).withFragmentCache(cache), doc);
+        assertEquals(1, cache.size());
+
+        // Nor is anything once the cache is full
+        cache = new JSONFragmentCache(0, 1000);
+        String expected = write(new JSONWriterConfig(JSONFormat.RABBIT_FISH), doc);
+        assertEquals(expected, write(new JSONWriterConfig(JSONFormat.RABBIT_FISH).withFragmentCache(cache), doc));
+        assertTrue(cache.getLength() <= 1000);
+        assertTrue(cache.size() > 0);
+    }
+
+    public void testParallelAndByteBuffers() throws Exception {
+        JSONFragmentCache cache = new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+        Document doc = makeDocument(cache.getDocumentFactory());
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.BADGER_FISH).withHumanFormat(true);
+        String expected = write(config, doc);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            JSONWriterConfig parallel = config
+                .withFragmentCache(cache)
+                .withParallelism(pool)
+                .withParallelThreshold(10);
+            assertEquals(expected, write(parallel, doc));
+            assertEquals(expected, write(parallel, doc));
+        } finally {
+            pool.shutdown();
+        }
+
+        JSONWriter writer = config.withFragmentCache(cache).createWriter(new StringWriter());
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        StringBuilder result = new StringBuilder();
+        boolean complete = writer.write(doc, buffer);
+        while (true) {
+            buffer.flip();
+            result.append(new String(buffer.array(), 0, buffer.limit(), "UTF-8"));
+            buffer.clear();
+            if (complete) {
+                break;
+            }
+            complete = writer.resume(buffer);
+        }
+        assertEquals(expected, result.toString());
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.QName;
+
+public class JSONProjectionTest extends TestCase {
+
+    private static final List<String> NONE = Collections.<String>emptyList();
+
+    private static Document makeDocument() {
+        Document doc = DocumentHelper.createDocument();
+        Element order = doc.addElement("order");
+        order.addAttribute("id", "o1");
+        order.addAttribute("status", "open");
+        Element customer = order.addElement("customer");
+        customer.addElement("name").setText("Ann");
+        customer.addElement("email").setText("ann@example.com");
+        Element items = order.addElement("items");
+        for (int i = 0; i < 20; i++) {
+            Element item = items.addElement("item");
+            item.addAttribute("n", Integer.toString(i));
+            item.addElement("sku").setText("sku-" + i);
+            item.addElement("price").setText(Integer.toString(i * 10));
+            item.addElement("notes").setText("notes for " + i);
+        }
+        Element description = order.addElement("description");
+        description.addText("A ");
+        description.addElement("b").setText("big");
+        description.addText(" order");
+        order.addElement("secret").setText("xyzzy");
+
+        return doc;
+    }
+
+    private static String write(JSONWriterConfig config, Document doc) throws Exception {
+        StringWriter out = new StringWriter();
+        config.write(doc, out);
+        return out.toString();
+    }
+
+    /**
+     * @return <code>doc</code> written with the nodes selected by
+     * <code>xpath</code> removed first
+     */
+    private static String writeWithout(JSONWriterConfig config, Document doc, String xpath)
+    throws Exception {
+        Document copy = (Document) doc.clone();
+        for (Object node : copy.selectNodes(xpath)) {
+            ((Node) node).detach();
+        }
+        return write(config, copy);
+    }
+
+    public void testExclude() throws Exception {
+        Document doc = makeDocument();
+        JSONProjection projection = new JSONProjection(NONE, Arrays.asList("//notes", "/order/secret", "//item/@n"));
+        for (JSONFormat format : JSONFormat.values()) {
+            JSONWriterConfig config = new JSONWriterConfig(format).withHumanFormat(true);
+            assertEquals(writeWithout(config, doc, "//notes | /order/secret | //item/@n"),
+                         write(config.withProjection(projection), doc));
+        }
+    }
+
+    public void testInclude() throws Exception {
+        Document doc = makeDocument();
+        JSONProjection projection = new JSONProjection(Arrays.asList("/order/@id", "/order/items/item/price"), NONE);
+        for (JSONFormat format : JSONFormat.values()) {
+            JSONWriterConfig config = new JSONWriterConfig(format);
+            String expected = writeWithout(config, doc,
+                "/order/@status | /order/customer | /order/description | /order/secret"
+                + " | //item/@n | //item/sku | //item/notes");
+            assertEquals(expected, write(config.withProjection(projection), doc));
+        }
+    }
+
+    public void testIncludeAndExclude() throws Exception {
+        Document doc = makeDocument();
+        JSONProjection projection = new JSONProjection(Arrays.asList("/order/customer", "/order/description/b"),
+                                                       Arrays.asList("//email"));
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.BADGER_FISH);
+        String expected = writeWithout(config, doc,
+            "/order/@* | /order/items | /order/secret | //email | /order/description/text()");
+        assertEquals(expected, write(config.withProjection(projection), doc));
+
+        // An excluded or unselected top element is written empty
+        String empty = "{ \"order\": { \"$\": \"\" } }";
+        projection = new JSONProjection(NONE, Arrays.asList("/order"));
+        assertEquals(empty, write(config.withProjection(projection), doc).trim());
+        projection = new JSONProjection(Arrays.asList("/nothing"), NONE);
+        assertEquals(empty, write(config.withProjection(projection), doc).trim());
+    }
+
+    /**
+     * @return <code>node</code> written with <code>excludes</code> as simple
+     * paths, after checking that it's the same as when they're evaluated
+     * as XPath (which a predicate forces)
+     */
+    private static String writeExcluding(JSONWriterConfig config, Node node,
+                                         Map<String, String> namespaceURIs, String... excludes)
+    throws Exception {
+        List<String> evaluated = new ArrayList<String>();
+        for (String exclude : excludes) {
+            evaluated.add("(" + exclude + ")[true()]");
+        }
+
+        StringWriter expected = new StringWriter();
+        config.withProjection(new JSONProjection(NONE, evaluated, namespaceURIs)).write(node, expected);
+        StringWriter out = new StringWriter();
+        config.withProjection(new JSONProjection(NONE, Arrays.asList(excludes), namespaceURIs)).write(node, out);
+        assertEquals(expected.toString(), out.toString());
+        return out.toString();
+    }
+
+    public void testCompiledExcludes() throws Exception {
+        Document doc = makeDocument();
+        Map<String, String> none = Collections.<String, String>emptyMap();
+        for (JSONFormat format : JSONFormat.values()) {
+            JSONWriterConfig config = new JSONWriterConfig(format);
+            writeExcluding(config, doc, none, "//notes", "/order/secret", "//item/@n");
+            writeExcluding(config, doc, none, "/order/@* | //customer/*", "//b");
+            writeExcluding(config, doc, none, "/*/items//price", "//@status", "/order");
+            writeExcluding(config, doc, none, "//*");
+
+            // Relative paths start from the element being written
+            Element items = doc.getRootElement().element("items");
+            String json = writeExcluding(config, items, none, "item/sku", "*/@n", "/order/items/item/notes");
+            assertFalse(json.contains("sku"));
+            assertFalse(json.contains("notes"));
+            assertTrue(json.contains("price"));
+        }
+
+        // Names only match in their own namespace
+        Document namespaced = DocumentHelper.createDocument();
+        Element root = namespaced.addElement("root", "urn:a");
+        root.addElement("x", "urn:a").setText("1");
+        root.addElement("x").setText("2");
+        root.addElement("b:x", "urn:b").setText("3");
+        root.addAttribute(QName.get("y", "b", "urn:b"), "4");
+        Map<String, String> namespaceURIs = new HashMap<String, String>();
+        namespaceURIs.put("a", "urn:a");
+        namespaceURIs.put("b", "urn:b");
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.BADGER_FISH);
+        writeExcluding(config, namespaced, namespaceURIs, "//a:x");
+        writeExcluding(config, namespaced, namespaceURIs, "/a:root/x", "//@b:y");
+        writeExcluding(config, namespaced, namespaceURIs, "//b:x | /a:root/b:*");
+
+        // Excluded subtrees aren't visited
+        JSONWriterMetrics metrics = new JSONWriterMetrics();
+        JSONProjection projection = new JSONProjection(NONE, Arrays.asList("//items", "//customer"));
+        write(new JSONWriterConfig(JSONFormat.RABBIT_FISH).withProjection(projection).withMetrics(metrics), doc);
+        assertEquals(4, metrics.getElementCount());
+    }
+
+    public void testSkippedElementsNotVisited() throws Exception {
+        Document doc = makeDocument();
+        JSONWriterMetrics metrics = new JSONWriterMetrics();
+        JSONProjection projection = new JSONProjection(Arrays.asList("/order/customer/email"), NONE);
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.RABBIT_FISH)
+            .withProjection(projection)
+            .withMetrics(metrics);
+        assertEquals("{ \"order\": { \"customer\": { \"email\": \"ann@example.com\" } } }", write(config, doc).trim());
+        assertEquals(3, metrics.getElementCount());
+        assertEquals(0, metrics.getAttributeCount());
+    }
+
+    public void testWithOtherFeatures() throws Exception {
+        Document doc = makeDocument();
+        JSONProjection projection = new JSONProjection(Arrays.asList("/order/items"), Arrays.asList("//item[3]"));
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.RABBIT_FISH).withHumanFormat(true);
+        String expected = writeWithout(config, doc,
+            "/order/@* | /order/customer | /order/description | /order/secret | //item[3]");
+
+        JSONFragmentCache cache = new JSONFragmentCache(0, JSONFragmentCache.DEFAULT_MAX_LENGTH);
+        JSONWriterConfig projected = config
+            .withProjection(projection)
+            .withShapeCache(new JSONShapeCache())
+            .withFragmentCache(cache);
+        assertEquals(expected, write(projected, doc));
+        assertEquals(expected, write(projected, doc));
+        assertTrue(cache.getHitCount() > 0);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            JSONWriterConfig parallel = config
+                .withProjection(new JSONProjection(Arrays.asList("/order/items"), NONE))
+                .withParallelism(pool)
+                .withParallelThreshold(5);
+            assertEquals(writeWithout(config, doc, "/order/@* | /order/customer | /order/description | /order/secret"),
+                         write(parallel, doc));
+        } finally {
+            pool.shutdown();
+        }
+
+        JSONWriter writer = config.createWriter(new StringWriter());
+        writer.setProjection(projection);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        StringBuilder result = new StringBuilder();
+        boolean complete = writer.write(doc, buffer);
+        while (true) {
+            buffer.flip();
+            result.append(new String(buffer.array(), 0, buffer.limit(), "UTF-8"));
+            buffer.clear();
+            if (complete) {
+                break;
+            }
+            complete = writer.resume(buffer);
+        }
+        assertEquals(expected, result.toString());
+    }
+}
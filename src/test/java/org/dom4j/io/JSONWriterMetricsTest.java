@@ -0,0 +1,140 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+
+public class JSONWriterMetricsTest extends TestCase {
+
+    private static Document makeDocument() {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element root = doc.addElement("root");
+        root.addAttribute("id", "r1");
+        for (int i = 0; i < 2000; i++) {
+            Element item = root.addElement("item");
+            item.addAttribute("n", Integer.toString(i));
+            item.addElement("name").setText("\"quoted\" " + i);
+        }
+        root.addElement("deep").addElement("deeper").setText("x");
+
+        return doc;
+    }
+
+    public void testCounts() throws Exception {
+        Document doc = makeDocument();
+        JSONWriterMetrics metrics = new JSONWriterMetrics();
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.RABBIT_FISH)
+            .withNameCache(new JSONNameCache())
+            .withMetrics(metrics);
+
+        for (int i = 0; i < 3; i++) {
+            config.write(doc, new ByteArrayOutputStream());
+        }
+
+        // Measuring isn't recorded
+        JSONWriterMetrics.Snapshot snapshot = metrics.snapshot();
+        long length = config.measure(doc);
+        assertEquals(3, metrics.getDocumentCount());
+
+        assertEquals(3, snapshot.getDocumentCount());
+        assertEquals(3 * (1 + 2000 * 2 + 2), snapshot.getElementCount());
+        assertEquals(3 * 2001, snapshot.getAttributeCount());
+        assertEquals(3 * length, snapshot.getByteCount());
+        assertEquals(3 * 2000 * 2, snapshot.getEscapeCount());
+        assertEquals(3, snapshot.getMaxDepth());
+
+        // root, name, deep and deeper are only missed the first time (the
+        // "item" array uses the raw name).
+        assertEquals(4, snapshot.getNameCacheMissCount());
+        assertTrue(snapshot.getNameCacheHitCount() > 0);
+
+        assertTrue(snapshot.getMaxTimeNanos() > 0);
+        assertTrue(snapshot.getTimePercentileNanos(50) <= snapshot.getMaxTimeNanos());
+        assertEquals(snapshot.getMaxTimeNanos(), snapshot.getTimePercentileNanos(100));
+
+        // A Writer's output isn't encoded, so bytes aren't counted.
+        metrics.reset();
+        config.write(doc, new StringWriter());
+        assertEquals(1, metrics.getDocumentCount());
+        assertEquals(0, metrics.getByteCount());
+        assertEquals(1 + 2000 * 2 + 2, metrics.getElementCount());
+    }
+
+    public void testParallelCounts() throws Exception {
+        Document doc = makeDocument();
+        JSONWriterMetrics metrics = new JSONWriterMetrics();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            JSONWriterConfig config = new JSONWriterConfig(JSONFormat.BADGER_FISH)
+                .withMetrics(metrics)
+                .withParallelism(pool)
+                .withParallelThreshold(100);
+            config.write(doc, new StringWriter());
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(1, metrics.getDocumentCount());
+        assertEquals(1 + 2000 * 2 + 2, metrics.getElementCount());
+        assertEquals(2001, metrics.getAttributeCount());
+        assertEquals(3, metrics.getMaxDepth());
+    }
+
+    public void testHistogramBuckets() throws Exception {
+        long[] times = { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, 1L << 39, Long.MAX_VALUE };
+        for (long time : times) {
+            int bucket = JSONWriterMetrics.getBucket(time);
+            assertTrue(JSONWriterMetrics.getBucketLowerBound(bucket) <= time);
+            assertTrue(JSONWriterMetrics.getBucketUpperBound(bucket) >= time);
+        }
+
+        for (int i = 0; i < JSONWriterMetrics.BUCKET_COUNT - 1; i++) {
+            assertEquals(JSONWriterMetrics.getBucketUpperBound(i) + 1,
+                         JSONWriterMetrics.getBucketLowerBound(i + 1));
+        }
+    }
+
+    public void testMBean() throws Exception {
+        JSONWriterMetrics metrics = new JSONWriterMetrics();
+        ObjectName name = metrics.registerMBean("org.dom4j.io:type=JSONWriterMetrics,name=test");
+        try {
+            JSONWriterConfig config = JSONWriterConfig.DEFAULT.withMetrics(metrics);
+            config.write(makeDocument(), new StringWriter());
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "DocumentCount"));
+            assertEquals(metrics.getElementCount(), server.getAttribute(name, "ElementCount"));
+
+            server.invoke(name, "reset", null, null);
+            assertEquals(0, metrics.getDocumentCount());
+        } finally {
+            metrics.unregisterMBean(name);
+        }
+    }
+}
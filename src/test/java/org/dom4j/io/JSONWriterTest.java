@@ -16,7 +16,16 @@
 
 package org.dom4j.io;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import junit.textui.TestRunner;
 
@@ -24,6 +33,7 @@ import org.apache.log4j.Logger;
 import org.dom4j.Document;
 import org.dom4j.DocumentFactory;
 import org.dom4j.Element;
+import org.dom4j.Node;
 import org.dom4j.tree.FlyweightText;
 
 /**
@@ -101,6 +111,29 @@ public class JSONWriterTest extends AbstractTestCase {
         checkJSONOutput(doc, JSONFormat.BADGER_FISH, "{ \"alice\": { \"bob\": [ { \"$\": \"charlie\" }, { \"$\": \"david\" } ] } }");
     }
 
+    public void testInterleavedSiblingGroups() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element alice = doc.addElement("alice");
+        alice.addAttribute("zed", "1");
+        alice.addElement("bob").setText("b1");
+        alice.addElement("charlie").setText("c1");
+        alice.addElement("bob").setText("b2");
+        alice.addElement("david").setText("d1");
+        alice.addElement("bob").setText("b3");
+
+        checkJSONOutput(doc, JSONFormat.BASIC_OUTPUT, "{ \"alice\": { \"zed\": \"1\", \"bob\": [ \"b1\", \"b2\", \"b3\" ], \"charlie\": \"c1\", \"david\": \"d1\" } }");
+        checkJSONOutput(doc, JSONFormat.RABBIT_FISH, "{ \"alice\": { \"@zed\": \"1\", \"bob\": [ \"b1\", \"b2\", \"b3\" ], \"charlie\": \"c1\", \"david\": \"d1\" } }");
+    }
+
+    public void testWideElement() throws Exception {
+        Document doc = TestDocuments.makeWideDocument(5000);
+        StringWriter out = new StringWriter();
+        new JSONWriter(out, JSONFormat.RABBIT_FISH).write(doc);
+        String text = out.toString();
+        assertTrue(text.startsWith("{ \"root\": { \"child0\": \"value0\", \"child1\": \"value1\""));
+        assertTrue(text.trim().endsWith("\"child4999\": \"value4999\" } }"));
+    }
+
     public void testMixedContent() throws Exception {
         Document doc = DocumentFactory.getInstance().createDocument();
         Element alice = doc.addElement("alice");
@@ -127,6 +160,23 @@ public class JSONWriterTest extends AbstractTestCase {
         checkJSONOutput(doc, JSONFormat.BADGER_FISH, "{ \"alice\": { \"@charlie\": \"\\\\dav\\\"id\\/\", \"$\": \"\\\\bob\\\"by\\/\" } }");
     }
 
+    public void testControlCharacterEscaping() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element alice = doc.addElement("alice");
+        alice.addAttribute("charlie", "tab\there");
+        alice.setText("\n line1\nline2\r\u0001\u001F\u007F \uD800 \uD83D\uDE00\b\f");
+
+        String expected = "{ \"alice\": { \"@charlie\": \"tab\\there\", "
+                        + "\"$\": \"line1\\nline2\\r\\u0001\\u001F\u007F \\uD800 \uD83D\uDE00\" } }";
+        StringWriter out = new StringWriter();
+        new JSONWriter(out, JSONFormat.RABBIT_FISH).write(doc);
+        assertEquals(expected, out.toString());
+
+        assertEquals("a\\\"b\\/c\\\\", new JSONWriter(out).escapeElementEntities("a\"b/c\\"));
+        String plain = "no escapes needed";
+        assertSame(plain, new JSONWriter(out).escapeAttributeEntities(plain));
+    }
+
     public void testEmptyValue() throws Exception {
         Document doc = DocumentFactory.getInstance().createDocument();
         Element alice = doc.addElement("alice");
@@ -171,6 +221,556 @@ public class JSONWriterTest extends AbstractTestCase {
         checkJSONOutput(doc, JSONFormat.BADGER_FISH, "{ \"_al_ice\u0F00\": { \"\u0F00bob_u002B_\": { \"$\": \"+-charlie\" }, \"_private\": { \"$\": \"public\" } } }");
     }
 
+    public void testDeepDocument() throws Exception {
+        final int depth = 100000;
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element parent = doc.addElement("node");
+        for (int i = 1; i < depth; i++) {
+            parent = parent.addElement("node");
+        }
+        parent.setText("bottom");
+
+        for (JSONFormat format : JSONFormat.values()) {
+            StringWriter out = new StringWriter();
+            new JSONWriter(out, format).write(doc);
+            String text = out.toString();
+
+            String bottom = format.equals(JSONFormat.BADGER_FISH) ? "{ \"$\": \"bottom\" }" : "\"bottom\"";
+            assertTrue(text.startsWith("{ \"node\": { \"node\": { \"node\": "));
+            assertTrue(text.contains("{ \"node\": " + bottom + " }"));
+            assertEquals(depth + (format.equals(JSONFormat.BADGER_FISH) ? 1 : 0),
+                            text.split("\\{", -1).length - 1);
+        }
+    }
+
+    public void testSharedConfig() throws Exception {
+        final JSONWriterConfig config = new JSONWriterConfig(JSONFormat.BADGER_FISH);
+        final Document[] docs = new Document[10];
+        final String[] expected = new String[docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = TestDocuments.makeWideDocument(i * 10);
+            StringWriter out = new StringWriter();
+            new JSONWriter(out, JSONFormat.BADGER_FISH).write(docs[i]);
+            expected[i] = out.toString();
+        }
+
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            int index = i % docs.length;
+                            if ((i % 2) == 0) {
+                                StringWriter out = new StringWriter();
+                                config.write(docs[index], out);
+                                assertEquals(expected[index], out.toString());
+                            } else {
+                                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                                config.write(docs[index], out);
+                                assertEquals(expected[index], out.toString("UTF-8"));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    public void testConfigsShareThreadWriters() throws Exception {
+        final Document doc = TestDocuments.makeWideDocument(20);
+        final JSONWriterConfig padded = new JSONWriterConfig(JSONFormat.BADGER_FISH);
+        JSONWriterConfig human = padded.withHumanFormat(true).withIndentLevel(1);
+        JSONWriterConfig compact = new JSONWriterConfig(JSONFormat.RABBIT_FISH).withCompact(true);
+        JSONWriterConfig[] configs = { padded, human, compact, human.withIndentLevel(0) };
+        String[] expected = new String[configs.length];
+        for (int i = 0; i < configs.length; i++) {
+            StringWriter out = new StringWriter();
+            configs[i].createWriter(out).write(doc);
+            expected[i] = out.toString();
+        }
+
+        // Switching configs on this thread's writer doesn't carry settings over
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < configs.length; i++) {
+                StringWriter out = new StringWriter();
+                configs[i].write(doc, out);
+                assertEquals(expected[i], out.toString());
+            }
+        }
+
+        // A write started during another on the same thread gets its own writer
+        final StringWriter inner = new StringWriter();
+        StringWriter outer = new StringWriter() {
+            private boolean started = false;
+
+            public void write(String str) {
+                if (!started) {
+                    started = true;
+                    try {
+                        padded.write(doc, inner);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                super.write(str);
+            }
+        };
+        compact.write(doc, outer);
+        assertEquals(expected[0], inner.toString());
+        assertEquals(expected[2], outer.toString());
+    }
+
+    public void testConfigCopies() throws Exception {
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.BASIC_OUTPUT);
+        JSONWriterConfig human = config.withHumanFormat(true).withIndentLevel(1);
+        assertFalse(config.isHumanFormat());
+        assertTrue(human.isHumanFormat());
+        assertEquals(1, human.getIndentLevel());
+        assertEquals(JSONFormat.BASIC_OUTPUT, human.getFormat());
+
+        StringWriter out = new StringWriter();
+        human.write(document, out);
+        assertTrue(out.toString().startsWith("{ \n    \"root\": { \n      \"author\": [ \n"));
+
+        JSONWriter writer = config.createWriter(new StringWriter());
+        assertSame(config, writer.getConfig());
+        assertEquals(JSONFormat.BASIC_OUTPUT, writer.getOutputFormat());
+    }
+
+    public void testParallelOutput() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element feed = doc.addElement("feed");
+        feed.addAttribute("id", "f1");
+        feed.addElement("title").setText("Feed");
+        Element entries = feed.addElement("entries");
+        entries.addAttribute("count", "3000");
+        for (int i = 0; i < 3000; i++) {
+            Element entry = entries.addElement((i % 500) == 499 ? "marker" : "entry");
+            entry.addAttribute("n", Integer.toString(i));
+            entry.addElement("name").setText("name" + i);
+            if ((i % 3) == 0) {
+                entry.addElement("tag").setText("a");
+                entry.addElement("tag").setText("b");
+            }
+            if ((i % 7) == 0) {
+                entry.addText("mixed ");
+                entry.addElement("em").setText("text");
+            }
+        }
+        entries.addElement("summary").setText("done");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (JSONFormat format : JSONFormat.values()) {
+                for (int level = 0; level < 2; level++) {
+                    JSONWriterConfig config = new JSONWriterConfig(format)
+                        .withHumanFormat(level > 0)
+                        .withIndentLevel(level);
+                    StringWriter expected = new StringWriter();
+                    config.write(doc, expected);
+
+                    StringWriter out = new StringWriter();
+                    config.withParallelism(pool).withParallelThreshold(100).write(doc, out);
+                    assertEquals(expected.toString(), out.toString());
+
+                    // Below the threshold, it's all written sequentially
+                    out = new StringWriter();
+                    config.withParallelism(pool).write(TestDocuments.makeWideDocument(10), out);
+                    StringWriter small = new StringWriter();
+                    config.write(TestDocuments.makeWideDocument(10), small);
+                    assertEquals(small.toString(), out.toString());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testCompactOutput() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element root = doc.addElement("root");
+        root.addAttribute("id", "1");
+        root.addElement("a").setText("x");
+        root.addElement("b").setText("1");
+        root.addElement("b").setText("2");
+        Element mixed = root.addElement("c");
+        mixed.addText("some ");
+        mixed.addElement("em").setText("text");
+
+        checkCompactOutput(doc, JSONFormat.BASIC_OUTPUT, "{\"root\":{\"id\":\"1\",\"a\":\"x\",\"b\":[\"1\",\"2\"],\"c\":[\"some\",{\"em\":\"text\"}]}}");
+        checkCompactOutput(doc, JSONFormat.RABBIT_FISH, "{\"root\":{\"@id\":\"1\",\"a\":\"x\",\"b\":[\"1\",\"2\"],\"c\":[\"some\",{\"em\":\"text\"}]}}");
+        checkCompactOutput(doc, JSONFormat.BADGER_FISH, "{\"root\":{\"@id\":\"1\",\"a\":{\"$\":\"x\"},\"b\":[{\"$\":\"1\"},{\"$\":\"2\"}],\"c\":[{\"$\":\"some\"},{\"em\":{\"$\":\"text\"}}]}}");
+    }
+
+    private void checkCompactOutput(Document doc, JSONFormat format, String expected) throws Exception {
+        JSONWriterConfig config = new JSONWriterConfig(format).withCompact(true);
+        StringWriter out = new StringWriter();
+        config.write(doc, out);
+        assertEquals(expected, out.toString());
+
+        // Streaming conversion is compact too
+        out = new StringWriter();
+        JSONContentHandler handler = new JSONContentHandler(out, config);
+        new SAXWriter(handler).write(doc);
+        assertEquals(expected, out.toString());
+    }
+
+    public void testPrettyPrinting() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element root = doc.addElement("root");
+        root.addElement("a").setText("x");
+        root.addElement("b").setText("y");
+
+        StringWriter out = new StringWriter();
+        JSONWriter writer = new JSONWriter(out, new JSONWriterConfig(JSONFormat.RABBIT_FISH)
+            .withCompact(true)
+            .withIndentWidth(4)
+            .withLineSeparator("\r\n"));
+        assertFalse(writer.isHumanFormat());
+        writer.setHumanFormat(true);
+        assertTrue(writer.isHumanFormat());
+        assertTrue(writer.isCompact());
+        writer.write(doc);
+        assertEquals("{\r\n    \"root\":{\r\n        \"a\":\"x\",\r\n        \"b\":\"y\"\r\n    }\r\n}\r\n", out.toString());
+
+        // Indentation past the precomputed levels is written in chunks
+        doc = DocumentFactory.getInstance().createDocument();
+        Element element = doc.addElement("e0");
+        for (int i = 1; i < 50; i++) {
+            element = element.addElement("e" + i);
+        }
+        element.setText("deep");
+
+        out = new StringWriter();
+        new JSONWriterConfig(JSONFormat.RABBIT_FISH).withHumanFormat(true).withIndentWidth(3).write(doc, out);
+        String[] lines = out.toString().split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            int level = Math.min(i, lines.length - 1 - i);
+            String line = lines[i];
+            int indent = 0;
+            while ((indent < line.length()) && (line.charAt(indent) == ' ')) {
+                indent++;
+            }
+            assertEquals(line, level * 3, indent);
+        }
+    }
+
+    public void testIndentHooks() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element root = doc.addElement("root");
+        root.addElement("a").setText("x");
+        root.addElement("b").setText("y");
+
+        // Overrides of the protected line hooks are still called
+        StringWriter out = new StringWriter();
+        JSONWriter writer = new JSONWriter(out, new JSONWriterConfig(JSONFormat.RABBIT_FISH)
+            .withCompact(true)
+            .withHumanFormat(true)) {
+            protected void indent() throws IOException {
+                writer.write('>');
+                super.indent();
+            }
+        };
+        writer.write(doc);
+        assertEquals("{\n>  \"root\":{\n>    \"a\":\"x\",\n>    \"b\":\"y\"\n>  }\n>}\n", out.toString());
+    }
+
+    public void testByteBufferOutput() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element root = doc.addElement("root");
+        root.addAttribute("id", "r1");
+        for (int i = 0; i < 200; i++) {
+            Element item = root.addElement((i % 50) == 49 ? "marker" : "item");
+            item.addAttribute("n", Integer.toString(i));
+            item.addElement("name").setText("caf\u00e9 \uD83D\uDE00 " + i);
+            if ((i % 7) == 0) {
+                item.addText("mixed ");
+                item.addElement("em").setText("text");
+            }
+        }
+
+        for (JSONFormat format : JSONFormat.values()) {
+            JSONWriterConfig config = new JSONWriterConfig(format).withHumanFormat(true);
+            for (Node node : new Node[] { doc, root }) {
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                JSONWriter writer = config.createWriter(expected);
+                writer.write(node);
+                writer.flush();
+
+                for (int size : new int[] { 1, 7, 100, 1000000 }) {
+                    for (boolean direct : new boolean[] { false, true }) {
+                        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        boolean complete = writer.write(node, buffer);
+                        copyBuffer(buffer, out);
+                        while (!complete) {
+                            assertTrue(writer.isWriteIncomplete());
+                            complete = writer.resume(buffer);
+                            copyBuffer(buffer, out);
+                        }
+
+                        assertFalse(writer.isWriteIncomplete());
+                        assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+                    }
+                }
+            }
+        }
+
+        // Nothing else can be written to a ByteBuffer until the write completes.
+        JSONWriter writer = new JSONWriter(new StringWriter());
+        assertFalse(writer.write(doc, ByteBuffer.allocate(10)));
+        try {
+            writer.write(doc, ByteBuffer.allocate(10));
+            fail("Should have thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testByteBufferWriterHoldsNoBytes() throws Exception {
+        // Text that doesn't fit is queued, not encoded, so only the bytes
+        // of the char that straddles two buffers are ever held over.
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append("caf\u00e9 \uD83D\uDE00 ");
+        }
+        char[] chars = "\u4e2d\u6587".toCharArray();
+
+        ByteBufferWriter out = new ByteBufferWriter(false);
+        ByteBuffer buffer = ByteBuffer.allocate(7);
+        out.setTarget(buffer);
+        out.write(text.toString());
+        out.write(chars, 0, chars.length);
+        chars[0] = 'x';
+        out.write('!');
+        assertTrue(out.isFull());
+        assertTrue(out.hasOverflow());
+        // 7 bytes fit, and the rest of the emoji's 4 are held
+        assertEquals(7 + 3, out.getByteCount());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copyBuffer(buffer, bytes);
+        while (!out.drain()) {
+            copyBuffer(buffer, bytes);
+        }
+        copyBuffer(buffer, bytes);
+        assertFalse(out.hasOverflow());
+        assertEquals(text + "\u4e2d\u6587!", new String(bytes.toByteArray(), "UTF-8"));
+        assertEquals(bytes.size(), out.getByteCount());
+    }
+
+    public void testMeasure() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element root = doc.addElement("root");
+        root.addAttribute("id", "a long attribute value");
+        for (int i = 0; i < 100; i++) {
+            Element item = root.addElement("item");
+            item.addElement("name").setText("caf\u00e9 \\ \"" + i + "\"");
+            item.addElement("text").setText("\u4e2d\u6587 \uD83D\uDE00 \uDC00\uD800 " + i);
+            if ((i % 10) == 0) {
+                item.addText("mixed ");
+                item.addElement("em").addElement("b").setText("deepest");
+            }
+        }
+
+        for (JSONFormat format : JSONFormat.values()) {
+            for (JSONWriterConfig config : new JSONWriterConfig[] {
+                            new JSONWriterConfig(format),
+                            new JSONWriterConfig(format).withHumanFormat(true),
+                            new JSONWriterConfig(format).withCompact(true) }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                config.write(doc, out);
+                assertEquals(out.size(), config.measure(doc));
+            }
+        }
+
+        // Characters are counted as UTF8Writer would encode them
+        String text = "a\u00e9\u4e2d\uD83D\uDE00\uDC00\uD800x\uD800";
+        for (boolean escapeNonAscii : new boolean[] { false, true }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            UTF8Writer utf8Writer = new UTF8Writer(bytes, escapeNonAscii);
+            MeasuringWriter measuringWriter = new MeasuringWriter(escapeNonAscii);
+            for (int i = 0; i < text.length(); i++) {
+                utf8Writer.write(text, i, 1);
+                measuringWriter.write(text.charAt(i));
+            }
+            utf8Writer.write(text);
+            measuringWriter.write(text.toCharArray(), 0, text.length());
+            utf8Writer.flush();
+            assertEquals(bytes.size(), measuringWriter.getCount());
+        }
+
+        JSONOutputStats stats = new JSONOutputStats();
+        long length = JSONWriterConfig.DEFAULT.measure(doc, stats);
+        assertEquals(length, stats.getByteLength());
+        assertEquals(1 + 100 * 3 + 10 * 2, stats.getElementCount());
+        assertEquals(1, stats.getAttributeCount());
+        assertEquals(4, stats.getMaxDepth());
+        assertEquals("a long attribute value".length(), stats.getLargestText());
+
+        JSONWriterConfig.DEFAULT.measure(root.element("item"), stats);
+        assertEquals(5, stats.getElementCount());
+        assertEquals(3, stats.getMaxDepth());
+
+        // Only what's written is counted: not comments, nor what a
+        // projection leaves out
+        root.addComment("a comment that's longer than any value");
+        JSONWriterConfig projected = JSONWriterConfig.DEFAULT.withProjection(
+                        new JSONProjection(Arrays.asList("/root/item/name"), Collections.<String>emptyList()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        projected.write(doc, out);
+        assertEquals(out.size(), projected.measure(doc, stats));
+        assertEquals(1 + 100 * 2, stats.getElementCount());
+        assertEquals(0, stats.getAttributeCount());
+        assertEquals(3, stats.getMaxDepth());
+        assertEquals("caf\u00e9 \\ \"99\"".length(), stats.getLargestText());
+    }
+
+    private static void copyBuffer(ByteBuffer buffer, ByteArrayOutputStream out) {
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        out.write(bytes, 0, bytes.length);
+        buffer.clear();
+    }
+
+    public void testShapeCache() throws Exception {
+        // Orders that mostly share a shape, and some that don't: a single
+        // line, lines split around the customer, a missing customer, and
+        // extra attributes and text.
+        List<Document> docs = new ArrayList<Document>();
+        for (int i = 0; i < 40; i++) {
+            Document doc = DocumentFactory.getInstance().createDocument();
+            Element order = doc.addElement("order");
+            order.addAttribute("id", "o" + i);
+            if ((i % 10) != 3) {
+                order.addElement("customer").addAttribute("id", "c" + i).setText("Customer " + i);
+            }
+            int lineCount = ((i % 10) == 5) ? 1 : 2 + (i % 4);
+            for (int j = 0; j < lineCount; j++) {
+                Element line = order.addElement("line");
+                line.addElement("sku").setText("sku" + j);
+                line.addElement("qty").setText(Integer.toString(j));
+                if ((i % 10) == 7) {
+                    line.addElement("note").setText("note");
+                }
+            }
+            if ((i % 10) == 8) {
+                order.addElement("customer").setText("Second customer");
+            }
+            docs.add(doc);
+        }
+
+        for (JSONFormat format : JSONFormat.values()) {
+            for (int level = 0; level < 2; level++) {
+                JSONShapeCache shapeCache = new JSONShapeCache();
+                JSONWriterConfig config = new JSONWriterConfig(format).withHumanFormat(level > 0);
+                JSONWriterConfig shapedConfig = config.withShapeCache(shapeCache);
+                for (int pass = 0; pass < 2; pass++) {
+                    for (Document doc : docs) {
+                        StringWriter expected = new StringWriter();
+                        config.write(doc, expected);
+                        StringWriter out = new StringWriter();
+                        shapedConfig.write(doc, out);
+                        assertEquals(expected.toString(), out.toString());
+                    }
+                }
+
+                assertTrue(shapeCache.getHitCount() > shapeCache.getMissCount());
+                assertTrue(shapeCache.getMissCount() > 0);
+            }
+        }
+    }
+
+    public void testAllocationPerElement() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if  (   !(bean instanceof com.sun.management.ThreadMXBean)
+            ||  !((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemoryEnabled()) {
+            LOGGER.warn("Can't measure allocation on this JVM");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)bean;
+
+        // Attribute-heavy, with text-only elements (which get a "$"
+        // property), arrays, and mixed content.
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element root = doc.addElement("root");
+        int elementCount = 1;
+        for (int i = 0; i < 500; i++) {
+            Element record = root.addElement("record");
+            record.addAttribute("id", "r" + i);
+            record.addAttribute("type", "t");
+            record.addElement("name").addAttribute("lang", "en").setText("name");
+            record.addElement("value").setText("value");
+            record.addElement("tag").setText("a");
+            record.addElement("tag").setText("b");
+            Element note = record.addElement("note");
+            note.addText("some ");
+            note.addElement("em").setText("mixed");
+            note.addText(" content");
+            elementCount += 7;
+        }
+
+        for (JSONFormat format : JSONFormat.values()) {
+            // A private name cache, as other tests fill up the default one
+            JSONWriterConfig config = new JSONWriterConfig(format).withNameCache(new JSONNameCache());
+            JSONWriter writer = new JSONWriter(new TestDocuments.NullWriter(), config);
+            for (int i = 0; i < 200; i++) {
+                writer.write(doc);
+            }
+
+            long threadId = Thread.currentThread().getId();
+            int iterations = 20;
+            long before = allocationBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < iterations; i++) {
+                writer.write(doc);
+            }
+            long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+            double perElement = (double)allocated / (iterations * elementCount);
+            assertTrue(format.getName() + " allocated " + perElement + " bytes/element", perElement < 1.0);
+        }
+    }
+
+    public void testJsonElementNameCache() throws Exception {
+        JSONNameCache cache = new JSONNameCache(2);
+        assertEquals("_al_ice", cache.getJsonName(JSONFormat.RABBIT_FISH, "-al-ice"));
+        assertEquals("_al_ice", cache.getJsonName(JSONFormat.RABBIT_FISH, "-al-ice"));
+        assertEquals("_private", cache.getJsonName(JSONFormat.BADGER_FISH, "private"));
+        assertEquals("bob_u002B_", cache.getJsonName(JSONFormat.RABBIT_FISH, "bob+"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(3, cache.size());
+
+        // Full for RABBIT_FISH, so new names get translated but not stored
+        assertEquals("x_u002B_y", cache.getJsonName(JSONFormat.RABBIT_FISH, "x+y"));
+        assertEquals(3, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    public void testJsonElementNameTranslation() throws Exception {
+        assertEquals("a_u002B__u002E_b", JSONNameCache.translate("a+.b"));
+        assertEquals("_u0031_abc", JSONNameCache.translate("1abc"));
+        assertEquals("ns_u003A_a", JSONNameCache.translate("ns:a"));
+        assertEquals("_function", JSONNameCache.translate("function"));
+        assertEquals("functional", JSONNameCache.translate("functional"));
+        assertTrue(JSONNameCache.translate(new String(Character.toChars(0x1F600))).startsWith("_u1F600_"));
+    }
+
     private void dumpXMLOutput(Document doc) throws Exception {
         StringWriter xmlBuffer = new StringWriter();
         XMLWriter xmlWriter = new XMLWriter(xmlBuffer);
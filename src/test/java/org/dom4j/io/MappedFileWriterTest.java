@@ -0,0 +1,126 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+public class MappedFileWriterTest extends TestCase {
+
+    public void testJSONOutput() throws Exception {
+        Document doc = DocumentHelper.createDocument();
+        Element root = doc.addElement("root");
+        for (int i = 0; i < 500; i++) {
+            root.addElement("item").addAttribute("id", "" + i).setText("café " + i);
+        }
+
+        StringWriter expected = new StringWriter();
+        JSONWriterConfig.DEFAULT.write(doc, expected);
+
+        File file = File.createTempFile("MappedFileWriterTest", ".json");
+        file.deleteOnExit();
+
+        // Small windows, so that the file is remapped many times.
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedFileWriter out = new MappedFileWriter(channel, 0, false, 1000);
+        JSONWriter writer = new JSONWriter(out, JSONWriterConfig.DEFAULT);
+        writer.write(doc);
+        writer.close();
+
+        byte[] expectedBytes = expected.toString().getBytes("UTF-8");
+        assertEquals(expectedBytes.length, out.getPosition());
+        assertTrue(Arrays.equals(expectedBytes, Files.readAllBytes(file.toPath())));
+    }
+
+    public void testForce() throws Exception {
+        File file = File.createTempFile("MappedFileWriterTest", ".json");
+        file.deleteOnExit();
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedFileWriter out = new MappedFileWriter(channel, 0, false, 10);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String line = "line " + i + "\n";
+            out.write(line);
+            expected.append(line);
+            if (i % 7 == 0) {
+                out.force();
+            }
+        }
+        out.force();
+        out.close();
+
+        assertEquals(expected.toString(), new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+    }
+
+    public void testWindowSize() throws Exception {
+        for (long windowSize : new long[] { 0, Integer.MAX_VALUE + 1L }) {
+            try {
+                new MappedFileWriter(null, 0, false, windowSize);
+                fail("Window size " + windowSize + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testTruncatesExistingFile() throws Exception {
+        File file = File.createTempFile("MappedFileWriterTest", ".json");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[10000]);
+
+        MappedFileWriter out = new MappedFileWriter(file.toPath());
+        out.write("{ }");
+        out.close();
+
+        assertEquals("{ }", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+    }
+
+    public void testClose() throws Exception {
+        File file = File.createTempFile("MappedFileWriterTest", ".json");
+        file.deleteOnExit();
+
+        // The last window is still mapped, and covers the split emoji, when
+        // the file is truncated.
+        MappedFileWriter out = new MappedFileWriter(file.toPath());
+        out.write("caf\u00e9 \uD83D");
+        out.close();
+        assertEquals(7, file.length());
+        assertEquals(7, out.getPosition());
+        assertEquals("caf\u00e9 ?", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+
+        out.close();
+        try {
+            out.write("more");
+            fail("Writing after close should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(7, file.length());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class ParallelGzipOutputStreamTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(1);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (int size : new int[] { 0, 1, 999, 1000, 1001, 3500, 50000 }) {
+                byte[] data = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    // Compressible, but not trivially
+                    data[i] = (byte) ('a' + random.nextInt(8));
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ParallelGzipOutputStream out = new ParallelGzipOutputStream(bytes, 6, 1000, pool);
+                int offset = 0;
+                while (offset < size) {
+                    if (random.nextBoolean()) {
+                        out.write(data[offset++]);
+                    } else {
+                        int length = Math.min(size - offset, random.nextInt(2500));
+                        out.write(data, offset, length);
+                        offset += length;
+                    }
+                }
+                out.close();
+
+                assertTrue(Arrays.equals(data, gunzip(bytes.toByteArray())));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testFlush() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(bytes, 6, 1000, ForkJoinPool.commonPool());
+        byte[] data = new byte[2500];
+        Arrays.fill(data, (byte) 'a');
+        out.write(data);
+
+        // Only the two full blocks are written, and the rest isn't cut off
+        // as a member of its own
+        out.flush();
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 2000), gunzip(bytes.toByteArray())));
+        out.flush();
+        out.write(data, 0, 500);
+        out.close();
+        assertEquals(3, countMembers(bytes.toByteArray()));
+        assertEquals(3000, gunzip(bytes.toByteArray()).length);
+    }
+
+    public void testJSONOutput() throws Exception {
+        JSONWriterConfig config = new JSONWriterConfig(JSONFormat.RABBIT_FISH).withHumanFormat(true);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        config.write(TestDocuments.makeWideDocument(5000), expected);
+
+        ByteArrayOutputStream fast = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(fast, 1, 16 * 1024, ForkJoinPool.commonPool());
+        config.write(TestDocuments.makeWideDocument(5000), out);
+        out.close();
+        assertTrue(Arrays.equals(expected.toByteArray(), gunzip(fast.toByteArray())));
+
+        ByteArrayOutputStream small = new ByteArrayOutputStream();
+        out = new ParallelGzipOutputStream(small, 9, 16 * 1024, ForkJoinPool.commonPool());
+        config.write(TestDocuments.makeWideDocument(5000), out);
+        out.close();
+        assertTrue(Arrays.equals(expected.toByteArray(), gunzip(small.toByteArray())));
+        assertTrue(small.size() < fast.size());
+    }
+
+    /**
+     * @return number of gzip members, found by their headers
+     */
+    private static int countMembers(byte[] gzipped) {
+        int count = 0;
+        for (int i = 0; i + 2 < gzipped.length; i++) {
+            if ((gzipped[i] == 0x1f) && (gzipped[i + 1] == (byte) 0x8b) && (gzipped[i + 2] == 8)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws Exception {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            result.write(buffer, 0, count);
+        }
+
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.Writer;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+
+/**
+ * Documents and sinks shared by the tests.
+ */
+final class TestDocuments {
+
+    private TestDocuments() {
+    }
+
+    /**
+     * @return a document whose root has <code>width</code> differently
+     * named, text-only children
+     */
+    static Document makeWideDocument(int width) {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        Element root = doc.addElement("root");
+        for (int i = 0; i < width; i++) {
+            root.addElement("child" + i).setText("value" + i);
+        }
+
+        return doc;
+    }
+
+    /**
+     * A <code>Writer</code> that throws everything away.
+     */
+    static class NullWriter extends Writer {
+        public void write(int c) {
+        }
+
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void write(String str) {
+        }
+
+        public void write(String str, int off, int len) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
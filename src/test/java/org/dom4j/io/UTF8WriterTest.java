@@ -0,0 +1,126 @@
+/*
+ * Copyright 2007-2008 Krugle, Inc.
+ * 
+   Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.dom4j.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+
+public class UTF8WriterTest extends TestCase {
+
+    private static final String MIXED_TEXT
+        = "plain ascii, café, ༀ€, 😀 smile, end";
+
+    public void testMatchesJdkEncoder() throws Exception {
+        Random random = new Random(1);
+        for (int bufferSize : new int[] { 12, 13, 64, 8192 }) {
+            for (int trial = 0; trial < 20; trial++) {
+                String text = randomText(random, 500);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                UTF8Writer writer = new UTF8Writer(bytes, false, bufferSize);
+
+                // Split the text at random points, including between the
+                // two halves of surrogate pairs.
+                int start = 0;
+                while (start < text.length()) {
+                    int end = Math.min(text.length(), start + random.nextInt(20));
+                    switch (random.nextInt(3)) {
+                    case 0:
+                        writer.write(text, start, end - start);
+                        break;
+                    case 1:
+                        writer.write(text.toCharArray(), start, end - start);
+                        break;
+                    default:
+                        for (int i = start; i < end; i++) {
+                            writer.write(text.charAt(i));
+                        }
+                    }
+                    start = end;
+                }
+                writer.close();
+
+                assertTrue(Arrays.equals(text.getBytes("UTF-8"), bytes.toByteArray()));
+            }
+        }
+    }
+
+    public void testUnpairedSurrogates() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UTF8Writer writer = new UTF8Writer(bytes);
+        writer.write("a\uD800b\uDC00c\uD800");
+        writer.close();
+        assertEquals("a?b?c?", new String(bytes.toByteArray(), "UTF-8"));
+    }
+
+    public void testEscapeNonAscii() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        UTF8Writer writer = new UTF8Writer(bytes, true);
+        writer.write(MIXED_TEXT);
+        writer.close();
+        assertEquals("plain ascii, caf\\u00E9, \\u0F00\\u20AC, \\uD83D\\uDE00 smile, end",
+                        new String(bytes.toByteArray(), "US-ASCII"));
+    }
+
+    public void testEncodingChecks() throws Exception {
+        assertTrue(UTF8Writer.isUTF8("UTF-8"));
+        assertTrue(UTF8Writer.isUTF8("utf8"));
+        assertFalse(UTF8Writer.isUTF8("ISO-8859-1"));
+        assertTrue(UTF8Writer.isAsciiCompatible("ISO-8859-1"));
+        assertTrue(UTF8Writer.isAsciiCompatible("windows-1252"));
+        assertFalse(UTF8Writer.isAsciiCompatible("UTF-16"));
+    }
+
+    public void testJSONWriterOutputStream() throws Exception {
+        Document doc = DocumentFactory.getInstance().createDocument();
+        doc.addElement("alice").addElement("bob").setText(MIXED_TEXT);
+
+        StringWriter expected = new StringWriter();
+        new JSONWriter(expected, JSONFormat.BADGER_FISH).write(doc);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new JSONWriter(bytes, JSONFormat.BADGER_FISH).write(doc);
+        assertEquals(expected.toString(), new String(bytes.toByteArray(), "UTF-8"));
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder result = new StringBuilder();
+        while (result.length() < length) {
+            switch (random.nextInt(4)) {
+            case 0:
+                result.append((char)('a' + random.nextInt(26)));
+                break;
+            case 1:
+                result.append((char)(0x80 + random.nextInt(0x780)));
+                break;
+            case 2:
+                result.append((char)(0x800 + random.nextInt(0xD000)));
+                break;
+            default:
+                result.appendCodePoint(0x10000 + random.nextInt(0xFFFFF));
+            }
+        }
+
+        return result.toString();
+    }
+}